@@ -0,0 +1,912 @@
+package com.gmail.adamvdvoorn;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * <p>
+ * What every layout of a TrieMap has in common: how names are broken into keywords, and every kind of search.
+ *
+ * Each layout stores its keywords its own way, and only has to look up the matches of a search keyword, see
+ * {@link KeywordMatches}. Searching, sorting and ordering are the same in every layout, so a search gives the same
+ * results in each of them. How items are put and removed, and the features that depend on how the trie is stored,
+ * are up to each layout, see {@link TrieMap}, {@link ArenaTrieMap} and {@link SharedKeywordTrieMap}.
+ * </p>
+ * @param <T> the type of item stored in the trie.
+ * */
+public abstract class AbstractTrieMap<T> {
+    // the patterns used when none are given
+    static final Pattern DEFAULT_CONCAT = Pattern.compile("[',]");
+    static final Pattern DEFAULT_DELIM = Pattern.compile("[^a-zA-Z0-9&]+");
+
+    private final Comparator<SearchResult> comparator; // comparator for sorting results
+
+    /* regexes to aid in separating keywords from names  */
+    // strings that fulfil this pattern are removed, strings on either side are concatenated
+    private final Pattern toConcat;
+    // pattern used as the delimiter to separate keywords
+    private final Pattern delim;
+    // what items are hashed and compared by, by default the item itself
+    private static final Function<Object, Object> ITEM_AS_KEY = (item) -> item;
+    private final Function<? super T, ?> itemKey;
+    // how keywords are turned into node labels
+    private volatile KeyEncoding keyEncoding = KeyEncoding.LOWER_CASE;
+
+    // the settings below only change how searches are run, so they may be set while read-only maps are searched
+    // subtrees with at least this many associations are collected on multiple threads
+    private volatile int parallelThreshold = 1 << 13;
+    // searches with at least this many keywords, or matching this many associations, look up keywords in parallel
+    private volatile int parallelQueryKeywords = 4;
+    private volatile int parallelQueryAssociations = 1 << 15;
+
+    /**
+     * @param comparator the comparator to use for sorting the search results.
+     * @param toConcat strings that fulfill this pattern are removed, strings on either side are concatenated
+     * @param delim pattern used as the delimiter to separate keywords
+     * @param itemKey returns the key of an item, or null to compare items by their own equals and hashCode.
+     */
+    AbstractTrieMap(Comparator<SearchResult> comparator, Pattern toConcat, Pattern delim, Function<? super T, ?> itemKey) {
+        this.comparator = comparator;
+        this.toConcat = toConcat;
+        this.delim = delim;
+        this.itemKey = itemKey == null ? ITEM_AS_KEY : itemKey;
+    }
+
+    /**
+     * Constructor that copies the settings of another map, but none of its items.
+     * @param settings the map to copy the comparator, patterns, key encoding, item key and parallel thresholds from.
+     */
+    AbstractTrieMap(AbstractTrieMap<T> settings) {
+        this(settings.comparator, settings.toConcat, settings.delim, settings.itemKey);
+        this.keyEncoding = settings.keyEncoding;
+        this.parallelThreshold = settings.parallelThreshold;
+        this.parallelQueryKeywords = settings.parallelQueryKeywords;
+        this.parallelQueryAssociations = settings.parallelQueryAssociations;
+    }
+
+    /**
+     * returns all the items in this map.
+     * @return all of the items in this map
+     */
+    public abstract Collection<T> items();
+
+    /**
+     * @return whether nothing is stored in this map, without collecting its items.
+     * */
+    abstract boolean isEmpty();
+
+    /**
+     * Estimates the heap memory this map retains, for sizing the memory it needs.
+     * The items and item keys are not counted. Sizes are estimated for a 64 bit JVM with compressed references.
+     * @return the estimated # of bytes.
+     */
+    public abstract long estimateRetainedBytes();
+
+    /**
+     * @return where the matches for a search keyword are stored.
+     * @throws NoAssociatedObjectsException if nothing is stored under the keyword.
+     * */
+    abstract KeywordMatches<T> getKeywordMatches(String keyword) throws NoAssociatedObjectsException;
+
+    /**
+     * Looks up many keywords at once.
+     * @param sortedKeywords distinct keywords, in alphabetical order.
+     * @return where the matches for each keyword are stored. keywords with no matches are left out.
+     * */
+    abstract Map<String, KeywordMatches<T>> getKeywordMatches(List<String> sortedKeywords);
+
+    /**
+     * @return false if nothing can be stored under the keyword, so a search for it ends before looking up any of its
+     * keywords. By default every keyword is looked up.
+     * */
+    boolean mightContain(String keyword) {
+        return true;
+    }
+
+    /**
+     * @return an item key that compares items by identity (==) rather than equals.
+     */
+    public static <T> Function<T, Object> identityKey() {
+        return IdentityKey::new;
+    }
+
+    /**
+     * @param id returns a unique id for an item.
+     * @return an item key that compares items by the given id.
+     */
+    public static <T> Function<T, Object> longKey(ToLongFunction<? super T> id) {
+        Objects.requireNonNull(id);
+        return (item) -> id.applyAsLong(item);
+    }
+
+    /**
+     * Searches the trie for any items that match or partially match the given name.
+     * The given name is broken into keywords using the patterns defined at construction time.
+     * An item will be returned if all the search keywords at least partially match some or all of the stored keywords
+     * of an item.
+     * A keyword partially matching is where a substring (starting at index 0) of a given keyword matches a substring
+     * (starting at index 0) of a stored keyword.
+     * This means that if your search string equals the name you stored your item under, it is guaranteed to be in the
+     * returned list.
+     * However, if your search only partially matches the item you want, whether it will be in the list all depends on
+     * the patterns you defined at construction time.
+     *
+     * @param name the name of the item to search for.
+     * @return a list of all the items associated with the input name, ordered by the comparator in this trie object. 
+     * an empty search input returns an empty list.
+     * */
+    public List<T> search(String name) {
+        return sort(collectResults(processName(name)));
+    }
+
+    /**
+     * Searches for one page of the results of {@link #search(String)} at a time, in the same order, with ties in the
+     * comparator broken by item key.
+     * Each page only sorts the results that are on it: the results are collected as a search does, and the pageSize
+     * results that follow the cursor are selected from them with a bounded heap, so a page costs
+     * O(n log pageSize) rather than O(n log n), where n is the # of results.
+     * A page starts after the last result of the previous page, rather than at an offset, so items that are put or
+     * removed in between only shift the pages they fall on, and no item is skipped or repeated because of them.
+     * Items that compare equal, with keys that have equal hash codes and are not Comparable, can come in any order,
+     * so the cursor holds the keys of those that were already returned, and only as many as tie with the last one.
+     * @param query the search, as given to {@link #search(String)}.
+     * @param pageSize the most items on the page.
+     * @param after the cursor of the previous page, or null for the first page.
+     * @return the page, and the cursor for the next page.
+     * @throws IllegalArgumentException if the page size is not positive, or the cursor is from a different query.
+     * */
+    public ResultPage<T> searchPage(String query, int pageSize, Cursor after) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be positive: " + pageSize);
+        }
+        if (after != null && !after.getQuery().equals(query)) {
+            throw new IllegalArgumentException("the cursor is from the query \"" + after.getQuery() + "\"");
+        }
+        @SuppressWarnings("unchecked")
+        SearchResult last = after == null ? null : (SearchResult) after.getLastResult();
+        Set<Object> returned = after == null ? Collections.emptySet() : after.getTiedKeys();
+        Comparator<SearchResult> order = pageOrder();
+        // the last pageSize + 1 results, in reverse order, so the head is the one to drop
+        PriorityQueue<SearchResult> page = new PriorityQueue<>(pageSize + 2, order.reversed());
+        for (SearchResult result : collectResults(processName(query)).values()) {
+            if (last != null) {
+                int position = order.compare(result, last);
+                if (position < 0 || position == 0 && returned.contains(result.key)) {
+                    continue;
+                }
+            }
+            page.add(result);
+            if (page.size() > pageSize + 1) {
+                page.poll();
+            }
+        }
+        List<SearchResult> sorted = new ArrayList<>(page);
+        sorted.sort(order);
+        boolean more = sorted.size() > pageSize;
+        if (more) {
+            sorted.remove(pageSize);
+        }
+        List<T> items = new ArrayList<>(sorted.size());
+        for (SearchResult result : sorted) {
+            items.add(result.item);
+        }
+        if (!more) {
+            return new ResultPage<>(items, null);
+        }
+        SearchResult end = sorted.get(sorted.size() - 1);
+        Set<Object> tied = new HashSet<>();
+        if (last != null && order.compare(end, last) == 0) {
+            tied.addAll(returned); // the ties go on from the previous page
+        }
+        for (SearchResult result : sorted) {
+            if (order.compare(result, end) == 0) {
+                tied.add(result.key);
+            }
+        }
+        return new ResultPage<>(items, new Cursor(query, end, tied));
+    }
+
+    /**
+     * @return the result for each item that at least partially matches every keyword.
+     * */
+    private Map<Object, SearchResult> collectResults(List<String> keywords) {
+        if (keywords.isEmpty()) {
+        	return new HashMap<>();
+        }
+        for (String keyword : keywords) {
+            if (!mightContain(keyword)) {
+                return new HashMap<>();
+            }
+        }
+        try {
+            // find where each keyword's matches are first, so a keyword with no matches ends the search early
+            List<KeywordMatches<T>> topNodes = new ArrayList<>(keywords.size());
+            long nOfAssociations = 0;
+            for (String keyword : keywords) {
+                KeywordMatches<T> topNode = getKeywordMatches(keyword);
+                topNodes.add(topNode);
+                nOfAssociations += topNode.getSubtreeSize();
+            }
+            Map<Object, SearchResult> resultsA;
+            if (keywords.size() > 1
+                    && (keywords.size() >= parallelQueryKeywords || nOfAssociations >= parallelQueryAssociations)) {
+                resultsA = searchForKeywordsInParallel(topNodes);
+            }
+            else {
+                resultsA = searchForKeyword(topNodes.get(0), 0, keywords.size());
+                for (int i = 1; i < keywords.size() && !resultsA.isEmpty(); i++) {
+                    resultsA = intersect(resultsA, searchForKeyword(topNodes.get(i), i, keywords.size()));
+                }
+            }
+            return resultsA;
+        } 
+        // no matches found
+        catch (NoAssociatedObjectsException e) { 
+            return new HashMap<>();
+        }
+    }
+
+    /**
+     * Searches the trie with a boolean query, combining keyword matches with AND, OR and NOT:
+     *
+     *      cheese sharp        items matching both terms, as in {@link #search(String)}
+     *      apple | pear        items matching either term. binds tighter than the implicit AND
+     *      cheese -sliced      items matching cheese, but not sliced
+     *
+     * Each term is broken into keywords the same way as names, and matches the same items as a search for it.
+     * The terms that items must match are evaluated cheapest first, by the # of associations they match, and every
+     * later term only builds results for the items still in the running. Terms joined by | are streamed together
+     * rather than collected one by one, and excluded terms only remove items, without building results for them.
+     * A query with no terms that items must match returns an empty list.
+     * @param query the query to search for.
+     * @return the matching items, ordered by the comparator in this trie object. Each term joined by | takes up one
+     * search keyword position, see {@link SearchResult#matchAt(int)}.
+     * */
+    public List<T> searchQuery(String query) {
+        Query parsed = Query.parse(query, this::processName);
+        if (parsed.getRequired().isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<String> keywords = Stream.concat(parsed.getRequired().stream(), parsed.getExcluded().stream())
+                .flatMap((group) -> group.getAlternatives().stream())
+                .flatMap(List::stream)
+                .distinct()
+                .sorted()
+                .collect(Collectors.toList());
+        Map<String, KeywordMatches<T>> matches = getKeywordMatches(keywords);
+
+        // search keyword positions follow the order of the query, not the order the groups are evaluated in
+        Map<Query.Group, Integer> positions = new IdentityHashMap<>();
+        int nOfSearchKeywords = 0;
+        for (Query.Group group : parsed.getRequired()) {
+            positions.put(group, nOfSearchKeywords);
+            nOfSearchKeywords += group.width();
+        }
+        List<Query.Group> required = new ArrayList<>(parsed.getRequired());
+        required.sort(Comparator.comparingLong((group) -> cost(group, matches)));
+        Map<Object, SearchResult> results = null;
+        for (Query.Group group : required) {
+            Map<Object, SearchResult> groupResults = matchGroup(group, positions.get(group), nOfSearchKeywords, matches, results);
+            results = results == null ? groupResults : intersect(results, groupResults);
+            if (results.isEmpty()) {
+                return new ArrayList<>();
+            }
+        }
+
+        List<Query.Group> excluded = new ArrayList<>(parsed.getExcluded());
+        excluded.sort(Comparator.comparingLong((group) -> cost(group, matches)));
+        for (int i = 0; i < excluded.size() && !results.isEmpty(); i++) {
+            exclude(excluded.get(i), matches, results);
+        }
+        return sort(results);
+    }
+
+    /**
+     * Searches the trie for items with the search keywords next to each other, in the same order, in their names.
+     * e.g. "cheddar ch" finds "sharp cheddar cheese" but not "cheese cheddar" or "cheddar sharp cheese".
+     * Each search keyword matches the start of a stored keyword, as in {@link #search(String)}.
+     * Keywords are intersected rarest first, and an item is dropped as soon as its stored positions can no longer
+     * line up with the search keywords seen so far, so items are never collected just to be filtered out.
+     * A keyword that appears more than once in a name matches at every position it appears at.
+     * @param phrase the keywords to search for, in order.
+     * @return the matching items, ordered by the comparator in this trie object. an empty search returns an empty list.
+     * */
+    public List<T> searchPhrase(String phrase) {
+        List<String> keywords = processName(phrase);
+        Map<String, KeywordMatches<T>> matches = getKeywordMatches(keywords.stream().distinct().sorted().collect(Collectors.toList()));
+        if (keywords.isEmpty() || !matches.keySet().containsAll(keywords)) {
+            return new ArrayList<>();
+        }
+        List<Integer> order = new ArrayList<>(keywords.size());
+        for (int i = 0; i < keywords.size(); i++) {
+            order.add(i);
+        }
+        order.sort(Comparator.comparingInt((i) -> matches.get(keywords.get(i)).getSubtreeSize()));
+
+        Map<Object, PhraseCandidate> candidates = null;
+        for (int i : order) {
+            Stream<TrieNode.objectAssociation<T>> keywordMatches = matches.get(keywords.get(i)).streamAssociations(parallelThreshold);
+            if (candidates != null) {
+                Map<Object, PhraseCandidate> filter = candidates;
+                keywordMatches = keywordMatches.filter((e) -> filter.containsKey(e.key));
+            }
+            Map<Object, PhraseCandidate> keywordCandidates = keywordMatches
+                    .map((e) -> new PhraseCandidate(e, i, keywords.size()))
+                    .filter((e) -> !e.starts.isEmpty())
+                    .collect(Collectors.toMap((e) -> e.result.key, Function.identity(), PhraseCandidate::merge));
+            if (candidates == null) {
+                candidates = keywordCandidates;
+            }
+            else {
+                Map<Object, PhraseCandidate> remaining = new HashMap<>();
+                for (Map.Entry<Object, PhraseCandidate> entry : keywordCandidates.entrySet()) {
+                    PhraseCandidate candidate = candidates.get(entry.getKey()).combine(entry.getValue());
+                    if (!candidate.starts.isEmpty()) {
+                        remaining.put(entry.getKey(), candidate);
+                    }
+                }
+                candidates = remaining;
+            }
+            if (candidates.isEmpty()) {
+                return new ArrayList<>();
+            }
+        }
+        Map<Object, SearchResult> results = new HashMap<>();
+        candidates.forEach((key, candidate) -> results.put(key, candidate.result));
+        return sort(results);
+    }
+
+    /**
+     * Searches for many names at once, giving the same results as calling {@link #search(String)} for each name.
+     * The keywords of every search are looked up in one walk of the trie in alphabetical order, so the nodes of shared
+     * prefixes are only visited once, and each distinct keyword's matches are only collected once.
+     * Keywords that start with another search keyword, such as "chee" and "cheese" after "che", are picked out of the
+     * shorter keyword's matches as they are collected, so each subtree is only walked once.
+     * Collecting the matches and evaluating the searches are both split across the common ForkJoinPool.
+     * @param names the names to search for.
+     * @return the results for each distinct name.
+     * */
+    public Map<String, List<T>> searchAll(Collection<String> names) {
+        Map<String, List<String>> searches = names.parallelStream()
+                .distinct()
+                .collect(Collectors.toMap(Function.identity(), this::processName));
+        List<String> keywords = searches.values().stream()
+                .flatMap(List::stream)
+                .distinct()
+                .sorted()
+                .collect(Collectors.toList());
+        Map<String, KeywordMatches<T>> keywordMatches = getKeywordMatches(keywords);
+        // sorted keywords that start with the first keyword of a group follow it, so each group is a run of the list
+        List<List<String>> groups = new ArrayList<>();
+        for (String keyword : keywords) {
+            if (!keywordMatches.containsKey(keyword)) {
+                continue;
+            }
+            List<String> group = groups.isEmpty() ? null : groups.get(groups.size() - 1);
+            if (group != null && keyword.startsWith(group.get(0))) {
+                group.add(keyword);
+            }
+            else {
+                groups.add(new ArrayList<>(List.of(keyword)));
+            }
+        }
+        Map<String, List<TrieNode.objectAssociation<T>>> matches = new ConcurrentHashMap<>();
+        groups.parallelStream().forEach((group) -> collectGroup(group, keywordMatches.get(group.get(0)), matches));
+
+        return searches.entrySet().parallelStream()
+                .collect(Collectors.toMap(Map.Entry::getKey, (e) -> searchAllKeywords(e.getValue(), matches)));
+    }
+
+    /**
+     * Sets how keywords are turned into the labels stored in the trie, see {@link KeyEncoding}.
+     * Names and searches are encoded the same way, so the encoding can only be set while the map is empty.
+     * By default keywords are lower cased.
+     * @param keyEncoding the encoding.
+     * @throws IllegalStateException if the map is not empty.
+     * */
+    public void setKeyEncoding(KeyEncoding keyEncoding) {
+        if (!isEmpty()) {
+            throw new IllegalStateException("the key encoding can only be set while the map is empty");
+        }
+        this.keyEncoding = Objects.requireNonNull(keyEncoding);
+    }
+
+    /**
+     * Sets when a search looks up each of its keywords at the same time, rather than one after another.
+     * Each keyword is looked up in the common ForkJoinPool, and the results are intersected as each lookup finishes.
+     * Searches with a single keyword are never split up this way.
+     * @param keywordCount the minimum # of keywords in a search for it to be done in parallel.
+     * @param nOfAssociations the minimum # of keyword associations matched by all of the search keywords combined
+     *                        for the search to be done in parallel, regardless of how many keywords it has.
+     */
+    public void setParallelQueryThreshold(int keywordCount, int nOfAssociations) {
+        if (keywordCount < 2 || nOfAssociations < 1) {
+            throw new IllegalArgumentException("invalid parallel query threshold: " + keywordCount + ", " + nOfAssociations);
+        }
+        this.parallelQueryKeywords = keywordCount;
+        this.parallelQueryAssociations = nOfAssociations;
+    }
+
+    /**
+     * Sets how large a subtree has to be before it is collected on multiple threads.
+     * Large subtrees, such as the one under a single letter search, are split between the threads of the
+     * common ForkJoinPool (or the pool the search is called from) by child branch, and the results are merged at the end.
+     * Smaller subtrees are collected by the calling thread.
+     * @param threshold the minimum # of keyword associations in a subtree for it to be collected in parallel.
+     */
+    public void setParallelThreshold(int threshold) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("threshold must be positive: " + threshold);
+        }
+        this.parallelThreshold = threshold;
+    }
+
+    List<String> processName(String name) {
+        name = keyEncoding.normalize(toConcat.matcher(name).replaceAll(""));
+        List<String> keywords = new ArrayList<>();
+        Scanner in = new Scanner(name);
+        in.useDelimiter(delim);
+        while (in.hasNext()) {
+            keywords.add(keyEncoding.encode(in.next()));
+        }
+        in.close();
+        return keywords;
+    }
+
+    Object keyOf(T item) {
+        return itemKey.apply(item);
+    }
+
+    int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * @return the items of the given associations, with items that have the same key only included once.
+     * */
+    Collection<T> distinctItems(Stream<TrieNode.objectAssociation<T>> associations) {
+        if (itemKey == ITEM_AS_KEY) {
+            return associations.map((e) -> e.obj).collect(Collectors.toSet());
+        }
+        return associations
+                .collect(Collectors.toMap((e) -> e.key, (e) -> e.obj, (existing, replacement) -> existing))
+                .values();
+    }
+
+    private Map<Object, SearchResult> searchForKeyword(KeywordMatches<T> topNode, int keywordIndex, int nOfKeywords) {
+        return toResults(topNode.streamAssociations(parallelThreshold), keywordIndex, nOfKeywords);
+    }
+
+    Map<Object, SearchResult> toResults(Stream<TrieNode.objectAssociation<T>> associations, int keywordIndex, int nOfKeywords) {
+        return associations
+                .map((e) -> new SearchResult(e.obj, e.key, keywordIndex, e.keywordIndex, nOfKeywords, e.nOfKeywords))
+                .collect(Collectors.toMap((e) -> e.key, Function.identity(), SearchResult::merge));
+    }
+
+    private Map<Object, SearchResult> searchForKeywordsInParallel(List<KeywordMatches<T>> topNodes) {
+        CompletionService<Map<Object, SearchResult>> lookups = new ExecutorCompletionService<>(ForkJoinPool.commonPool());
+        List<Future<Map<Object, SearchResult>>> futures = new ArrayList<>(topNodes.size());
+        for (int i = 0; i < topNodes.size(); i++) {
+            final int keywordIndex = i;
+            futures.add(lookups.submit(() -> searchForKeyword(topNodes.get(keywordIndex), keywordIndex, topNodes.size())));
+        }
+        try {
+            Map<Object, SearchResult> results = lookups.take().get();
+            for (int i = 1; i < topNodes.size() && !results.isEmpty(); i++) {
+                results = intersect(results, lookups.take().get());
+            }
+            return results;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("interrupted while searching");
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+        finally {
+            // lookups are no longer needed if any keyword has already ruled out every item
+            for (Future<Map<Object, SearchResult>> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Collects the matches of a keyword, and of the longer keywords that start with it, in one walk of its matches.
+     * @param group the keyword, then the longer keywords, in alphabetical order.
+     * */
+    private void collectGroup(List<String> group, KeywordMatches<T> shortest,
+                              Map<String, List<TrieNode.objectAssociation<T>>> matches) {
+        int prefixLength = group.get(0).length();
+        List<List<TrieNode.objectAssociation<T>>> lists = new ArrayList<>(group.size());
+        for (int i = 0; i < group.size(); i++) {
+            lists.add(new ArrayList<>());
+        }
+        shortest.forEachAssociation((rest, association) -> {
+            lists.get(0).add(association);
+            for (int i = 1; i < group.size(); i++) {
+                if (startsWith(rest, group.get(i), prefixLength)) {
+                    lists.get(i).add(association);
+                }
+            }
+        });
+        for (int i = 0; i < group.size(); i++) {
+            matches.put(group.get(i), lists.get(i));
+        }
+    }
+
+    /**
+     * @return whether a sequence starts with the characters of a keyword from an index on.
+     * */
+    private static boolean startsWith(CharSequence sequence, String keyword, int from) {
+        if (sequence.length() < keyword.length() - from) {
+            return false;
+        }
+        for (int i = from; i < keyword.length(); i++) {
+            if (sequence.charAt(i - from) != keyword.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Evaluates one search of {@link #searchAll(Collection)} from the matches collected for every keyword.
+     * */
+    private List<T> searchAllKeywords(List<String> keywords, Map<String, List<TrieNode.objectAssociation<T>>> matches) {
+        Map<Object, SearchResult> results = null;
+        for (int i = 0; i < keywords.size() && (results == null || !results.isEmpty()); i++) {
+            List<TrieNode.objectAssociation<T>> keywordMatches = matches.get(keywords.get(i));
+            if (keywordMatches == null) {
+                return new ArrayList<>();
+            }
+            if (results == null) {
+                results = toResults(keywordMatches.stream(), i, keywords.size());
+            }
+            else {
+                // only items that match the earlier keywords need results for this keyword
+                Map<Object, SearchResult> candidates = results;
+                results = intersect(results, toResults(keywordMatches.stream().filter((e) -> candidates.containsKey(e.key)),
+                        i, keywords.size()));
+            }
+        }
+        return results == null ? new ArrayList<>() : sort(results);
+    }
+
+    /**
+     * @return an upper bound on the # of associations a query group matches.
+     * */
+    private long cost(Query.Group group, Map<String, KeywordMatches<T>> matches) {
+        long cost = 0;
+        for (List<String> alternative : group.getAlternatives()) {
+            // an item must match every keyword of the alternative, so the rarest keyword bounds it
+            long alternativeCost = Long.MAX_VALUE;
+            for (String keyword : alternative) {
+                KeywordMatches<T> keywordMatches = matches.get(keyword);
+                alternativeCost = Math.min(alternativeCost, keywordMatches == null ? 0 : keywordMatches.getSubtreeSize());
+            }
+            cost += alternativeCost;
+        }
+        return cost;
+    }
+
+    /**
+     * @param position the search keyword position of the group.
+     * @param candidates the items that matched the groups evaluated so far, or null for the first group.
+     * @return the results for the items that match any of the group's alternatives.
+     * */
+    private Map<Object, SearchResult> matchGroup(Query.Group group, int position, int nOfSearchKeywords,
+                                                 Map<String, KeywordMatches<T>> matches, Map<Object, SearchResult> candidates) {
+        // single keyword alternatives are streamed into one collection, their union is never built in between
+        Stream<TrieNode.objectAssociation<T>> singles = Stream.empty();
+        List<Map<Object, SearchResult>> others = new ArrayList<>();
+        for (List<String> alternative : group.getAlternatives()) {
+            if (alternative.size() == 1) {
+                KeywordMatches<T> keywordMatches = matches.get(alternative.get(0));
+                if (keywordMatches != null) {
+                    singles = Stream.concat(singles, keywordMatches.streamAssociations(parallelThreshold));
+                }
+            }
+            else {
+                others.add(matchAll(alternative, position, nOfSearchKeywords, matches, candidates));
+            }
+        }
+        if (candidates != null) {
+            singles = singles.filter((e) -> candidates.containsKey(e.key));
+        }
+        Map<Object, SearchResult> results = toResults(singles, position, nOfSearchKeywords);
+        for (Map<Object, SearchResult> other : others) {
+            // an item matching several alternatives counts the matches of the one that matched the most keywords
+            other.forEach((key, result) -> results.merge(key, result,
+                    (a, b) -> a.nOfMatches >= b.nOfMatches ? a.merge(b) : b.merge(a)));
+        }
+        return results;
+    }
+
+    /**
+     * @param position the search keyword position of the first keyword.
+     * @param candidates the only items to build results for, or null for every item.
+     * @return the results for the items that match every keyword.
+     * */
+    private Map<Object, SearchResult> matchAll(List<String> keywords, int position, int nOfSearchKeywords,
+                                               Map<String, KeywordMatches<T>> matches, Map<Object, SearchResult> candidates) {
+        List<Integer> order = new ArrayList<>(keywords.size());
+        for (int i = 0; i < keywords.size(); i++) {
+            if (!matches.containsKey(keywords.get(i))) {
+                return new HashMap<>();
+            }
+            order.add(i);
+        }
+        order.sort(Comparator.comparingInt((i) -> matches.get(keywords.get(i)).getSubtreeSize()));
+        Map<Object, SearchResult> results = candidates;
+        boolean first = true;
+        for (int i : order) {
+            Stream<TrieNode.objectAssociation<T>> keywordMatches = matches.get(keywords.get(i)).streamAssociations(parallelThreshold);
+            if (results != null) {
+                Map<Object, SearchResult> filter = results;
+                keywordMatches = keywordMatches.filter((e) -> filter.containsKey(e.key));
+            }
+            Map<Object, SearchResult> keywordResults = toResults(keywordMatches, position + i, nOfSearchKeywords);
+            results = first ? keywordResults : intersect(results, keywordResults);
+            first = false;
+            if (results.isEmpty()) {
+                break;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Removes the items that match any of a group's alternatives from the results.
+     * */
+    private void exclude(Query.Group group, Map<String, KeywordMatches<T>> matches, Map<Object, SearchResult> results) {
+        for (List<String> alternative : group.getAlternatives()) {
+            Set<Object> matched;
+            if (alternative.size() == 1) {
+                KeywordMatches<T> keywordMatches = matches.get(alternative.get(0));
+                if (keywordMatches == null) {
+                    continue;
+                }
+                matched = keywordMatches.streamAssociations(parallelThreshold)
+                        .map((e) -> e.key)
+                        .filter(results::containsKey)
+                        .collect(Collectors.toSet());
+            }
+            else {
+                matched = matchAll(alternative, 0, alternative.size(), matches, results).keySet();
+            }
+            results.keySet().removeAll(matched);
+        }
+    }
+
+    /**
+     * @return the association for each keyword of a name. A keyword that appears more than once shares one
+     * association, which holds every position it appears at.
+     * */
+    List<TrieNode.objectAssociation<T>> associate(T item, List<String> keywords) {
+        Object key = itemKey.apply(item);
+        List<TrieNode.objectAssociation<T>> associations = new ArrayList<>(keywords.size());
+        for (int i = 0; i < keywords.size(); i++) {
+            int first = keywords.indexOf(keywords.get(i));
+            if (first < i) {
+                associations.get(first).addKeywordIndex(i);
+                associations.add(associations.get(first));
+            }
+            else {
+                associations.add(new TrieNode.objectAssociation<>(item, key, i, keywords.size()));
+            }
+        }
+        return associations;
+    }
+
+    /**
+     * @return the order of {@link #searchPage(String, int, Cursor)}: the order of search, then by the hash code of the
+     * item key, then by the item key itself if it is Comparable. Returns 0 for results with equal keys, and for
+     * distinct keys it cannot tell apart, which the cursor keeps track of.
+     * */
+    private Comparator<SearchResult> pageOrder() {
+        Comparator<SearchResult> byKeyHash = Comparator.comparingInt((result) -> result.key.hashCode());
+        Comparator<SearchResult> order = comparator.reversed().thenComparing(byKeyHash)
+                .thenComparing(this::compareKeys);
+        // an item is equal to itself, such as the cursor's item, without asking the comparator, as search never asks it
+        return (a, b) -> a.key.equals(b.key) ? 0 : order.compare(a, b);
+    }
+
+    /**
+     * @return the order of two keys, or 0 if they are not Comparable with each other.
+     * */
+    @SuppressWarnings("unchecked")
+    private int compareKeys(SearchResult a, SearchResult b) {
+        if (a.key instanceof Comparable && a.key.getClass() == b.key.getClass()) {
+            return ((Comparable<Object>) a.key).compareTo(b.key);
+        }
+        return 0;
+    }
+
+    /**
+     * @return the items of the results, ordered by the comparator.
+     * */
+    List<T> sort(Map<Object, SearchResult> results) {
+        List<SearchResult> sorted = new ArrayList<>(results.values());
+        sorted.sort(comparator.reversed());
+        return sorted.stream()
+                .map((e) -> e.item)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @return the items that at least partially match the keywords in both a and b,
+     * each combined with its result from the other map. The smaller map is iterated, and either map's results may be
+     * reused, so neither should be used afterwards.
+     * */
+    Map<Object, SearchResult> intersect(Map<Object, SearchResult> a, Map<Object, SearchResult> b) {
+        Map<Object, SearchResult> smaller = a.size() <= b.size() ? a : b;
+        Map<Object, SearchResult> larger = smaller == a ? b : a;
+        Map<Object, SearchResult> intersection = new HashMap<>();
+        for (Map.Entry<Object, SearchResult> entry : smaller.entrySet()) {
+            SearchResult other = larger.get(entry.getKey());
+            if (other != null) {
+                intersection.put(entry.getKey(), entry.getValue().combine(other));
+            }
+        }
+        return intersection;
+    }
+
+    /**
+     * An item that might match a phrase search, and where in its name the phrase could start.
+     */
+    private class PhraseCandidate {
+        private final SearchResult result;
+        // the stored positions the first search keyword would be at, for each search keyword seen so far to line up
+        private final BitSet starts = new BitSet();
+
+        PhraseCandidate(TrieNode.objectAssociation<T> association, int searchIndex, int nOfSearchKeywords) {
+            result = new SearchResult(association.obj, association.key, searchIndex, association.keywordIndex,
+                    nOfSearchKeywords, association.nOfKeywords);
+            for (int index : association.keywordIndexes()) {
+                // the rest of the phrase must fit in the name
+                if (index >= searchIndex && index - searchIndex + nOfSearchKeywords <= association.nOfKeywords) {
+                    starts.set(index - searchIndex);
+                }
+            }
+        }
+
+        /**
+         * Merges in another of the item's keywords that matches the same search keyword.
+         */
+        PhraseCandidate merge(PhraseCandidate other) {
+            result.merge(other.result);
+            starts.or(other.starts);
+            return this;
+        }
+
+        /**
+         * Combines with the match of another search keyword, keeping only the starts that both allow.
+         */
+        PhraseCandidate combine(PhraseCandidate other) {
+            result.combine(other.result);
+            starts.and(other.starts);
+            return this;
+        }
+    }
+
+    /**
+     * Represents an item that has been selected by a search.
+     * Contains the item, and search related data that can be used for ordering search results.
+     */
+    public class SearchResult {
+        private final T item;
+        private final Object key;
+        private final int nOfObjectKeywords;
+        private int nOfMatches = 0;
+        private boolean[] matchTable;
+        private float matchProportion = 0.0f;
+
+        SearchResult(T item, Object key, int searchIndex, int storedIndex, int nOfSearchKeywords, int nOfObjKeywords) {
+            this.item = item;
+            this.key = key;
+            this.nOfObjectKeywords = nOfObjKeywords;
+            matchTable = new boolean[nOfSearchKeywords];
+            if (searchIndex == storedIndex) {
+                matchTable[searchIndex] = true;
+            }
+            nOfMatches = 1;
+            matchProportion = 1.0f / nOfObjectKeywords;
+        }
+
+        /**
+         * Combines with the matches of other search keywords, counting every search keyword either result matched,
+         * so results can be combined in any order.
+         */
+        SearchResult combine(SearchResult other) {
+            assert (key.equals(other.key)) : "cannot intersect with a result with different obj association";
+            nOfMatches += other.nOfMatches;
+            matchProportion = ((float)nOfMatches) / nOfObjectKeywords;
+            for (int i = 0; i < matchTable.length; i++) {
+                if (other.matchAt(i)) {
+                    matchTable[i] = true;
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Merges in another match of the same search keyword, such as when several of the item's keywords start with
+         * the search keyword. Unlike {@link #combine(SearchResult)}, this does not count as a new match.
+         */
+        SearchResult merge(SearchResult other) {
+            for (int i = 0; i < matchTable.length; i++) {
+                if (other.matchAt(i)) {
+                    matchTable[i] = true;
+                }
+            }
+            return this;
+        }
+
+        /**
+         * @param n
+         * @return true if the nth keyword in the search is also the nth keyword in this objects name
+         */
+        public boolean matchAt(int n) {
+            return matchTable[n];
+        }
+
+        /**
+         * @return the proportion of keyword matches in this result,
+         * ie (# matches / # keywords associated with objects)
+         */
+        public float matchProportion() {
+            return matchProportion;
+        }
+
+        /**
+         * @return the item in this search result 
+         */
+        public T getItem() {
+            return item;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            @SuppressWarnings("unchecked")
+            SearchResult that = (SearchResult) o;
+            return key.equals(that.key);
+        }
+
+        public int hashCode() {
+            return key.hashCode();
+        }
+    }
+
+    /**
+     * Wraps an item so it is hashed and compared by identity.
+     */
+    private static final class IdentityKey {
+        private final Object item;
+
+        IdentityKey(Object item) {
+            this.item = item;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof IdentityKey && ((IdentityKey) o).item == item;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(item);
+        }
+    }
+}
@@ -0,0 +1,680 @@
+package com.gmail.adamvdvoorn;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * <p>
+ * A map that stores its nodes in parallel primitive arrays instead of TrieNode objects.
+ *
+ * Nodes are addressed by their index in the arrays. The children of a node form a linked list, sorted by character,
+ * through firstChild and nextSibling, and the items associated with a node form a linked list of postings,
+ * stored the same way. The arrays grow in chunks, and the slots of removed nodes and postings are reused.
+ *
+ * Each node takes 26 bytes and each posting 20 bytes (with compressed references), and the garbage collector only has
+ * to trace the item references, rather than a TrieNode, two HashMaps and a Character per node.
+ * In exchange, finding a child is linear in the # of children the node has, and putting or removing an item is
+ * linear in the # of items with that exact keyword.
+ *
+ * Searching, sorting and ordering work exactly as in TrieMap. The features of a TrieMap that are built out of
+ * TrieNodes (the reverse index, infix search, transactions, snapshots, the prefix filter, the hot prefix cache and
+ * subscriptions) are not part of an ArenaTrieMap. Removed slots are reused by later puts, and {@link #compact()} gives
+ * the memory of a map that has shrunk back.
+ * </p>
+ * @param <T> the type of item to store in the trie.
+ * */
+public class ArenaTrieMap<T> extends AbstractTrieMap<T> {
+    private static final int NONE = -1;
+    private static final int ROOT = 0;
+    private static final int CHUNK = 4096; // the least # of slots the arrays grow by
+
+    /* nodes */
+    private char[] label = new char[CHUNK];
+    private int[] firstChild = new int[CHUNK];
+    private int[] nextSibling = new int[CHUNK]; // also links free node slots together
+    private int[] parent = new int[CHUNK];
+    private int[] postingsOffset = new int[CHUNK]; // first posting of each node
+    private int[] subtreeSize = new int[CHUNK]; // # of postings held by each node and its descendants
+    private int nodeCount = 0; // # of node slots ever used, including free ones
+    private int freeNodes = NONE;
+
+    /* postings */
+    private Object[] postingItem = new Object[CHUNK];
+    private Object[] postingKey = new Object[CHUNK];
+    private int[] keywordIndex = new int[CHUNK];
+    private int[] nOfKeywords = new int[CHUNK]; // 0 for free posting slots
+    private int[] nextPosting = new int[CHUNK]; // also links free posting slots together
+    private int postingCount = 0; // # of posting slots ever used, including free ones
+    private int freePostings = NONE;
+    // the later positions of a keyword that appears more than once in a name, by posting
+    private final Map<Integer, int[]> laterIndexes = new HashMap<>();
+
+    {
+        allocateNode('\0', NONE); // root
+    }
+
+    /**
+     * Default constructor.
+     * Results are not sorted.
+     * Default concat pattern = [',]
+     * Default delimiter = [^a-zA-Z0-9&]+
+     * */
+    public ArenaTrieMap() {
+        this((a, b) -> 0);
+    }
+
+    /**
+     * Constructor that takes a comparator for sorting the results.
+     * Default concat pattern = [',]
+     * Default delimiter = [^a-zA-Z0-9&]+
+     * @param comparator the comparator to use for sorting the search results.
+     */
+    public ArenaTrieMap(Comparator<SearchResult> comparator) {
+        this(comparator, DEFAULT_CONCAT, DEFAULT_DELIM);
+    }
+
+    /**
+     * Constructor to set patterns for breaking down the item's name into it's keywords.
+     * Results are not sorted.
+     * @param toConcat strings that fulfill this pattern are removed, strings on either side are concatenated
+     * @param delim pattern used as the delimiter to separate keywords
+     */
+    public ArenaTrieMap(String toConcat, String delim) {
+        this((a, b) -> 0, Pattern.compile(toConcat), Pattern.compile(delim));
+    }
+
+    /**
+     * Constructor to set patterns for breaking down the item's name into it's keywords,
+     * and also takes a comparator for sorting the results.
+     * @param comparator the comparator to use for sorting the search results.
+     * @param toConcat strings that fulfill this pattern are removed, strings on either side are concatenated
+     * @param delim pattern used as the delimiter to separate keywords
+     */
+    public ArenaTrieMap(Comparator<SearchResult> comparator, Pattern toConcat, Pattern delim) {
+        super(comparator, toConcat, delim, null);
+    }
+
+    /**
+     * Constructor that also sets what items are hashed and compared by, see {@link TrieMap}.
+     * @param comparator the comparator to use for sorting the search results.
+     * @param toConcat strings that fulfill this pattern are removed, strings on either side are concatenated
+     * @param delim pattern used as the delimiter to separate keywords
+     * @param itemKey returns the key of an item. must return equal keys for the same item every time it is called.
+     */
+    public ArenaTrieMap(Comparator<SearchResult> comparator, Pattern toConcat, Pattern delim, Function<? super T, ?> itemKey) {
+        super(comparator, toConcat, delim, Objects.requireNonNull(itemKey));
+    }
+
+    /**
+     * Puts an item into the map, under the keywords of its name, see {@link TrieMap#put(String, Object)}.
+     * @param name the name of the item, which is broken into keywords.
+     * @param item the item to store.
+     * */
+    public void put(String name, T item) {
+        putKeywords(processName(name), item);
+    }
+
+    /**
+     * Puts an item under keywords that have already been processed from its name.
+     * */
+    void putKeywords(List<String> keywords, T item) {
+        Object key = keyOf(item);
+        int[] postings = new int[keywords.size()];
+        for (int i = 0; i < keywords.size(); i++) {
+            String keyword = keywords.get(i);
+            int first = keywords.indexOf(keyword);
+            if (first < i) {
+                // a repeated keyword keeps its first posting, which also records where it appears again
+                addLaterIndex(postings[first], i);
+                postings[i] = postings[first];
+                continue;
+            }
+            int node = ROOT;
+            for (int c = 0; c < keyword.length(); c++) {
+                node = getOrAddChild(node, keyword.charAt(c));
+            }
+            postings[i] = addPosting(node, item, key, i, keywords.size());
+        }
+    }
+
+    /**
+     * Removes an item from the map, see {@link TrieMap#remove(String, Object)}.
+     * @param name the name the item was put under.
+     * @param item the item to remove.
+     * @throws NoAssociatedObjectsException if a keyword of the name has nothing stored under it.
+     * */
+    public void remove(String name, T item) throws NoAssociatedObjectsException {
+        List<String> keywords = processName(name);
+        Object key = keyOf(item);
+        for (int i = 0; i < keywords.size(); i++) {
+            String keyword = keywords.get(i);
+            if (keywords.indexOf(keyword) < i) {
+                continue; // removed with its first appearance
+            }
+            int node = getNode(keyword);
+            if (node == NONE) {
+                throw new NoAssociatedObjectsException();
+            }
+            removePosting(node, key);
+            prune(node);
+        }
+    }
+
+    /**
+     * returns all the items in this TrieMap.
+     * O(n) complexity, where n is the # of postings. Unlike TrieMap, this does not walk the trie.
+     * @return all of the items in this TrieMap
+     */
+    @Override
+    public Collection<T> items() {
+        return distinctItems(IntStream.range(0, postingCount)
+                .filter((p) -> nOfKeywords[p] != 0)
+                .mapToObj(this::association));
+    }
+
+    @Override
+    boolean isEmpty() {
+        return subtreeSize[ROOT] == 0;
+    }
+
+    /**
+     * The arrays are counted at their full length, including the slots not yet used and the free ones.
+     * @return the estimated # of bytes of the node and posting arrays, and of the positions of repeated keywords,
+     * not counting the items or item keys.
+     */
+    @Override
+    public long estimateRetainedBytes() {
+        long bytes = TrieNode.arrayBytes((long) label.length * Character.BYTES)
+                + 5 * TrieNode.arrayBytes((long) firstChild.length * Integer.BYTES)
+                + 2 * TrieNode.arrayBytes((long) postingItem.length * 4)
+                + 3 * TrieNode.arrayBytes((long) keywordIndex.length * Integer.BYTES)
+                + TrieNode.hashMapBytes(laterIndexes.size());
+        for (int[] later : laterIndexes.values()) {
+            bytes += TrieNode.BOXED_BYTES + TrieNode.arrayBytes((long) later.length * Integer.BYTES);
+        }
+        return bytes;
+    }
+
+    /**
+     * Gives back the memory that removals leave behind. Free slots are only reused by later puts, so a map that has
+     * shrunk keeps the arrays it grew to. This rebuilds the arrays to fit the nodes and postings in use, with the
+     * nodes of each subtree next to each other.
+     * O(n) complexity, where n is the # of node and posting slots.
+     * @return the estimated # of bytes freed, see {@link #estimateRetainedBytes()}.
+     */
+    public long compact() {
+        long before = estimateRetainedBytes();
+        // number the nodes in use depth first, so the root stays at 0
+        int[] order = new int[nodeCount];
+        int[] newNode = new int[nodeCount];
+        int nodes = 0;
+        int[] pending = new int[16];
+        int top = 0;
+        pending[top++] = ROOT;
+        while (top > 0) {
+            int node = pending[--top];
+            newNode[node] = nodes;
+            order[nodes++] = node;
+            for (int child = firstChild[node]; child != NONE; child = nextSibling[child]) {
+                if (top == pending.length) {
+                    pending = Arrays.copyOf(pending, pending.length * 2);
+                }
+                pending[top++] = child;
+            }
+        }
+
+        int nodeLength = Math.max(nodes, 1);
+        char[] newLabel = new char[nodeLength];
+        int[] newFirstChild = new int[nodeLength];
+        int[] newNextSibling = new int[nodeLength];
+        int[] newParent = new int[nodeLength];
+        int[] newPostingsOffset = new int[nodeLength];
+        int[] newSubtreeSize = new int[nodeLength];
+        int postingLength = Math.max(subtreeSize[ROOT], 1);
+        Object[] newPostingItem = new Object[postingLength];
+        Object[] newPostingKey = new Object[postingLength];
+        int[] newKeywordIndex = new int[postingLength];
+        int[] newNOfKeywords = new int[postingLength];
+        int[] newNextPosting = new int[postingLength];
+        Map<Integer, int[]> newLaterIndexes = new HashMap<>();
+        int postings = 0;
+        for (int i = 0; i < nodes; i++) {
+            int node = order[i];
+            newLabel[i] = label[node];
+            newFirstChild[i] = firstChild[node] == NONE ? NONE : newNode[firstChild[node]];
+            newNextSibling[i] = nextSibling[node] == NONE ? NONE : newNode[nextSibling[node]];
+            newParent[i] = parent[node] == NONE ? NONE : newNode[parent[node]];
+            newSubtreeSize[i] = subtreeSize[node];
+            newPostingsOffset[i] = postingsOffset[node] == NONE ? NONE : postings;
+            // the postings of a node are numbered in a row, in list order
+            for (int p = postingsOffset[node]; p != NONE; p = nextPosting[p]) {
+                newPostingItem[postings] = postingItem[p];
+                newPostingKey[postings] = postingKey[p];
+                newKeywordIndex[postings] = keywordIndex[p];
+                newNOfKeywords[postings] = nOfKeywords[p];
+                newNextPosting[postings] = nextPosting[p] == NONE ? NONE : postings + 1;
+                int[] later = laterIndexes.isEmpty() ? null : laterIndexes.get(p);
+                if (later != null) {
+                    newLaterIndexes.put(postings, later);
+                }
+                postings++;
+            }
+        }
+
+        label = newLabel;
+        firstChild = newFirstChild;
+        nextSibling = newNextSibling;
+        parent = newParent;
+        postingsOffset = newPostingsOffset;
+        subtreeSize = newSubtreeSize;
+        nodeCount = nodes;
+        freeNodes = NONE;
+        postingItem = newPostingItem;
+        postingKey = newPostingKey;
+        keywordIndex = newKeywordIndex;
+        nOfKeywords = newNOfKeywords;
+        nextPosting = newNextPosting;
+        postingCount = postings;
+        freePostings = NONE;
+        laterIndexes.clear();
+        laterIndexes.putAll(newLaterIndexes);
+        return before - estimateRetainedBytes();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder("root{");
+        appendChildren(ROOT, str);
+        str.append("}");
+        return str.toString();
+    }
+
+    @Override
+    KeywordMatches<T> getKeywordMatches(String keyword) throws NoAssociatedObjectsException {
+        int node = getNode(keyword);
+        if (node == NONE) {
+            throw new NoAssociatedObjectsException();
+        }
+        return new Subtree(node);
+    }
+
+    @Override
+    Map<String, KeywordMatches<T>> getKeywordMatches(List<String> sortedKeywords) {
+        Map<String, KeywordMatches<T>> matches = new HashMap<>();
+        for (String keyword : sortedKeywords) {
+            int node = getNode(keyword);
+            if (node != NONE) {
+                matches.put(keyword, new Subtree(node));
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * @return the # of node slots that have been used, including slots that have been freed for reuse.
+     */
+    int getNodeSlotsUsed() {
+        return nodeCount;
+    }
+
+    /**
+     * @return the node that corresponds to the final character of the keyword, or NONE if there is no such node.
+     * */
+    private int getNode(String keyword) {
+        int node = ROOT;
+        for (int i = 0; i < keyword.length() && node != NONE; i++) {
+            node = getChild(node, keyword.charAt(i));
+        }
+        return node;
+    }
+
+    private int getChild(int node, char c) {
+        int child = firstChild[node];
+        // children are sorted, so the search can stop at the first larger character
+        while (child != NONE && label[child] < c) {
+            child = nextSibling[child];
+        }
+        return child != NONE && label[child] == c ? child : NONE;
+    }
+
+    private int getOrAddChild(int node, char c) {
+        int previous = NONE;
+        int child = firstChild[node];
+        while (child != NONE && label[child] < c) {
+            previous = child;
+            child = nextSibling[child];
+        }
+        if (child != NONE && label[child] == c) {
+            return child;
+        }
+        int added = allocateNode(c, node);
+        nextSibling[added] = child;
+        if (previous == NONE) {
+            firstChild[node] = added;
+        }
+        else {
+            nextSibling[previous] = added;
+        }
+        return added;
+    }
+
+    /**
+     * @return the posting the item is stored in, which is the item's existing posting under the node if it has one.
+     * */
+    private int addPosting(int node, T item, Object key, int index, int nOfNameKeywords) {
+        for (int p = postingsOffset[node]; p != NONE; p = nextPosting[p]) {
+            if (Objects.equals(postingKey[p], key)) {
+                postingItem[p] = item;
+                keywordIndex[p] = index;
+                nOfKeywords[p] = nOfNameKeywords;
+                if (!laterIndexes.isEmpty()) {
+                    laterIndexes.remove(p);
+                }
+                return p;
+            }
+        }
+        int p = allocatePosting();
+        postingItem[p] = item;
+        postingKey[p] = key;
+        keywordIndex[p] = index;
+        nOfKeywords[p] = nOfNameKeywords;
+        nextPosting[p] = postingsOffset[node];
+        postingsOffset[node] = p;
+        for (int n = node; n != NONE; n = parent[n]) {
+            subtreeSize[n]++;
+        }
+        return p;
+    }
+
+    private void addLaterIndex(int p, int index) {
+        int[] later = laterIndexes.get(p);
+        if (later == null) {
+            later = new int[] {index};
+        }
+        else {
+            later = Arrays.copyOf(later, later.length + 1);
+            later[later.length - 1] = index;
+        }
+        laterIndexes.put(p, later);
+    }
+
+    private void removePosting(int node, Object key) {
+        int previous = NONE;
+        for (int p = postingsOffset[node]; p != NONE; p = nextPosting[p]) {
+            if (Objects.equals(postingKey[p], key)) {
+                if (previous == NONE) {
+                    postingsOffset[node] = nextPosting[p];
+                }
+                else {
+                    nextPosting[previous] = nextPosting[p];
+                }
+                freePosting(p);
+                for (int n = node; n != NONE; n = parent[n]) {
+                    subtreeSize[n]--;
+                }
+                return;
+            }
+            previous = p;
+        }
+    }
+
+    /**
+     * Removes the unique branch that leads to a node, if the node no longer has any postings or children.
+     * */
+    private void prune(int node) {
+        if (firstChild[node] != NONE || postingsOffset[node] != NONE) {
+            return;
+        }
+        int top = node;
+        while (parent[top] != ROOT && firstChild[parent[top]] == top && nextSibling[top] == NONE
+                && postingsOffset[parent[top]] == NONE) {
+            top = parent[top];
+        }
+
+        int branchBase = parent[top];
+        if (firstChild[branchBase] == top) {
+            firstChild[branchBase] = nextSibling[top];
+        }
+        else {
+            int sibling = firstChild[branchBase];
+            while (nextSibling[sibling] != top) {
+                sibling = nextSibling[sibling];
+            }
+            nextSibling[sibling] = nextSibling[top];
+        }
+        // every node in the removed branch has at most one child
+        for (int n = top; n != NONE; ) {
+            int child = firstChild[n];
+            freeNode(n);
+            n = child;
+        }
+    }
+
+    private int allocateNode(char c, int parentNode) {
+        int node;
+        if (freeNodes != NONE) {
+            node = freeNodes;
+            freeNodes = nextSibling[node];
+        }
+        else {
+            if (nodeCount == label.length) {
+                int length = label.length + Math.max(CHUNK, label.length >> 1);
+                label = Arrays.copyOf(label, length);
+                firstChild = Arrays.copyOf(firstChild, length);
+                nextSibling = Arrays.copyOf(nextSibling, length);
+                parent = Arrays.copyOf(parent, length);
+                postingsOffset = Arrays.copyOf(postingsOffset, length);
+                subtreeSize = Arrays.copyOf(subtreeSize, length);
+            }
+            node = nodeCount++;
+        }
+        label[node] = c;
+        firstChild[node] = NONE;
+        nextSibling[node] = NONE;
+        parent[node] = parentNode;
+        postingsOffset[node] = NONE;
+        subtreeSize[node] = 0;
+        return node;
+    }
+
+    private void freeNode(int node) {
+        label[node] = '\0';
+        firstChild[node] = NONE;
+        parent[node] = NONE;
+        postingsOffset[node] = NONE;
+        nextSibling[node] = freeNodes;
+        freeNodes = node;
+    }
+
+    private int allocatePosting() {
+        if (freePostings != NONE) {
+            int p = freePostings;
+            freePostings = nextPosting[p];
+            return p;
+        }
+        if (postingCount == postingItem.length) {
+            int length = postingItem.length + Math.max(CHUNK, postingItem.length >> 1);
+            postingItem = Arrays.copyOf(postingItem, length);
+            postingKey = Arrays.copyOf(postingKey, length);
+            keywordIndex = Arrays.copyOf(keywordIndex, length);
+            nOfKeywords = Arrays.copyOf(nOfKeywords, length);
+            nextPosting = Arrays.copyOf(nextPosting, length);
+        }
+        return postingCount++;
+    }
+
+    private void freePosting(int p) {
+        postingItem[p] = null;
+        postingKey[p] = null;
+        nOfKeywords[p] = 0;
+        nextPosting[p] = freePostings;
+        freePostings = p;
+        if (!laterIndexes.isEmpty()) {
+            laterIndexes.remove(p);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private TrieNode.objectAssociation<T> association(int p) {
+        TrieNode.objectAssociation<T> association =
+                new TrieNode.objectAssociation<>((T) postingItem[p], postingKey[p], keywordIndex[p], nOfKeywords[p]);
+        if (!laterIndexes.isEmpty()) {
+            association.laterIndexes = laterIndexes.get(p);
+        }
+        return association;
+    }
+
+    private void appendChildren(int node, StringBuilder str) {
+        for (int child = firstChild[node]; child != NONE; child = nextSibling[child]) {
+            appendNode(child, str);
+            if (nextSibling[child] != NONE) {
+                str.append(",");
+            }
+        }
+    }
+
+    private void appendNode(int node, StringBuilder str) {
+        str.append(label[node]);
+        int child = firstChild[node];
+        if (child == NONE) {
+            return;
+        }
+        if (nextSibling[child] == NONE) {
+            appendNode(child, str);
+        }
+        else {
+            str.append("{");
+            appendChildren(node, str);
+            str.append("}");
+        }
+    }
+
+    /**
+     * The matches of a search keyword, i.e. the subtree below the keyword's node.
+     * */
+    private class Subtree implements KeywordMatches<T> {
+        private final int node;
+
+        Subtree(int node) {
+            this.node = node;
+        }
+
+        @Override
+        public int getSubtreeSize() {
+            return subtreeSize[node];
+        }
+
+        @Override
+        public Stream<TrieNode.objectAssociation<T>> streamAssociations(int splitThreshold) {
+            return StreamSupport.stream(new SubtreeSpliterator(node, splitThreshold), subtreeSize[node] >= splitThreshold);
+        }
+
+        @Override
+        public void forEachAssociation(BiConsumer<CharSequence, TrieNode.objectAssociation<T>> action) {
+            forEachPosting(node, new StringBuilder(), action);
+        }
+
+        private void forEachPosting(int node, StringBuilder rest, BiConsumer<CharSequence, TrieNode.objectAssociation<T>> action) {
+            for (int p = postingsOffset[node]; p != NONE; p = nextPosting[p]) {
+                action.accept(rest, association(p));
+            }
+            for (int child = firstChild[node]; child != NONE; child = nextSibling[child]) {
+                rest.append(label[child]);
+                forEachPosting(child, rest, action);
+                rest.setLength(rest.length() - 1);
+            }
+        }
+    }
+
+    /**
+     * Walks the postings of a subtree, see {@link TrieNodeSpliterator}.
+     * Unvisited nodes are kept in an int deque: pushed and popped at the top, split off from the bottom.
+     * */
+    private class SubtreeSpliterator implements Spliterator<TrieNode.objectAssociation<T>> {
+        private int[] pending = new int[16];
+        private int bottom = 0;
+        private int top = 0;
+        private int posting = NONE; // next posting of the node being visited
+        private final int splitThreshold;
+        private long estimate;
+
+        SubtreeSpliterator(int node, int splitThreshold) {
+            this.splitThreshold = splitThreshold;
+            push(node);
+            estimate = subtreeSize[node];
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super TrieNode.objectAssociation<T>> action) {
+            while (posting == NONE) {
+                if (top == bottom) {
+                    return false;
+                }
+                visitNext();
+            }
+            action.accept(association(posting));
+            posting = nextPosting[posting];
+            return true;
+        }
+
+        @Override
+        public Spliterator<TrieNode.objectAssociation<T>> trySplit() {
+            if (estimate < splitThreshold) {
+                return null;
+            }
+            while (top - bottom == 1 && posting == NONE) {
+                visitNext();
+            }
+            int toGive = posting != NONE ? (top - bottom + 1) / 2 : (top - bottom) / 2;
+            if (toGive == 0) {
+                return null;
+            }
+            SubtreeSpliterator split = new SubtreeSpliterator(pending[bottom++], splitThreshold);
+            for (int i = 1; i < toGive; i++) {
+                int node = pending[bottom++];
+                split.push(node);
+                split.estimate += subtreeSize[node];
+            }
+            estimate = Math.max(0, estimate - split.estimate);
+            return split;
+        }
+
+        @Override
+        public long estimateSize() {
+            return estimate;
+        }
+
+        @Override
+        public int characteristics() {
+            return NONNULL;
+        }
+
+        private void visitNext() {
+            int node = pending[--top];
+            for (int child = firstChild[node]; child != NONE; child = nextSibling[child]) {
+                push(child);
+            }
+            posting = postingsOffset[node];
+        }
+
+        private void push(int node) {
+            if (top == pending.length) {
+                if (bottom > 0) {
+                    System.arraycopy(pending, bottom, pending, 0, top - bottom);
+                }
+                else {
+                    pending = Arrays.copyOf(pending, pending.length * 2);
+                }
+                top -= bottom;
+                bottom = 0;
+            }
+            pending[top++] = node;
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package com.gmail.adamvdvoorn;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p>
+ * A TrieMap with a limit on the # of items it holds, or on their estimated size, for caches of recent items that
+ * must not grow without bound.
+ *
+ * Items are kept in least recently used order, where an item is used when it is put, or returned by a search.
+ * Once a put takes the map over its limits, the least recently used items are removed until it is back under them.
+ * Items are removed through the reverse index, so evicting an item costs O(n) in the # of its keywords, prunes the
+ * nodes only it used, and never scans the trie.
+ *
+ * With a time to live, items that have not been used for that long are also removed, by a background thread.
+ *
+ * An item's size is estimated from its keywords when it is put, and the total is kept up to date as items are put and
+ * removed. Nodes are shared between items, so they are left out of the estimate.
+ *
+ * Safe to use from multiple threads. Searches run concurrently with each other, mutations run one at a time.
+ * </p>
+ * @param <T> the type of item to store in the trie.
+ * */
+public class BoundedTrieMap<T> implements Closeable {
+    /* estimated sizes, with compressed references */
+    // the item's entry in the usage order and the reverse index
+    static final int ITEM_BYTES = 96;
+    // an association, its HashMap entry, and its slot in the reverse index
+    static final int KEYWORD_BYTES = 72;
+
+    private final TrieMap<T> map;
+    private final int maxItems;
+    private final long maxBytes;
+    private final long timeToLiveNanos; // 0 for no time to live
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // item key -> entry, least recently used first. guarded by itself, as searches reorder it under the read lock
+    private final LinkedHashMap<Object, Entry<T>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long retainedBytes = 0; // guarded by the write lock
+    private final ScheduledExecutorService sweeper; // null for no time to live
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a map with a default TrieMap that holds at most maxItems items.
+     * @param maxItems the most items the map holds.
+     * */
+    public BoundedTrieMap(int maxItems) {
+        this(new TrieMap<>(), maxItems, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * @param map the empty TrieMap the items are kept in, with the patterns and comparator to use.
+     *            Its reverse index is enabled. It must not be changed other than through this map.
+     * @param maxItems the most items the map holds.
+     * @param maxBytes the largest estimated size of the items the map holds, see {@link #getRetainedBytes()}.
+     * @param timeToLive how long an item is kept after it was last used, or null to keep items until they are evicted.
+     * */
+    public BoundedTrieMap(TrieMap<T> map, int maxItems, long maxBytes, Duration timeToLive) {
+        if (maxItems < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("invalid limits: " + maxItems + ", " + maxBytes);
+        }
+        if (timeToLive != null && (timeToLive.isNegative() || timeToLive.isZero())) {
+            throw new IllegalArgumentException("timeToLive must be positive: " + timeToLive);
+        }
+        if (!map.items().isEmpty()) {
+            throw new IllegalArgumentException("the TrieMap must be empty");
+        }
+        map.enableReverseIndex();
+        this.map = map;
+        this.maxItems = maxItems;
+        this.maxBytes = maxBytes;
+        if (timeToLive == null) {
+            this.timeToLiveNanos = 0;
+            this.sweeper = null;
+        }
+        else {
+            this.timeToLiveNanos = timeToLive.toNanos();
+            this.sweeper = Executors.newSingleThreadScheduledExecutor((r) -> {
+                Thread thread = new Thread(r, "trie-map-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            });
+            // expired items are removed within half the time to live of expiring
+            long period = Math.max(timeToLiveNanos / 2, TimeUnit.MILLISECONDS.toNanos(10));
+            sweeper.scheduleWithFixedDelay(this::sweep, period, period, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * puts an item in the trie with the given name, see {@link TrieMap#put(String, Object)},
+     * then evicts the least recently used items while the map is over its limits.
+     * An item larger than the size limit on its own is evicted straight away.
+     * @param name the name of the object.
+     * @param item the item that is associated with the given name.
+     * */
+    public void put(String name, T item) {
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            List<String> keywords = map.processName(name);
+            map.putKeywords(keywords, item);
+            Object key = map.keyOf(item);
+            long bytes = KEYWORD_BYTES * (long) keywords.size();
+            synchronized (entries) {
+                Entry<T> entry = entries.get(key);
+                if (entry == null) {
+                    entry = new Entry<>(item);
+                    entries.put(key, entry);
+                    bytes += ITEM_BYTES;
+                }
+                entry.item = item;
+                entry.bytes += bytes;
+                entry.lastUsed = System.nanoTime();
+            }
+            retainedBytes += bytes;
+            evict();
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * removes an item from the trie, see {@link TrieMap#remove(String, Object)}.
+     * @param name the name of the object.
+     * @param item the item that is associated with the given name.
+     * @throws NoAssociatedObjectsException if an item under that name does not exist.
+     * */
+    public void remove(String name, T item) throws NoAssociatedObjectsException {
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            List<String> keywords = map.processName(name);
+            map.removeKeywords(keywords, item);
+            Object key = map.keyOf(item);
+            synchronized (entries) {
+                Entry<T> entry = entries.get(key);
+                if (entry == null) {
+                    return;
+                }
+                if (!map.hasKeywords(key)) {
+                    entries.remove(key);
+                    retainedBytes -= entry.bytes;
+                }
+                else {
+                    long bytes = Math.min(KEYWORD_BYTES * (long) keywords.size(), entry.bytes - ITEM_BYTES);
+                    entry.bytes -= bytes;
+                    retainedBytes -= bytes;
+                }
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * removes an item from the trie, under every name it was put with, see {@link TrieMap#remove(Object)}.
+     * @param item the item to remove.
+     * @throws NoAssociatedObjectsException if the item is not in the trie.
+     * */
+    public void remove(T item) throws NoAssociatedObjectsException {
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            Object key = map.keyOf(item);
+            Entry<T> entry;
+            synchronized (entries) {
+                entry = entries.get(key);
+            }
+            if (entry == null) {
+                throw new NoAssociatedObjectsException();
+            }
+            evict(key, entry);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Searches the trie, see {@link TrieMap#search(String)}. The items returned count as used.
+     * @param name the name of the item to search for.
+     * @return the matching items, ordered by the comparator of the TrieMap.
+     * */
+    public List<T> search(String name) {
+        lock.readLock().lock();
+        try {
+            List<T> results = map.search(name);
+            long now = System.nanoTime();
+            synchronized (entries) {
+                for (T item : results) {
+                    Entry<T> entry = entries.get(map.keyOf(item)); // moves the item to the end of the usage order
+                    if (entry != null) {
+                        entry.lastUsed = now;
+                    }
+                }
+            }
+            return results;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the # of items in the map.
+     * */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return the estimated # of bytes used by the items in the map, excluding the nodes they share.
+     * */
+    public long getRetainedBytes() {
+        lock.readLock().lock();
+        try {
+            return retainedBytes;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stops the background sweeper. The map can no longer be changed.
+     * */
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            closed = true;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        if (sweeper != null) {
+            sweeper.shutdown();
+        }
+    }
+
+    /**
+     * Removes the items that have not been used within the time to live.
+     * Costs O(n) in the # of keywords of the expired items, as they are at the start of the usage order.
+     * */
+    void sweep() {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            long now = System.nanoTime();
+            while (true) {
+                Map.Entry<Object, Entry<T>> eldest;
+                synchronized (entries) {
+                    if (entries.isEmpty()) {
+                        return;
+                    }
+                    eldest = entries.entrySet().iterator().next();
+                    if (now - eldest.getValue().lastUsed < timeToLiveNanos) {
+                        return;
+                    }
+                }
+                evict(eldest.getKey(), eldest.getValue());
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Evicts the least recently used items while the map is over its limits. Called with the write lock held.
+     * */
+    private void evict() {
+        while (true) {
+            Map.Entry<Object, Entry<T>> eldest;
+            synchronized (entries) {
+                if (entries.isEmpty() || entries.size() <= maxItems && retainedBytes <= maxBytes) {
+                    return;
+                }
+                eldest = entries.entrySet().iterator().next();
+            }
+            evict(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    /**
+     * Removes an item under every name it was put with. Called with the write lock held.
+     * */
+    private void evict(Object key, Entry<T> entry) {
+        try {
+            map.remove(entry.item);
+        }
+        catch (NoAssociatedObjectsException e) {
+            // the item was only put with names that have no keywords
+        }
+        synchronized (entries) {
+            entries.remove(key);
+        }
+        retainedBytes -= entry.bytes;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("the map is closed");
+        }
+    }
+
+    private static final class Entry<T> {
+        private T item;
+        private long bytes = 0;
+        private long lastUsed;
+
+        Entry(T item) {
+            this.item = item;
+        }
+    }
+}
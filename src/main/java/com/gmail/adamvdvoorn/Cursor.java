@@ -0,0 +1,38 @@
+package com.gmail.adamvdvoorn;
+
+import java.util.Set;
+
+/**
+ * <p>
+ * Where a page of search results ended, see {@link TrieMap#searchPage(String, int, Cursor)}.
+ *
+ * Holds the query and the last result of the page, with what it was ranked by, rather than an offset, so the next
+ * page starts after that result wherever it now is in the results. Results that the page order cannot tell apart
+ * from the last one are told apart by the keys of those already returned, which the cursor also holds.
+ * A cursor can be used with the map it came from, and with its snapshots, any number of times.
+ * </p>
+ * */
+public final class Cursor {
+    private final String query;
+    private final Object lastResult; // a TrieMap.SearchResult
+    // the keys of the results returned so far that rank the same as the last one, including its own
+    private final Set<Object> tiedKeys;
+
+    Cursor(String query, Object lastResult, Set<Object> tiedKeys) {
+        this.query = query;
+        this.lastResult = lastResult;
+        this.tiedKeys = tiedKeys;
+    }
+
+    String getQuery() {
+        return query;
+    }
+
+    Object getLastResult() {
+        return lastResult;
+    }
+
+    Set<Object> getTiedKeys() {
+        return tiedKeys;
+    }
+}
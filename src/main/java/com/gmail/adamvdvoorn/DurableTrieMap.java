@@ -0,0 +1,357 @@
+package com.gmail.adamvdvoorn;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * <p>
+ * A TrieMap that survives restarts, by logging every put and remove to a directory.
+ *
+ * Every mutation is applied to the map in memory, then appended to a log segment as a small binary record.
+ * Records are written and synced in batches by a background thread, and put and remove wait until their record is
+ * as durable as the sync policy requires.
+ * Once a log segment grows past a size limit, a checkpoint is written in the background: a snapshot of the whole map
+ * (see {@link TrieMap#writeSnapshot(Path, ItemCodec)}), after which the older segments are deleted.
+ * Opening the directory again loads the latest checkpoint and replays the log segments written after it,
+ * so recovery time depends on the length of the log, not the size of the map.
+ *
+ * Safe to use from multiple threads. Searches run concurrently with each other, mutations run one at a time.
+ * </p>
+ * @param <T> the type of item to store in the trie.
+ * */
+public class DurableTrieMap<T> implements Closeable {
+    /**
+     * When log records are synced to disk.
+     * */
+    public enum SyncPolicy {
+        /** before put or remove returns. */
+        ALWAYS,
+        /** at least once a second. put and remove return once their record is written. */
+        PERIODIC,
+        /** only when a checkpoint is written or the map is closed, otherwise left to the operating system. */
+        NEVER
+    }
+
+    private static final String CHECKPOINT = "checkpoint-";
+    private static final String LOG = "log-";
+    private static final long DEFAULT_CHECKPOINT_BYTES = 64L << 20;
+
+    private final Path directory;
+    private final ItemCodec<T> codec;
+    private final TrieMap<T> map;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final MutationLog<T> log;
+    private final ExecutorService checkpointer;
+    private final AtomicBoolean checkpointPending = new AtomicBoolean(false);
+    private final Object checkpointLock = new Object(); // one checkpoint at a time
+    private long segment; // the log segment being written to, guarded by the write lock
+    private volatile boolean closed = false;
+
+    private DurableTrieMap(Path directory, ItemCodec<T> codec, TrieMap<T> map, long segment, SyncPolicy syncPolicy,
+                           long checkpointBytes) throws IOException {
+        this.directory = directory;
+        this.codec = codec;
+        this.map = map;
+        this.segment = segment;
+        this.checkpointer = Executors.newSingleThreadExecutor((r) -> {
+            Thread thread = new Thread(r, "trie-map-checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.log = new MutationLog<>(directory, segment, codec, syncPolicy, checkpointBytes, this::checkpointInBackground);
+    }
+
+    /**
+     * Opens a durable map with a default TrieMap, periodic syncing, and a checkpoint every 64MB of log.
+     * @param directory the directory the checkpoints and log are kept in. created if it does not exist.
+     * @param codec converts the items to and from bytes.
+     * @return the map, recovered from the directory's contents.
+     * @throws IOException if the directory cannot be read, or its latest checkpoint is corrupt.
+     * */
+    public static <T> DurableTrieMap<T> open(Path directory, ItemCodec<T> codec) throws IOException {
+        return open(directory, codec, TrieMap::new, SyncPolicy.PERIODIC, DEFAULT_CHECKPOINT_BYTES);
+    }
+
+    /**
+     * Opens a durable map.
+     * @param directory the directory the checkpoints and log are kept in. created if it does not exist.
+     * @param codec converts the items to and from bytes.
+     * @param factory creates the empty TrieMap that is recovered into. should have the same patterns every time.
+     * @param syncPolicy when log records are synced to disk.
+     * @param checkpointBytes the size a log segment grows to before a checkpoint is written.
+     * @return the map, recovered from the directory's contents.
+     * @throws IOException if the directory cannot be read, or its latest checkpoint is corrupt.
+     * */
+    public static <T> DurableTrieMap<T> open(Path directory, ItemCodec<T> codec, Supplier<TrieMap<T>> factory,
+                                             SyncPolicy syncPolicy, long checkpointBytes) throws IOException {
+        if (checkpointBytes < 1) {
+            throw new IllegalArgumentException("checkpointBytes must be positive: " + checkpointBytes);
+        }
+        Files.createDirectories(directory);
+        long checkpoint = -1;
+        long lastSegment = -1;
+        List<Long> segments = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    // a checkpoint that was never finished
+                    Files.delete(file);
+                }
+                else if (name.startsWith(CHECKPOINT)) {
+                    checkpoint = Math.max(checkpoint, Long.parseLong(name.substring(CHECKPOINT.length())));
+                }
+                else if (name.startsWith(LOG)) {
+                    long number = Long.parseLong(name.substring(LOG.length()));
+                    segments.add(number);
+                    lastSegment = Math.max(lastSegment, number);
+                }
+            }
+        }
+
+        TrieMap<T> map = factory.get();
+        if (checkpoint >= 0) {
+            TrieMap.readSnapshot(checkpointPath(directory, checkpoint), codec, map);
+        }
+        // checkpoint n holds every mutation logged in the segments before n
+        Collections.sort(segments);
+        try {
+            for (long number : segments) {
+                if (number >= checkpoint) {
+                    MutationLog.replay(MutationLog.segmentPath(directory, number), codec, (op, name, item) -> apply(map, op, name, item));
+                }
+            }
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        // start a new segment, rather than appending after a record that may have been cut short
+        long segment = Math.max(checkpoint, lastSegment) + 1;
+        return new DurableTrieMap<>(directory, codec, map, segment, syncPolicy, checkpointBytes);
+    }
+
+    /**
+     * puts an item in the trie with the given name, see {@link TrieMap#put(String, Object)}.
+     * @param name the name of the object.
+     * @param item the item that is associated with the given name.
+     * @throws IOException if the put could not be logged. the item is still in the map until it is reopened.
+     * */
+    public void put(String name, T item) throws IOException {
+        CompletableFuture<Void> logged;
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            map.put(name, item);
+            logged = log.append(MutationLog.PUT, name, item);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        await(logged);
+    }
+
+    /**
+     * removes an item from the trie, see {@link TrieMap#remove(String, Object)}.
+     * @param name the name of the object.
+     * @param item the item that is associated with the given name.
+     * @throws NoAssociatedObjectsException if an item under that name does not exist.
+     * @throws IOException if the remove could not be logged. the item stays removed until the map is reopened.
+     * */
+    public void remove(String name, T item) throws NoAssociatedObjectsException, IOException {
+        CompletableFuture<Void> logged;
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            try {
+                map.remove(name, item);
+            }
+            finally {
+                // a remove that fails part way still changes the map, and replaying it repeats the same changes
+                logged = log.append(MutationLog.REMOVE, name, item);
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        await(logged);
+    }
+
+    /**
+     * @see TrieMap#search(String)
+     * */
+    public List<T> search(String name) {
+        lock.readLock().lock();
+        try {
+            return map.search(name);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @see TrieMap#items()
+     * */
+    public Collection<T> items() {
+        lock.readLock().lock();
+        try {
+            return map.items();
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes a checkpoint of the whole map and deletes the log segments it replaces.
+     * Searches continue while the checkpoint is written, but puts and removes wait for it.
+     * @throws IOException if the checkpoint could not be written. the log is left as it was.
+     * */
+    public void checkpoint() throws IOException {
+        synchronized (checkpointLock) {
+            long checkpoint;
+            CompletableFuture<Void> rotated;
+            Path tmp;
+            lock.writeLock().lock();
+            try {
+                checkOpen();
+                // every mutation before this point goes to the old segments, and into the checkpoint
+                checkpoint = ++segment;
+                rotated = log.rotate(checkpoint);
+                lock.readLock().lock();
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+            try {
+                tmp = directory.resolve(checkpointPath(directory, checkpoint).getFileName() + ".tmp");
+                map.writeSnapshot(tmp, codec);
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+            await(rotated);
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(tmp, checkpointPath(directory, checkpoint), StandardCopyOption.ATOMIC_MOVE);
+
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    String name = file.getFileName().toString();
+                    if (name.startsWith(CHECKPOINT) && !name.endsWith(".tmp")
+                            && Long.parseLong(name.substring(CHECKPOINT.length())) < checkpoint
+                            || name.startsWith(LOG) && Long.parseLong(name.substring(LOG.length())) < checkpoint) {
+                        Files.delete(file);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for every logged mutation to be synced, then stops the background threads.
+     * @throws IOException if the log could not be synced.
+     * */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        checkpointer.shutdown();
+        try {
+            checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.close();
+    }
+
+    /**
+     * Waits for a log operation to finish.
+     * @throws IOException if the log operation failed.
+     * */
+    static void await(CompletableFuture<Void> future) throws IOException {
+        try {
+            future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the log");
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static <T> void apply(TrieMap<T> map, byte op, String name, T item) {
+        if (op == MutationLog.PUT) {
+            map.put(name, item);
+        }
+        else if (op == MutationLog.REMOVE) {
+            try {
+                map.remove(name, item);
+            }
+            catch (NoAssociatedObjectsException e) {
+                // the original remove failed the same way
+            }
+        }
+        else {
+            throw new UncheckedIOException(new IOException("log is corrupt: unknown op " + op));
+        }
+    }
+
+    private static Path checkpointPath(Path directory, long checkpoint) {
+        return directory.resolve(String.format(CHECKPOINT + "%019d", checkpoint));
+    }
+
+    private void checkpointInBackground() {
+        if (!closed && checkpointPending.compareAndSet(false, true)) {
+            try {
+                checkpointer.execute(() -> {
+                    try {
+                        checkpoint();
+                    }
+                    catch (IOException | IllegalStateException e) {
+                        // the log is left as it was, so the next full segment tries again
+                    }
+                    finally {
+                        checkpointPending.set(false);
+                    }
+                });
+            }
+            catch (RejectedExecutionException e) {
+                // closing
+                checkpointPending.set(false);
+            }
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("the map is closed");
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package com.gmail.adamvdvoorn;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+/**
+ * com.gmail.adamvdvoorn.HotPrefixCache
+ * Keeps the matches of the most searched broad keywords in flat lists, see {@link TrieMap#enableHotPrefixCache(long, int)}.
+ *
+ * Every lookup of a node with a large subtree is counted. Once a node has been looked up often enough, its subtree is
+ * collected into a list once, and searches stream that list instead of walking the subtree. Puts and removes below a
+ * pinned node update its list in place. Counts are halved every so often, so nodes that stop being searched cool down,
+ * and the coldest pinned nodes are unpinned to make room for hotter ones once the memory budget is used up.
+ *
+ * Lookups are safe from multiple searching threads. Updates are made by the thread changing the trie.
+ * */
+final class HotPrefixCache<T> {
+    // lookups before a node is pinned
+    private static final int PIN_HITS = 8;
+    // every node's count is halved after this many lookups
+    private static final int DECAY_INTERVAL = 1 << 12;
+    // estimated cost of an association in a pinned list: the list slot, and its entry, key and index in the slot map
+    static final int ASSOCIATION_BYTES = 80;
+
+    private final long budgetBytes;
+    private final int minSubtreeSize;
+    // the broad nodes that have been looked up recently, pinned or not
+    private final Map<TrieNode<T>, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicInteger lookups = new AtomicInteger();
+    private long usedBytes = 0; // guarded by this
+
+    HotPrefixCache(long budgetBytes, int minSubtreeSize) {
+        this.budgetBytes = budgetBytes;
+        this.minSubtreeSize = minSubtreeSize;
+    }
+
+    /**
+     * Counts a lookup of a node, pinning it if it has become hot.
+     * @return the node's pinned matches, or the node itself if it is not pinned.
+     * */
+    KeywordMatches<T> lookup(TrieNode<T> node) {
+        if (node.getSubtreeSize() < minSubtreeSize) {
+            return node;
+        }
+        if (lookups.incrementAndGet() % DECAY_INTERVAL == 0) {
+            decay();
+        }
+        Entry entry = entries.computeIfAbsent(node, (n) -> new Entry());
+        int hits = entry.hits.incrementAndGet();
+        Pinned pinned = entry.pinned;
+        if (pinned == null && hits >= PIN_HITS) {
+            pinned = pin(node, entry);
+        }
+        return pinned == null ? node : pinned;
+    }
+
+    /**
+     * Adds an association to the pinned lists of the node and its ancestors,
+     * replacing the association the node held for the same item.
+     * */
+    void added(TrieNode<T> node, TrieNode.objectAssociation<T> association) {
+        Slot slot = new Slot(node, association.key);
+        for (TrieNode<T> ancestor = node; ancestor != null; ancestor = ancestor.getParent()) {
+            Entry entry = entries.get(ancestor);
+            if (entry != null && entry.pinned != null && entry.pinned.add(slot, association)) {
+                synchronized (this) {
+                    usedBytes += ASSOCIATION_BYTES;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the association a node held for an item from the pinned lists of the node and its ancestors.
+     * */
+    void removed(TrieNode<T> node, Object key) {
+        Slot slot = new Slot(node, key);
+        for (TrieNode<T> ancestor = node; ancestor != null; ancestor = ancestor.getParent()) {
+            Entry entry = entries.get(ancestor);
+            if (entry != null && entry.pinned != null && entry.pinned.remove(slot)) {
+                synchronized (this) {
+                    usedBytes -= ASSOCIATION_BYTES;
+                    // a node that no longer holds anything has been pruned from the trie
+                    if (entry.pinned.associations.isEmpty()) {
+                        entry.pinned = null;
+                        entries.remove(ancestor);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the estimated # of bytes used by the pinned lists.
+     * */
+    synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @return the # of pinned nodes.
+     * */
+    int getPinnedCount() {
+        int pinned = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.pinned != null) {
+                pinned++;
+            }
+        }
+        return pinned;
+    }
+
+    /**
+     * Pins a node if the budget has room for it, after unpinning colder nodes if needed.
+     * @return the node's pinned matches, or null if it was not pinned.
+     * */
+    private synchronized Pinned pin(TrieNode<T> node, Entry entry) {
+        if (entry.pinned != null) {
+            return entry.pinned; // pinned by another search in the meantime
+        }
+        long cost = (long) node.getSubtreeSize() * ASSOCIATION_BYTES;
+        if (cost > budgetBytes) {
+            return null;
+        }
+        if (usedBytes + cost > budgetBytes) {
+            List<Entry> colder = new ArrayList<>();
+            for (Entry other : entries.values()) {
+                if (other.pinned != null && other.hits.get() < entry.hits.get()) {
+                    colder.add(other);
+                }
+            }
+            colder.sort(Comparator.comparingInt((e) -> e.hits.get()));
+            long freeable = 0;
+            for (Entry other : colder) {
+                freeable += other.cost();
+            }
+            if (usedBytes - freeable + cost > budgetBytes) {
+                return null;
+            }
+            for (int i = 0; usedBytes + cost > budgetBytes; i++) {
+                usedBytes -= colder.get(i).cost();
+                colder.get(i).pinned = null;
+            }
+        }
+        Pinned pinned = new Pinned(node);
+        collect(node, pinned);
+        entry.pinned = pinned;
+        usedBytes += pinned.cost();
+        return pinned;
+    }
+
+    /**
+     * Adds every association below a node to its pinned list, along with the node holding it.
+     * */
+    private void collect(TrieNode<T> root, Pinned pinned) {
+        Deque<TrieNode<T>> toVisit = new ArrayDeque<>();
+        toVisit.push(root);
+        while (!toVisit.isEmpty()) {
+            TrieNode<T> node = toVisit.pop();
+            for (TrieNode.objectAssociation<T> association : node.getAssociatedObjects()) {
+                pinned.add(new Slot(node, association.key), association);
+            }
+            for (TrieNode<T> child : node.getChildren()) {
+                toVisit.push(child);
+            }
+        }
+    }
+
+    /**
+     * Halves every count, and stops tracking unpinned nodes that have not been looked up since the last decay.
+     * */
+    private void decay() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            int hits = entry.hits.updateAndGet((h) -> h >> 1);
+            if (hits == 0 && entry.pinned == null) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private final class Entry {
+        private final AtomicInteger hits = new AtomicInteger();
+        private volatile Pinned pinned = null;
+
+        long cost() {
+            return pinned == null ? 0 : pinned.cost();
+        }
+    }
+
+    /**
+     * The matches of a pinned node, in a list that an association is added to and removed from in O(1).
+     * */
+    private final class Pinned implements KeywordMatches<T> {
+        private final TrieNode<T> node;
+        private final List<TrieNode.objectAssociation<T>> associations = new ArrayList<>();
+        private final List<Slot> slots = new ArrayList<>(); // slots.get(i) is where associations.get(i) is held
+        private final Map<Slot, Integer> indexes = new HashMap<>();
+
+        Pinned(TrieNode<T> node) {
+            this.node = node;
+        }
+
+        /**
+         * @return true if the association is new, false if it replaced the association in the same slot.
+         * */
+        boolean add(Slot slot, TrieNode.objectAssociation<T> association) {
+            Integer index = indexes.get(slot);
+            if (index != null) {
+                associations.set(index, association);
+                return false;
+            }
+            indexes.put(slot, associations.size());
+            associations.add(association);
+            slots.add(slot);
+            return true;
+        }
+
+        boolean remove(Slot slot) {
+            Integer index = indexes.remove(slot);
+            if (index == null) {
+                return false;
+            }
+            // move the last association into the gap
+            int last = associations.size() - 1;
+            if (index != last) {
+                associations.set(index, associations.get(last));
+                slots.set(index, slots.get(last));
+                indexes.put(slots.get(index), index);
+            }
+            associations.remove(last);
+            slots.remove(last);
+            return true;
+        }
+
+        long cost() {
+            return (long) associations.size() * ASSOCIATION_BYTES;
+        }
+
+        @Override
+        public int getSubtreeSize() {
+            return associations.size();
+        }
+
+        @Override
+        public Stream<TrieNode.objectAssociation<T>> streamAssociations(int splitThreshold) {
+            return associations.size() >= splitThreshold ? associations.parallelStream() : associations.stream();
+        }
+
+        /**
+         * Walks the pinned node's subtree, as the list does not hold the keywords.
+         * */
+        @Override
+        public void forEachAssociation(BiConsumer<CharSequence, TrieNode.objectAssociation<T>> action) {
+            node.forEachAssociation(action);
+        }
+    }
+
+    /**
+     * An association's place in the trie: the node holding it, and the item key it is held under.
+     * */
+    private static final class Slot {
+        private final TrieNode<?> node;
+        private final Object key;
+
+        Slot(TrieNode<?> node, Object key) {
+            this.node = node;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Slot)) {
+                return false;
+            }
+            Slot other = (Slot) o;
+            return node == other.node && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(node) + key.hashCode();
+        }
+    }
+}
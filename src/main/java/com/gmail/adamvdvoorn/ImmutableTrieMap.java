@@ -0,0 +1,243 @@
+package com.gmail.adamvdvoorn;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+/**
+ * <p>
+ * A read-only copy of a TrieMap, laid out for searching. Made by {@link TrieMap#toImmutable()}.
+ *
+ * Each node holds its child labels as a sorted char array, with the child nodes in a parallel array.
+ * A child is found by a linear scan when a node has a few children, and by a binary search otherwise.
+ * Nodes have no parent links and no HashMaps. Every association is kept in a single array, in the order of a
+ * pre-order walk of the trie, so the associations below any node are one contiguous range of that array,
+ * and streaming them is a plain array stream that splits evenly for parallel searches.
+ *
+ * Searching, sorting and ordering work exactly as in the TrieMap it was made from. It has no methods that change
+ * its items: the nodes and the association array are final, and never change after construction, so an
+ * ImmutableTrieMap can be searched from any number of threads without synchronization. The parallel thresholds
+ * inherited from {@link AbstractTrieMap} can still be set, and only change how later searches are run.
+ * To rebuild one periodically, publish each new copy through a volatile field or an AtomicReference, so that
+ * searches pick it up atomically.
+ * </p>
+ * @param <T> the type of item stored in the trie.
+ * */
+public final class ImmutableTrieMap<T> extends AbstractTrieMap<T> {
+    // nodes with more children than this are searched with a binary search
+    private static final int LINEAR_SEARCH_MAX = 8;
+    private static final char[] NO_LABELS = new char[0];
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private final Node root;
+    private final TrieNode.objectAssociation<T>[] associations; // in pre-order
+
+    /**
+     * @param source the map the settings are copied from.
+     * @param sourceRoot the root of the trie that is copied.
+     * */
+    @SuppressWarnings("unchecked")
+    ImmutableTrieMap(AbstractTrieMap<T> source, TrieNode<T> sourceRoot) {
+        super(source);
+        associations = (TrieNode.objectAssociation<T>[]) new TrieNode.objectAssociation<?>[sourceRoot.getSubtreeSize()];
+        int[] next = {0};
+        root = copy(sourceRoot, next);
+        assert next[0] == associations.length;
+    }
+
+    /**
+     * returns all the items in this map.
+     * O(n) complexity, where n is the # of associations. Unlike TrieMap, this does not walk the trie.
+     * @return all of the items in this map
+     */
+    @Override
+    public Collection<T> items() {
+        return distinctItems(new Subtree(root).streamAssociations(getParallelThreshold()));
+    }
+
+    @Override
+    boolean isEmpty() {
+        return associations.length == 0;
+    }
+
+    /**
+     * The associations are shared with the map this was copied from, and are counted by both.
+     * @return the estimated # of bytes of the nodes and the association array, see {@link TrieMap#estimateRetainedBytes()}.
+     */
+    @Override
+    public long estimateRetainedBytes() {
+        long bytes = TrieNode.arrayBytes((long) associations.length * 4);
+        for (TrieNode.objectAssociation<T> association : associations) {
+            bytes += association.estimateBytes();
+        }
+        Deque<Node> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Node node = pending.pop();
+            bytes += Node.BYTES;
+            if (node.labels.length > 0) {
+                bytes += TrieNode.arrayBytes((long) node.labels.length * Character.BYTES)
+                        + TrieNode.arrayBytes((long) node.children.length * 4);
+            }
+            for (Node child : node.children) {
+                pending.push(child);
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder("root{");
+        appendChildren(root, str);
+        str.append("}");
+        return str.toString();
+    }
+
+    @Override
+    KeywordMatches<T> getKeywordMatches(String keyword) throws NoAssociatedObjectsException {
+        Node node = getNode(keyword);
+        if (node == null) {
+            throw new NoAssociatedObjectsException();
+        }
+        return new Subtree(node);
+    }
+
+    @Override
+    Map<String, KeywordMatches<T>> getKeywordMatches(List<String> sortedKeywords) {
+        Map<String, KeywordMatches<T>> matches = new HashMap<>();
+        for (String keyword : sortedKeywords) {
+            Node node = getNode(keyword);
+            if (node != null) {
+                matches.put(keyword, new Subtree(node));
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Copies a node and its descendants, adding their associations to the array in pre-order.
+     * @param next the index in the association array to add the next association at.
+     * */
+    private Node copy(TrieNode<T> source, int[] next) {
+        int start = next[0];
+        for (TrieNode.objectAssociation<T> association : source.getAssociatedObjects()) {
+            associations[next[0]++] = association;
+        }
+        if (source.getChildren().isEmpty()) {
+            return new Node(NO_LABELS, NO_CHILDREN, start, next[0]);
+        }
+        List<TrieNode<T>> sourceChildren = new ArrayList<>(source.getChildren());
+        sourceChildren.sort(Comparator.comparingInt(TrieNode::getChar));
+        char[] labels = new char[sourceChildren.size()];
+        Node[] children = new Node[sourceChildren.size()];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = sourceChildren.get(i).getChar();
+            children[i] = copy(sourceChildren.get(i), next);
+        }
+        return new Node(labels, children, start, next[0]);
+    }
+
+    /**
+     * @return the node that corresponds to the final character of the keyword, or null if there is no such node.
+     * */
+    private Node getNode(String keyword) {
+        Node node = root;
+        for (int i = 0; i < keyword.length() && node != null; i++) {
+            node = node.getChild(keyword.charAt(i));
+        }
+        return node;
+    }
+
+    private static void appendChildren(Node node, StringBuilder str) {
+        for (int i = 0; i < node.labels.length; i++) {
+            appendNode(node.labels[i], node.children[i], str);
+            if (i < node.labels.length - 1) {
+                str.append(",");
+            }
+        }
+    }
+
+    private static void appendNode(char label, Node node, StringBuilder str) {
+        str.append(label);
+        if (node.labels.length == 1) {
+            appendNode(node.labels[0], node.children[0], str);
+        }
+        else if (node.labels.length > 1) {
+            str.append("{");
+            appendChildren(node, str);
+            str.append("}");
+        }
+    }
+
+    /**
+     * A node, and the range of the association array that holds the associations of it and its descendants.
+     * */
+    private static final class Node {
+        static final int BYTES = 32; // with compressed references
+        final char[] labels; // sorted
+        final Node[] children; // children[i] is the child for labels[i]
+        final int start;
+        final int end;
+
+        Node(char[] labels, Node[] children, int start, int end) {
+            this.labels = labels;
+            this.children = children;
+            this.start = start;
+            this.end = end;
+        }
+
+        Node getChild(char c) {
+            if (labels.length <= LINEAR_SEARCH_MAX) {
+                for (int i = 0; i < labels.length && labels[i] <= c; i++) {
+                    if (labels[i] == c) {
+                        return children[i];
+                    }
+                }
+                return null;
+            }
+            int i = Arrays.binarySearch(labels, c);
+            return i >= 0 ? children[i] : null;
+        }
+    }
+
+    /**
+     * The matches of a search keyword, i.e. the range of the association array below the keyword's node.
+     * */
+    private class Subtree implements KeywordMatches<T> {
+        private final Node node;
+
+        Subtree(Node node) {
+            this.node = node;
+        }
+
+        @Override
+        public int getSubtreeSize() {
+            return node.end - node.start;
+        }
+
+        @Override
+        public Stream<TrieNode.objectAssociation<T>> streamAssociations(int splitThreshold) {
+            Stream<TrieNode.objectAssociation<T>> stream = Arrays.stream(associations, node.start, node.end);
+            return node.end - node.start >= splitThreshold ? stream.parallel() : stream;
+        }
+
+        @Override
+        public void forEachAssociation(BiConsumer<CharSequence, TrieNode.objectAssociation<T>> action) {
+            forEachAssociation(node, new StringBuilder(), action);
+        }
+
+        private void forEachAssociation(Node node, StringBuilder rest, BiConsumer<CharSequence, TrieNode.objectAssociation<T>> action) {
+            // the node's own associations come before its children's
+            int ownEnd = node.children.length == 0 ? node.end : node.children[0].start;
+            for (int i = node.start; i < ownEnd; i++) {
+                action.accept(rest, associations[i]);
+            }
+            for (int i = 0; i < node.labels.length; i++) {
+                rest.append(node.labels[i]);
+                forEachAssociation(node.children[i], rest, action);
+                rest.setLength(rest.length() - 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.gmail.adamvdvoorn;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts items to and from bytes, so that a TrieMap can be written to and read from a snapshot.
+ * @param <T> the type of item the codec converts.
+ * */
+public interface ItemCodec<T> {
+    /**
+     * @param item the item to encode.
+     * @return the bytes of the item.
+     * */
+    byte[] encode(T item);
+
+    /**
+     * @param bytes bytes returned by {@link #encode(Object)}.
+     * @return the item the bytes were encoded from.
+     * */
+    T decode(byte[] bytes);
+
+    /**
+     * @return a codec that stores strings as UTF-8.
+     * */
+    static ItemCodec<String> strings() {
+        return new ItemCodec<String>() {
+            @Override
+            public byte[] encode(String item) {
+                return item.getBytes(StandardCharsets.UTF_8);
+            }
+
+            @Override
+            public String decode(byte[] bytes) {
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+        };
+    }
+}
@@ -0,0 +1,99 @@
+package com.gmail.adamvdvoorn;
+
+import java.nio.charset.StandardCharsets;
+import java.text.Normalizer;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ * How the keywords of names and searches are turned into the labels stored in the trie,
+ * see {@link TrieMap#setKeyEncoding(KeyEncoding)}.
+ *
+ * Names and searches always go through the same encoding, so a search matches whatever it matched before the
+ * encoding, whatever the text looks like afterwards.
+ * </p>
+ * */
+public enum KeyEncoding {
+    /**
+     * Keywords are lower cased, independently of the default locale, and stored as UTF-16 characters.
+     * */
+    LOWER_CASE {
+        @Override
+        String normalize(String name) {
+            return name;
+        }
+
+        @Override
+        String encode(String keyword) {
+            return keyword.toLowerCase(Locale.ROOT);
+        }
+    },
+
+    /**
+     * Names are normalized with NFKC, case folded and stripped of accents before they are split into keywords, so
+     * "CAFE", "caf&eacute;" and its fullwidth form are all stored as "cafe", and the Turkish dotless i matches i.
+     * Each keyword is then stored as its UTF-8 bytes, one byte per node, so a node has at most 256 children.
+     * Names that are entirely ASCII skip normalization, and are folded with a lookup table.
+     * The delimiter sees the normalized name, so it should accept the letters being searched for, such as
+     * [^\p{L}\p{N}&amp;]+. Keywords in {@link TrieMap#toString()} appear as their bytes.
+     * */
+    FOLDED_UTF8 {
+        @Override
+        String normalize(String name) {
+            for (int i = 0; i < name.length(); i++) {
+                if (name.charAt(i) >= 0x80) {
+                    return fold(name);
+                }
+            }
+            char[] folded = new char[name.length()];
+            for (int i = 0; i < folded.length; i++) {
+                folded[i] = ASCII_FOLD[name.charAt(i)];
+            }
+            return new String(folded);
+        }
+
+        @Override
+        String encode(String keyword) {
+            for (int i = 0; i < keyword.length(); i++) {
+                if (keyword.charAt(i) >= 0x80) {
+                    // each byte becomes the char with the same value
+                    return new String(keyword.getBytes(StandardCharsets.UTF_8), StandardCharsets.ISO_8859_1);
+                }
+            }
+            // ASCII is the same in UTF-8
+            return keyword;
+        }
+    };
+
+    private static final char[] ASCII_FOLD = new char[0x80];
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+
+    static {
+        for (char c = 0; c < ASCII_FOLD.length; c++) {
+            ASCII_FOLD[c] = c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        }
+    }
+
+    /**
+     * @return the name, ready to be split into keywords.
+     * */
+    abstract String normalize(String name);
+
+    /**
+     * @return the label sequence a keyword is stored under.
+     * */
+    abstract String encode(String keyword);
+
+    /**
+     * Decomposes, case folds, strips accents, then recomposes.
+     * */
+    private static String fold(String name) {
+        // compatibility characters can decompose to upper case letters, so they are decomposed before folding
+        String folded = Normalizer.normalize(name, Normalizer.Form.NFKD);
+        // upper casing first folds characters with no single lower case form, such as the German sharp s to ss
+        folded = folded.toUpperCase(Locale.ROOT).toLowerCase(Locale.ROOT);
+        folded = MARKS.matcher(Normalizer.normalize(folded, Normalizer.Form.NFKD)).replaceAll("");
+        return Normalizer.normalize(folded, Normalizer.Form.NFKC);
+    }
+}
@@ -0,0 +1,119 @@
+package com.gmail.adamvdvoorn;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * <p>
+ * Numbers keywords, so that many {@link SharedKeywordTrieMap}s can store keyword IDs rather than a trie of their own.
+ *
+ * Keywords are kept in sorted order, so the keywords starting with a prefix are one range of the dictionary.
+ * The IDs a prefix matches are worked out once and cached, and the cached IDs are brought up to date by checking only
+ * the keywords added since, so searching many maps for the same prefix only resolves it once.
+ * Keywords are never removed, and a keyword keeps its ID for the life of the dictionary.
+ *
+ * Safe to use from multiple threads.
+ * </p>
+ * */
+public final class KeywordDictionary {
+    // prefixes with cached IDs, the cache is cleared when it is full
+    private static final int MAX_CACHED_PREFIXES = 1 << 12;
+
+    private final ConcurrentSkipListMap<String, Integer> ids = new ConcurrentSkipListMap<>();
+    private volatile String[] keywords = new String[64]; // id -> keyword
+    private volatile int size = 0; // the # of keywords, written after the keyword is in both structures
+    private final Map<String, Resolution> resolved = new ConcurrentHashMap<>();
+
+    /**
+     * @return the # of keywords in the dictionary.
+     * */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the ID of a keyword, adding it to the dictionary if needed.
+     * */
+    int idOf(String keyword) {
+        Integer id = ids.get(keyword);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(keyword);
+            if (id != null) {
+                return id;
+            }
+            int added = size;
+            String[] grown = added < keywords.length ? keywords : Arrays.copyOf(keywords, added * 2);
+            grown[added] = keyword;
+            keywords = grown;
+            ids.put(keyword, added);
+            size = added + 1;
+            return added;
+        }
+    }
+
+    /**
+     * @return the ID of a keyword, or -1 if it is not in the dictionary.
+     * */
+    int find(String keyword) {
+        Integer id = ids.get(keyword);
+        return id == null ? -1 : id;
+    }
+
+    String keyword(int id) {
+        return keywords[id];
+    }
+
+    /**
+     * @return the IDs of the keywords that start with the prefix, including the prefix itself.
+     * */
+    int[] resolve(String prefix) {
+        int n = size;
+        Resolution resolution = resolved.get(prefix);
+        if (resolution != null && resolution.size == n) {
+            return resolution.ids;
+        }
+        int[] matching;
+        if (resolution == null) {
+            // keywords added since n was read are left out, so that bringing the resolution up to date finds them
+            matching = ids.subMap(prefix, true, prefix + Character.MAX_VALUE, true).values().stream()
+                    .mapToInt(Integer::intValue)
+                    .filter((id) -> id < n)
+                    .toArray();
+        }
+        else {
+            String[] keywords = this.keywords;
+            int[] added = new int[n - resolution.size];
+            int nOfAdded = 0;
+            for (int id = resolution.size; id < n; id++) {
+                if (keywords[id].startsWith(prefix)) {
+                    added[nOfAdded++] = id;
+                }
+            }
+            matching = Arrays.copyOf(resolution.ids, resolution.ids.length + nOfAdded);
+            System.arraycopy(added, 0, matching, resolution.ids.length, nOfAdded);
+        }
+        if (resolved.size() >= MAX_CACHED_PREFIXES) {
+            resolved.clear();
+        }
+        resolved.put(prefix, new Resolution(matching, n));
+        return matching;
+    }
+
+    /**
+     * The IDs a prefix matched, when the dictionary had size keywords.
+     * */
+    private static final class Resolution {
+        private final int[] ids;
+        private final int size;
+
+        Resolution(int[] ids, int size) {
+            this.ids = ids;
+            this.size = size;
+        }
+    }
+}
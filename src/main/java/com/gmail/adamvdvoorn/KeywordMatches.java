@@ -0,0 +1,28 @@
+package com.gmail.adamvdvoorn;
+
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+/**
+ * com.gmail.adamvdvoorn.KeywordMatches
+ * Everything stored under a search keyword, i.e. the subtree below the keyword's last character.
+ * */
+interface KeywordMatches<T> {
+    /**
+     * @return the # of associations in the subtree.
+     * */
+    int getSubtreeSize();
+
+    /**
+     * @param splitThreshold subtrees with fewer associations than this are collected by a single thread.
+     * @return every association in the subtree.
+     * */
+    Stream<TrieNode.objectAssociation<T>> streamAssociations(int splitThreshold);
+
+    /**
+     * Visits every association in the subtree on the calling thread, along with the rest of the keyword it is stored
+     * under, after the search keyword, so the matches of longer keywords can be picked out in the same walk.
+     * @param action called with the rest of the keyword, which is only valid during the call, and the association.
+     * */
+    void forEachAssociation(BiConsumer<CharSequence, TrieNode.objectAssociation<T>> action);
+}
@@ -0,0 +1,128 @@
+package com.gmail.adamvdvoorn;
+
+/**
+ * <p>
+ * Counts recorded values, such as latencies in nanoseconds, in log-linear buckets, so that percentiles can be read
+ * back to within 1% of the recorded value, in fixed memory, however many values are recorded.
+ *
+ * Values below 256 each have their own bucket. Above that, every power of two range is split into 128 buckets of
+ * equal width, so a bucket is never wider than 1/128 of the values in it. This is the layout HdrHistogram uses.
+ *
+ * Not safe to record into from multiple threads. Give each thread its own histogram and {@link #add} them together.
+ * </p>
+ * */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 8;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // 256
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+    // the values up to Long.MAX_VALUE are shifted by at most 63 - SUB_BUCKET_BITS
+    private static final int BUCKETS = SUB_BUCKETS + (Long.SIZE - 1 - SUB_BUCKET_BITS) * HALF_SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count = 0;
+    private long sum = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+
+    /**
+     * @param value the value to record. negative values are recorded as 0.
+     * */
+    public void record(long value) {
+        value = Math.max(value, 0);
+        counts[index(value)]++;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Adds the values recorded by another histogram to this one.
+     * */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * @return the # of values recorded.
+     * */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the smallest value recorded, or 0 if none were.
+     * */
+    public long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    /**
+     * @return the largest value recorded, or 0 if none were.
+     * */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * @return the mean of the values recorded, or 0 if none were.
+     * */
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100, such as 99.9.
+     * @return the value that percentile of the recorded values are at or below, rounded up to the top of its bucket
+     * but no higher than the largest value, or 0 if no values were recorded.
+     * */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100: " + percentile);
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestEquivalentValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return the bucket of a value that is at least 0.
+     * */
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // shifted down so its top bit is the top bit of the sub buckets
+        int shift = Long.SIZE - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + (shift - 1) * HALF_SUB_BUCKETS + (int) (value >>> shift) - HALF_SUB_BUCKETS;
+    }
+
+    /**
+     * @return the largest value in a bucket.
+     * */
+    static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+        long subBucket = (index - SUB_BUCKETS) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+        long highest = ((subBucket + 1) << shift) - 1;
+        // the top bucket ends past Long.MAX_VALUE
+        return highest < 0 ? Long.MAX_VALUE : highest;
+    }
+}
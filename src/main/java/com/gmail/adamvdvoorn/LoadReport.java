@@ -0,0 +1,158 @@
+package com.gmail.adamvdvoorn;
+
+import java.util.Locale;
+
+/**
+ * The results of a {@link LoadTest}: latency percentiles, throughput and allocation, for searches and for writes.
+ * Only the measured part of the run is included, not the warm up.
+ * */
+public final class LoadReport {
+    private final int items;
+    private final long buildNanos;
+    private final long snapshotLoadNanos;
+    private final int readers;
+    private final int writers;
+    private final double searchRate; // 0 if the readers searched as fast as they could
+    private final long measuredNanos;
+    private final LatencyHistogram searches;
+    private final LatencyHistogram writes;
+    private final long searchAllocatedBytes; // -1 if the JVM does not measure allocation
+
+    LoadReport(int items, long buildNanos, long snapshotLoadNanos, int readers, int writers, double searchRate,
+               long measuredNanos, LatencyHistogram searches, LatencyHistogram writes, long searchAllocatedBytes) {
+        this.items = items;
+        this.buildNanos = buildNanos;
+        this.snapshotLoadNanos = snapshotLoadNanos;
+        this.readers = readers;
+        this.writers = writers;
+        this.searchRate = searchRate;
+        this.measuredNanos = measuredNanos;
+        this.searches = searches;
+        this.writes = writes;
+        this.searchAllocatedBytes = searchAllocatedBytes;
+    }
+
+    /**
+     * @return the # of items the map was built with.
+     * */
+    public int getItems() {
+        return items;
+    }
+
+    /**
+     * @return how long putting the corpus into the map took.
+     * */
+    public long getBuildNanos() {
+        return buildNanos;
+    }
+
+    /**
+     * @return how long reading the same map from a snapshot took, see {@link TrieMap#readSnapshot(java.io.InputStream,
+     * ItemCodec)}.
+     * */
+    public long getSnapshotLoadNanos() {
+        return snapshotLoadNanos;
+    }
+
+    /**
+     * @return the # of searches per second the readers were paced to, or 0 if they searched as fast as they could,
+     * see {@link LoadTest#setSearchRate(double)}.
+     * */
+    public double getSearchRate() {
+        return searchRate;
+    }
+
+    /**
+     * @return how long searches and writes were measured for, including the time paced readers that fell behind took
+     * to finish the searches due before the end.
+     * */
+    public long getMeasuredNanos() {
+        return measuredNanos;
+    }
+
+    /**
+     * @return the latency of every measured search, in nanoseconds.
+     * */
+    public LatencyHistogram getSearchLatencies() {
+        return searches;
+    }
+
+    /**
+     * @return the latency of every measured put and remove, in nanoseconds.
+     * */
+    public LatencyHistogram getWriteLatencies() {
+        return writes;
+    }
+
+    /**
+     * @return the # of searches per second, over all reader threads.
+     * */
+    public double getSearchesPerSecond() {
+        return perSecond(searches.getCount());
+    }
+
+    /**
+     * @return the # of puts and removes per second, over all writer threads.
+     * */
+    public double getWritesPerSecond() {
+        return perSecond(writes.getCount());
+    }
+
+    /**
+     * @return the bytes allocated per second by the reader threads, or -1 if the JVM does not measure allocation.
+     * */
+    public double getSearchAllocationRate() {
+        return searchAllocatedBytes < 0 ? -1 : perSecond(searchAllocatedBytes);
+    }
+
+    /**
+     * @return the mean bytes allocated by a search, or -1 if the JVM does not measure allocation.
+     * */
+    public double getBytesPerSearch() {
+        return searchAllocatedBytes < 0 || searches.getCount() == 0 ? -1
+                : (double) searchAllocatedBytes / searches.getCount();
+    }
+
+    /**
+     * @return the report as text, one line per measurement.
+     * */
+    @Override
+    public String toString() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ROOT,
+                "items      %d, built in %.2f s, loaded from a snapshot in %.2f s (%.1fx faster)%n", items,
+                buildNanos / 1e9, snapshotLoadNanos / 1e9, (double) buildNanos / Math.max(snapshotLoadNanos, 1)));
+        report.append(String.format(Locale.ROOT, "measured   %.2f s, %d readers, %d writers%n",
+                measuredNanos / 1e9, readers, writers));
+        append(report, "searches", searches, getSearchesPerSecond());
+        if (searchRate > 0) {
+            report.append(String.format(Locale.ROOT, "           paced at %.0f searches/s, latency from when each "
+                    + "search was due%n", searchRate));
+        }
+        else {
+            report.append(String.format(Locale.ROOT, "           closed loop, latency from when each search started: "
+                    + "excludes time queued behind slow searches (coordinated omission), set a search rate to include "
+                    + "it%n"));
+        }
+        if (writers > 0) {
+            append(report, "writes", writes, getWritesPerSecond());
+        }
+        if (searchAllocatedBytes >= 0) {
+            report.append(String.format(Locale.ROOT, "allocation %.1f MB/s, %.0f bytes/search%n",
+                    getSearchAllocationRate() / (1 << 20), getBytesPerSearch()));
+        }
+        return report.toString();
+    }
+
+    private static void append(StringBuilder report, String name, LatencyHistogram latencies, double perSecond) {
+        report.append(String.format(Locale.ROOT,
+                "%-10s %d ops, %.0f ops/s, us: mean %.1f p50 %.1f p99 %.1f p999 %.1f max %.1f%n",
+                name, latencies.getCount(), perSecond, latencies.getMean() / 1e3,
+                latencies.getValueAtPercentile(50) / 1e3, latencies.getValueAtPercentile(99) / 1e3,
+                latencies.getValueAtPercentile(99.9) / 1e3, latencies.getMax() / 1e3));
+    }
+
+    private double perSecond(long count) {
+        return count / Math.max(measuredNanos / 1e9, 1e-9);
+    }
+}
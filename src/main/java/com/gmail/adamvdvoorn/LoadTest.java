@@ -0,0 +1,497 @@
+package com.gmail.adamvdvoorn;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+
+/**
+ * <p>
+ * Replays a realistic mix of searches, and optionally writes, against a TrieMap, and reports latency percentiles,
+ * throughput and allocation. Runs offline, on one machine, with nothing but the JDK:
+ *
+ *      java -cp target/classes com.gmail.adamvdvoorn.LoadTest --items=1000000 --readers=4 --writers=1
+ *
+ * The map is built from a corpus with one name per line, or from synthetic names whose words follow a Zipf
+ * distribution. Searches are drawn from the corpus's keywords, most frequent first, with a Zipf distribution:
+ * prefixes of a keyword, two keywords where the last is a prefix, and misses, which are keywords with a suffix no
+ * keyword has. Searches are generated before the run, so generating them is not measured.
+ *
+ * By default each reader thread searches as fast as it can, and each writer thread puts a new item and removes its
+ * oldest one, keeping a fixed # of items of its own in the map. With writers, the map is versioned, so that searches and writes
+ * can run at the same time, see {@link TrieMap#snapshot()}.
+ * Before the run, the map is written to a snapshot in memory and read back, to compare loading a snapshot with
+ * putting every name, see {@link TrieMap#readSnapshot(java.io.InputStream, ItemCodec)}.
+ * Searching as fast as possible is a closed loop: the latency of each search is measured from when it starts, so it
+ * does not include time spent waiting behind a slow search on the same thread, and a stall is counted as one slow
+ * search rather than as every search that would have been sent during it. The report says so.
+ * With a search rate, see {@link #setSearchRate(double)}, each reader instead sends its searches on a fixed
+ * schedule, and the latency of each is measured from when it was due, so time spent queued behind a slow search
+ * is counted as it would be by clients sending searches at that rate.
+ * </p>
+ * */
+public final class LoadTest {
+    private static final int QUERIES_PER_READER = 1 << 16;
+    private static final int ITEMS_PER_WRITER = 1 << 10;
+    private static final String MISS_SUFFIX = "qzxj";
+    private static final ItemCodec<Long> IDS = new ItemCodec<Long>() {
+        @Override
+        public byte[] encode(Long item) {
+            return ByteBuffer.allocate(Long.BYTES).putLong(item).array();
+        }
+
+        @Override
+        public Long decode(byte[] bytes) {
+            return ByteBuffer.wrap(bytes).getLong();
+        }
+    };
+
+    private Path corpus = null;
+    private int items = 100_000;
+    private int readers = Runtime.getRuntime().availableProcessors();
+    private int writers = 0;
+    private Duration warmUp = Duration.ofSeconds(2);
+    private Duration duration = Duration.ofSeconds(10);
+    private double zipfExponent = 1.0;
+    private double multiKeywordFraction = 0.2;
+    private double missFraction = 0.1;
+    private double searchRate = 0; // searches per second over all readers, 0 to search as fast as possible
+    private long seed = 1;
+
+    /**
+     * @param corpus a UTF-8 file with one name per line to build the map from, or null to generate names.
+     * */
+    public void setCorpus(Path corpus) {
+        this.corpus = corpus;
+    }
+
+    /**
+     * @param items the # of names to generate when there is no corpus. 100,000 by default.
+     * */
+    public void setItems(int items) {
+        this.items = requirePositive(items, "items");
+    }
+
+    /**
+     * @param readers the # of threads that search. by default, the # of processors.
+     * */
+    public void setReaders(int readers) {
+        this.readers = requirePositive(readers, "readers");
+    }
+
+    /**
+     * @param writers the # of threads that put and remove at the same time as the readers search. 0 by default.
+     * */
+    public void setWriters(int writers) {
+        if (writers < 0) {
+            throw new IllegalArgumentException("writers must not be negative: " + writers);
+        }
+        this.writers = writers;
+    }
+
+    /**
+     * @param warmUp how long to run before measuring, so that the JIT has compiled the search. 2 seconds by default.
+     * @param duration how long to measure for. 10 seconds by default.
+     * */
+    public void setDuration(Duration warmUp, Duration duration) {
+        if (warmUp.isNegative() || duration.isNegative() || duration.isZero()) {
+            throw new IllegalArgumentException("invalid durations: " + warmUp + ", " + duration);
+        }
+        this.warmUp = warmUp;
+        this.duration = duration;
+    }
+
+    /**
+     * @param zipfExponent how skewed the choice of keywords is, for both generated names and searches.
+     *                     0 is uniform, and the default of 1 is typical of words in text.
+     * */
+    public void setZipfExponent(double zipfExponent) {
+        if (zipfExponent < 0) {
+            throw new IllegalArgumentException("zipfExponent must not be negative: " + zipfExponent);
+        }
+        this.zipfExponent = zipfExponent;
+    }
+
+    /**
+     * @param multiKeywordFraction the fraction of searches with two keywords. 0.2 by default.
+     * @param missFraction the fraction of searches that match nothing. 0.1 by default.
+     * */
+    public void setQueryMix(double multiKeywordFraction, double missFraction) {
+        if (multiKeywordFraction < 0 || missFraction < 0 || multiKeywordFraction + missFraction > 1) {
+            throw new IllegalArgumentException("invalid query mix: " + multiKeywordFraction + ", " + missFraction);
+        }
+        this.multiKeywordFraction = multiKeywordFraction;
+        this.missFraction = missFraction;
+    }
+
+    /**
+     * @param searchesPerSecond the # of searches to send per second, shared evenly between the readers, with the
+     *                          latency of each measured from when it was due. 0, the default, searches as fast as
+     *                          possible instead.
+     * */
+    public void setSearchRate(double searchesPerSecond) {
+        if (!(searchesPerSecond >= 0) || Double.isInfinite(searchesPerSecond)) {
+            throw new IllegalArgumentException("invalid search rate: " + searchesPerSecond);
+        }
+        this.searchRate = searchesPerSecond;
+    }
+
+    /**
+     * @param seed the seed for generating names and searches, so that runs can be repeated.
+     * */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Builds the map, then runs the readers and writers for the warm up and the measured duration.
+     * @return the measurements.
+     * @throws IOException if the corpus cannot be read.
+     * */
+    public LoadReport run() throws IOException {
+        Random random = new Random(seed);
+        List<String> names = corpus != null ? readCorpus(corpus) : generateNames(items, zipfExponent, random);
+        if (names.isEmpty()) {
+            throw new IllegalArgumentException("the corpus has no names");
+        }
+        TrieMap<Long> map = new TrieMap<>();
+        long buildStart = System.nanoTime();
+        for (int i = 0; i < names.size(); i++) {
+            map.put(names.get(i), (long) i);
+        }
+        long buildNanos = System.nanoTime() - buildStart;
+        long snapshotLoadNanos = snapshotLoadNanos(map);
+        if (writers > 0) {
+            // from now on, every search reads a snapshot and every write is its own transaction
+            map.snapshot();
+        }
+        List<String> vocabulary = vocabulary(map, names);
+        ZipfDistribution keywords = new ZipfDistribution(vocabulary.size(), zipfExponent);
+
+        LatencyHistogram[] searches = new LatencyHistogram[readers];
+        long[] allocated = new long[readers];
+        LatencyHistogram[] writes = new LatencyHistogram[writers];
+        List<Thread> threads = new ArrayList<>();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch ready = new CountDownLatch(readers + writers);
+        CountDownLatch start = new CountDownLatch(1);
+        long interval = searchRate > 0 ? (long) Math.max(1, readers * 1e9 / searchRate) : 0;
+        long[] window = new long[2]; // when measuring starts and ends, set before start is counted down
+
+        for (int r = 0; r < readers; r++) {
+            int reader = r;
+            String[] queries = queries(vocabulary, keywords, new Random(seed + 1 + reader));
+            searches[reader] = new LatencyHistogram();
+            threads.add(new Thread(() -> {
+                ready.countDown();
+                await(start);
+                allocated[reader] = read(map, queries, interval, searches[reader], window[0], window[1]);
+            }, "load-test-reader-" + reader));
+        }
+        for (int w = 0; w < writers; w++) {
+            int writer = w;
+            Random writerRandom = new Random(seed - 1 - writer);
+            writes[writer] = new LatencyHistogram();
+            threads.add(new Thread(() -> {
+                ready.countDown();
+                await(start);
+                write(map, names, (long) names.size() + writer, writers, writerRandom, writes[writer],
+                        window[0], window[1]);
+            }, "load-test-writer-" + writer));
+        }
+        for (Thread thread : threads) {
+            thread.setUncaughtExceptionHandler((t, e) -> failure.compareAndSet(null, e));
+            thread.start();
+        }
+        await(ready);
+        window[0] = System.nanoTime() + warmUp.toNanos();
+        window[1] = window[0] + duration.toNanos();
+        start.countDown();
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while waiting for the load test", e);
+            }
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("a load test thread failed", failure.get());
+        }
+        // paced readers that fell behind finish the searches due in the window after it ends
+        long measuredNanos = Math.max(window[1], interval > 0 ? System.nanoTime() : 0) - window[0];
+
+        LatencyHistogram allSearches = new LatencyHistogram();
+        long allAllocated = 0;
+        for (int r = 0; r < readers; r++) {
+            allSearches.add(searches[r]);
+            allAllocated = allocated[r] < 0 || allAllocated < 0 ? -1 : allAllocated + allocated[r];
+        }
+        LatencyHistogram allWrites = new LatencyHistogram();
+        for (LatencyHistogram writeLatencies : writes) {
+            allWrites.add(writeLatencies);
+        }
+        return new LoadReport(names.size(), buildNanos, snapshotLoadNanos, readers, writers, searchRate,
+                measuredNanos, allSearches, allWrites, allAllocated);
+    }
+
+    /**
+     * Runs a load test with options of the form --name=value, and prints the report:
+     * --corpus=path --items=n --readers=n --writers=n --warmup=seconds --duration=seconds --zipf=exponent
+     * --multi=fraction --miss=fraction --rate=searches/s --seed=n
+     * */
+    public static void main(String[] args) throws IOException {
+        LoadTest test = new LoadTest();
+        Duration warmUp = test.warmUp;
+        Duration duration = test.duration;
+        double multi = test.multiKeywordFraction;
+        double miss = test.missFraction;
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals == -1) {
+                throw new IllegalArgumentException("expected --name=value: " + arg);
+            }
+            String value = arg.substring(equals + 1);
+            switch (arg.substring(2, equals)) {
+                case "corpus": test.setCorpus(Paths.get(value)); break;
+                case "items": test.setItems(Integer.parseInt(value)); break;
+                case "readers": test.setReaders(Integer.parseInt(value)); break;
+                case "writers": test.setWriters(Integer.parseInt(value)); break;
+                case "warmup": warmUp = Duration.ofMillis((long) (Double.parseDouble(value) * 1000)); break;
+                case "duration": duration = Duration.ofMillis((long) (Double.parseDouble(value) * 1000)); break;
+                case "zipf": test.setZipfExponent(Double.parseDouble(value)); break;
+                case "multi": multi = Double.parseDouble(value); break;
+                case "miss": miss = Double.parseDouble(value); break;
+                case "rate": test.setSearchRate(Double.parseDouble(value)); break;
+                case "seed": test.setSeed(Long.parseLong(value)); break;
+                default: throw new IllegalArgumentException("unknown option: " + arg);
+            }
+        }
+        test.setDuration(warmUp, duration);
+        test.setQueryMix(multi, miss);
+        System.out.print(test.run());
+    }
+
+    /**
+     * @return how long reading the map back from a snapshot of it takes. the snapshot is held in memory, so reading
+     * the file it would be kept in is not measured.
+     * */
+    private static long snapshotLoadNanos(TrieMap<Long> map) throws IOException {
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        map.writeSnapshot(snapshot, IDS);
+        byte[] bytes = snapshot.toByteArray();
+        long start = System.nanoTime();
+        TrieMap<Long> loaded = TrieMap.readSnapshot(new ByteArrayInputStream(bytes), IDS);
+        long nanos = System.nanoTime() - start;
+        if (loaded.estimateRetainedBytes() <= 0) {
+            throw new IllegalStateException("the snapshot was read back empty");
+        }
+        return nanos;
+    }
+
+    /**
+     * Searches until the end of the measured window, recording the latencies of the searches that start in it.
+     * Paced searches that are due in the window are all recorded, even if that takes until after the window ends.
+     * @param interval the time between the searches of this thread, or 0 to search as fast as possible.
+     * @return the bytes allocated by this thread while measuring, or -1 if the JVM does not measure allocation.
+     * */
+    private static long read(TrieMap<Long> map, String[] queries, long interval, LatencyHistogram latencies,
+                             long measureStart, long measureEnd) {
+        long allocatedAtStart = 0;
+        boolean measuring = false;
+        long matches = 0; // used, so the searches cannot be optimized away
+        long due = System.nanoTime(); // when the next search is due, if paced
+        for (int i = 0; ; i = (i + 1) & (queries.length - 1), due += interval) {
+            long now = System.nanoTime();
+            if (interval > 0) {
+                if (due < measureStart && now >= measureStart) {
+                    // searches still queued from the warm up are dropped, the measured ones are due from its end
+                    due = measureStart;
+                }
+                while (now < due) {
+                    LockSupport.parkNanos(due - now);
+                    now = System.nanoTime();
+                }
+            }
+            // a paced search that is late was queued behind the previous ones, and that time is part of its latency
+            long start = interval > 0 ? due : now;
+            if (start >= measureEnd) {
+                break;
+            }
+            if (!measuring && start >= measureStart) {
+                measuring = true;
+                allocatedAtStart = allocatedBytes();
+                if (interval == 0) {
+                    start = System.nanoTime();
+                }
+            }
+            matches += map.search(queries[i]).size();
+            if (measuring) {
+                latencies.record(System.nanoTime() - start);
+            }
+        }
+        if (matches < 0) {
+            throw new IllegalStateException();
+        }
+        long allocatedAtEnd = allocatedBytes();
+        return allocatedAtEnd < 0 || !measuring ? -1 : allocatedAtEnd - allocatedAtStart;
+    }
+
+    /**
+     * Puts new items under names from the corpus, removing each writer's oldest item once it has enough, until the end
+     * of the measured window. Writers take turns at item IDs, starting after the corpus.
+     * */
+    private static void write(TrieMap<Long> map, List<String> names, long firstId, int nOfWriters, Random random,
+                              LatencyHistogram latencies, long measureStart, long measureEnd) {
+        Deque<Long> own = new ArrayDeque<>();
+        Map<Long, String> ownNames = new HashMap<>();
+        for (long id = firstId; ; id += nOfWriters) {
+            String name = names.get(random.nextInt(names.size()));
+            long start = System.nanoTime();
+            if (start >= measureEnd) {
+                break;
+            }
+            map.put(name, id);
+            long end = System.nanoTime();
+            if (start >= measureStart) {
+                latencies.record(end - start);
+            }
+            own.addLast(id);
+            ownNames.put(id, name);
+            if (own.size() > ITEMS_PER_WRITER) {
+                long oldest = own.removeFirst();
+                start = System.nanoTime();
+                try {
+                    map.remove(ownNames.remove(oldest), oldest);
+                }
+                catch (NoAssociatedObjectsException e) {
+                    throw new IllegalStateException("a writer's item was missing", e);
+                }
+                end = System.nanoTime();
+                if (start >= measureStart) {
+                    latencies.record(end - start);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return searches drawn from the vocabulary, which is sorted most frequent first.
+     * */
+    private String[] queries(List<String> vocabulary, ZipfDistribution keywords, Random random) {
+        String[] queries = new String[QUERIES_PER_READER];
+        for (int i = 0; i < queries.length; i++) {
+            double kind = random.nextDouble();
+            String keyword = vocabulary.get(keywords.sample(random));
+            if (kind < missFraction) {
+                queries[i] = keyword + MISS_SUFFIX;
+            }
+            else if (kind < missFraction + multiKeywordFraction) {
+                queries[i] = keyword + " " + prefix(vocabulary.get(keywords.sample(random)), random);
+            }
+            else {
+                queries[i] = prefix(keyword, random);
+            }
+        }
+        return queries;
+    }
+
+    /**
+     * @return names of 2 to 5 words, with the words drawn from a vocabulary of random words.
+     * */
+    static List<String> generateNames(int items, double zipfExponent, Random random) {
+        Set<String> words = new LinkedHashSet<>();
+        int nOfWords = Math.max(1000, items / 4);
+        while (words.size() < nOfWords) {
+            char[] word = new char[3 + random.nextInt(8)];
+            for (int i = 0; i < word.length; i++) {
+                word[i] = (char) ('a' + random.nextInt(26));
+            }
+            words.add(new String(word));
+        }
+        List<String> vocabulary = new ArrayList<>(words);
+        ZipfDistribution distribution = new ZipfDistribution(vocabulary.size(), zipfExponent);
+        List<String> names = new ArrayList<>(items);
+        for (int i = 0; i < items; i++) {
+            StringBuilder name = new StringBuilder(vocabulary.get(distribution.sample(random)));
+            for (int n = 1 + random.nextInt(4); n > 0; n--) {
+                name.append(' ').append(vocabulary.get(distribution.sample(random)));
+            }
+            names.add(name.toString());
+        }
+        return names;
+    }
+
+    private static List<String> readCorpus(Path corpus) throws IOException {
+        return Files.readAllLines(corpus, StandardCharsets.UTF_8).stream()
+                .filter((line) -> !line.isBlank())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @return the distinct keywords of the names, most frequent first, broken down as the map does.
+     * */
+    private static List<String> vocabulary(TrieMap<Long> map, List<String> names) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (String name : names) {
+            for (String keyword : map.processName(name)) {
+                counts.merge(keyword, 1, Integer::sum);
+            }
+        }
+        if (counts.isEmpty()) {
+            throw new IllegalArgumentException("the corpus has no keywords");
+        }
+        List<String> vocabulary = new ArrayList<>(counts.keySet());
+        vocabulary.sort(Comparator.<String, Integer>comparing(counts::get).reversed()
+                .thenComparing(Comparator.naturalOrder()));
+        return vocabulary;
+    }
+
+    private static String prefix(String keyword, Random random) {
+        return keyword.substring(0, 1 + random.nextInt(keyword.length()));
+    }
+
+    /**
+     * @return the bytes allocated by the current thread so far, or -1 if the JVM does not measure allocation.
+     * */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+            if (hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled()) {
+                return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while starting the load test", e);
+        }
+    }
+
+    private static int requirePositive(int value, String name) {
+        if (value < 1) {
+            throw new IllegalArgumentException(name + " must be positive: " + value);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,349 @@
+package com.gmail.adamvdvoorn;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * com.gmail.adamvdvoorn.MutationLog
+ * Appends mutation records to numbered log segment files from a single writer thread.
+ * Records that are appended while the writer thread is busy are written together in one batch,
+ * and synced together if the sync policy requires it (group commit).
+ *
+ * Record layout:
+ *
+ *      length          int, # of bytes in the payload
+ *      payload         op byte, varint name length, UTF-8 name, varint item length, item bytes from the codec
+ *      checksum        int, CRC32C of the payload
+ *
+ * A record that is cut short or fails its checksum marks the end of a segment, as it was being written during a crash.
+ * */
+final class MutationLog<T> implements Closeable {
+    static final byte PUT = 1;
+    static final byte REMOVE = 2;
+    private static final int MAX_BATCH = 1024;
+    private static final long SYNC_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Path directory;
+    private final ItemCodec<T> codec;
+    private final DurableTrieMap.SyncPolicy syncPolicy;
+    private final long segmentLimit; // once a segment has this many bytes, onFullSegment is run
+    private final Runnable onFullSegment;
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile IOException failure = null;
+
+    // only used by the writer thread
+    private FileChannel channel;
+    private long segmentBytes = 0;
+    private boolean unsynced = false;
+    private long lastSync = System.nanoTime();
+
+    MutationLog(Path directory, long segment, ItemCodec<T> codec, DurableTrieMap.SyncPolicy syncPolicy,
+                long segmentLimit, Runnable onFullSegment) throws IOException {
+        this.directory = directory;
+        this.codec = codec;
+        this.syncPolicy = syncPolicy;
+        this.segmentLimit = segmentLimit;
+        this.onFullSegment = onFullSegment;
+        this.channel = openSegment(segment);
+        writer = new Thread(this::writeLoop, "trie-map-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @return a future that completes once the record has been written, and synced if the sync policy is ALWAYS.
+     * */
+    CompletableFuture<Void> append(byte op, String name, T item) {
+        return enqueue(new Entry(encode(op, name, item), -1, false));
+    }
+
+    /**
+     * Ends the current segment and starts writing to a new one. Records appended before this are in the old segment,
+     * which is synced before the returned future completes.
+     * */
+    CompletableFuture<Void> rotate(long nextSegment) {
+        return enqueue(new Entry(null, nextSegment, false));
+    }
+
+    /**
+     * Writes and syncs every record appended so far, then closes the current segment.
+     * */
+    @Override
+    public void close() throws IOException {
+        DurableTrieMap.await(enqueue(new Entry(null, -1, true)));
+        try {
+            writer.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while closing the log");
+        }
+    }
+
+    static Path segmentPath(Path directory, long segment) {
+        return directory.resolve(String.format("log-%019d", segment));
+    }
+
+    /**
+     * Calls the replayer with every complete record in a segment, in the order they were appended.
+     * */
+    static <T> void replay(Path segment, ItemCodec<T> codec, Replayer<T> replayer) throws IOException {
+        long unread = Files.size(segment);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(FileChannel.open(segment, StandardOpenOption.READ)), 1 << 16))) {
+            while (true) {
+                byte[] payload;
+                int checksum;
+                try {
+                    int length = in.readInt();
+                    // a length that runs past the end of the file was cut short or is garbage
+                    if (length <= 0 || length > unread - 8) {
+                        return;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    checksum = in.readInt();
+                    unread -= length + 8;
+                }
+                catch (EOFException e) {
+                    return;
+                }
+                CRC32C crc = new CRC32C();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    return;
+                }
+                ByteBuffer record = ByteBuffer.wrap(payload);
+                byte op = record.get();
+                String name = new String(readBytes(record), StandardCharsets.UTF_8);
+                T item = codec.decode(readBytes(record));
+                replayer.replay(op, name, item);
+            }
+        }
+    }
+
+    private CompletableFuture<Void> enqueue(Entry entry) {
+        if (failure != null) {
+            entry.done.completeExceptionally(failure);
+            return entry.done;
+        }
+        queue.add(entry);
+        // the writer thread may have failed, and stopped taking entries, after the check above
+        if (failure != null) {
+            entry.done.completeExceptionally(failure);
+        }
+        return entry.done;
+    }
+
+    private byte[] encode(byte op, String name, T item) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] itemBytes = codec.encode(item);
+        ByteBuffer record = ByteBuffer.allocate(4 + 1 + 5 + nameBytes.length + 5 + itemBytes.length + 4);
+        record.position(4);
+        record.put(op);
+        writeBytes(record, nameBytes);
+        writeBytes(record, itemBytes);
+        int length = record.position() - 4;
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), 4, length);
+        record.putInt((int) crc.getValue());
+        record.putInt(0, length);
+        return Arrays.copyOf(record.array(), record.position());
+    }
+
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<>();
+        List<Entry> written = new ArrayList<>();
+        try {
+            while (true) {
+                Entry first;
+                if (unsynced && syncPolicy == DurableTrieMap.SyncPolicy.PERIODIC) {
+                    first = queue.poll(Math.max(0, lastSync + SYNC_INTERVAL_NANOS - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    if (first == null) {
+                        sync();
+                        continue;
+                    }
+                }
+                else {
+                    first = queue.take();
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+
+                for (Entry entry : batch) {
+                    if (entry.record != null) {
+                        written.add(entry);
+                        continue;
+                    }
+                    write(written);
+                    sync();
+                    if (entry.close) {
+                        channel.close();
+                        entry.done.complete(null);
+                        return;
+                    }
+                    channel.close();
+                    channel = openSegment(entry.rotateTo);
+                    segmentBytes = 0;
+                    entry.done.complete(null);
+                }
+                write(written);
+                batch.clear();
+                if (onFullSegment != null && segmentBytes >= segmentLimit) {
+                    onFullSegment.run();
+                }
+            }
+        }
+        catch (IOException e) {
+            failure = e;
+        }
+        catch (InterruptedException e) {
+            failure = new InterruptedIOException("log writer was interrupted");
+        }
+        // fail everything that has not been written
+        for (Entry entry : written) {
+            entry.done.completeExceptionally(failure);
+        }
+        for (Entry entry : batch) {
+            entry.done.completeExceptionally(failure);
+        }
+        Entry entry;
+        while ((entry = queue.poll()) != null) {
+            entry.done.completeExceptionally(failure);
+        }
+        try {
+            channel.close();
+        }
+        catch (IOException ignored) {
+            // already failed
+        }
+    }
+
+    /**
+     * Writes a batch of records with a single gathering write, and completes their futures.
+     * */
+    private void write(List<Entry> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        ByteBuffer[] buffers = new ByteBuffer[records.size()];
+        long bytes = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = ByteBuffer.wrap(records.get(i).record);
+            bytes += buffers[i].remaining();
+        }
+        long remaining = bytes;
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+        segmentBytes += bytes;
+        unsynced = true;
+        if (syncPolicy == DurableTrieMap.SyncPolicy.ALWAYS
+                || syncPolicy == DurableTrieMap.SyncPolicy.PERIODIC && System.nanoTime() - lastSync >= SYNC_INTERVAL_NANOS) {
+            sync();
+        }
+        for (Entry entry : records) {
+            entry.done.complete(null);
+        }
+        records.clear();
+    }
+
+    private void sync() throws IOException {
+        if (unsynced && syncPolicy != DurableTrieMap.SyncPolicy.NEVER) {
+            channel.force(false);
+        }
+        unsynced = false;
+        lastSync = System.nanoTime();
+    }
+
+    private FileChannel openSegment(long segment) throws IOException {
+        return FileChannel.open(segmentPath(directory, segment), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Writes the bytes after their length as a varint. Also used by {@link TrieMapServer}'s requests.
+     * */
+    static void writeBytes(ByteBuffer buffer, byte[] bytes) {
+        writeVarint(buffer, bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * @return bytes written by {@link #writeBytes(ByteBuffer, byte[])}.
+     * @throws IllegalArgumentException if the length is negative or runs past the end of the buffer.
+     * @throws java.nio.BufferUnderflowException if the buffer ends in the middle of the length.
+     * */
+    static byte[] readBytes(ByteBuffer buffer) {
+        int length = readVarint(buffer);
+        // checked before allocating, so a corrupt length cannot ask for more memory than the buffer holds
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("length " + length + " runs past the " + buffer.remaining()
+                    + " bytes left");
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Writes an int 7 bits at a time, low bits first, with the high bit of each byte set if more bytes follow.
+     * Takes 1 to 5 bytes. The varints of the log, the snapshot and the server's requests are all written by this.
+     * */
+    static void writeVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * @return an int written by {@link #writeVarint(ByteBuffer, int)}.
+     * @throws IllegalArgumentException if the varint is longer than 5 bytes.
+     * @throws java.nio.BufferUnderflowException if the buffer ends in the middle of the varint.
+     * */
+    static int readVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("varint is longer than 5 bytes");
+    }
+
+    interface Replayer<T> {
+        void replay(byte op, String name, T item);
+    }
+
+    private static final class Entry {
+        final byte[] record; // null for control entries
+        final long rotateTo;
+        final boolean close;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Entry(byte[] record, long rotateTo, boolean close) {
+            this.record = record;
+            this.rotateTo = rotateTo;
+            this.close = close;
+        }
+    }
+}
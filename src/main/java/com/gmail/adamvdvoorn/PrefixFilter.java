@@ -0,0 +1,139 @@
+package com.gmail.adamvdvoorn;
+
+/**
+ * com.gmail.adamvdvoorn.PrefixFilter
+ * A blocked Bloom filter over the keyword prefixes in a trie, see {@link TrieMap#enablePrefixFilter(int)}.
+ *
+ * Every prefix of every keyword, up to the maximum prefix length, is added. A search keyword is checked by its prefix
+ * of at most that length, and if the filter has never seen it, no keyword starts with the search keyword.
+ * Each prefix sets its bits within a single 512 bit block, so checking it reads one cache line.
+ * Bits are never cleared, so prefixes of removed keywords stay in the filter until it is rebuilt.
+ * */
+final class PrefixFilter {
+    private static final int BLOCK_LONGS = 8; // 512 bits
+    private static final int BLOCK_BITS = BLOCK_LONGS * Long.SIZE;
+    // about a 1% false positive rate at capacity
+    private static final int BITS_PER_PREFIX = 10;
+    private static final int HASHES = 6;
+    private static final int MIN_CAPACITY = 1 << 10;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int maxPrefixLength;
+    private final long[] bits;
+    private final int nOfBlocks;
+    private final long capacity;
+    private long added = 0; // # of prefixes that set at least one new bit
+
+    /**
+     * @param capacity the # of distinct prefixes the filter is sized for.
+     * */
+    PrefixFilter(int maxPrefixLength, long capacity) {
+        this.maxPrefixLength = maxPrefixLength;
+        this.capacity = Math.max(capacity, MIN_CAPACITY);
+        this.nOfBlocks = (int) Math.min(Integer.MAX_VALUE / BLOCK_LONGS,
+                (this.capacity * BITS_PER_PREFIX + BLOCK_BITS - 1) / BLOCK_BITS);
+        this.bits = new long[nOfBlocks * BLOCK_LONGS];
+    }
+
+    int getMaxPrefixLength() {
+        return maxPrefixLength;
+    }
+
+    /**
+     * Adds every prefix of a keyword up to the maximum prefix length.
+     * */
+    void addPrefixes(String keyword) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < keyword.length() && i < maxPrefixLength; i++) {
+            hash = next(hash, keyword.charAt(i));
+            set(hash);
+        }
+    }
+
+    /**
+     * Adds a single prefix, which must be no longer than the maximum prefix length.
+     * */
+    void addPrefix(CharSequence prefix) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < prefix.length(); i++) {
+            hash = next(hash, prefix.charAt(i));
+        }
+        set(hash);
+    }
+
+    /**
+     * @return false if no keyword in the trie starts with the search keyword, true if one might.
+     * */
+    boolean mightContain(String keyword) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < keyword.length() && i < maxPrefixLength; i++) {
+            hash = next(hash, keyword.charAt(i));
+        }
+        long mixed = mix(hash);
+        int block = block(mixed);
+        for (int k = 0; k < HASHES; k++) {
+            int bit = (int) (mixed >>> (k * 9)) & (BLOCK_BITS - 1);
+            if ((bits[block + (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true once more distinct prefixes have been added than the filter is sized for, by enough that its false
+     * positive rate has risen well past what it was sized for.
+     * */
+    boolean isOverfull() {
+        return added > 2 * capacity;
+    }
+
+    long getBytes() {
+        return (long) bits.length * Long.BYTES;
+    }
+
+    private void set(long hash) {
+        long mixed = mix(hash);
+        int block = block(mixed);
+        boolean changed = false;
+        for (int k = 0; k < HASHES; k++) {
+            int bit = (int) (mixed >>> (k * 9)) & (BLOCK_BITS - 1);
+            long word = bits[block + (bit >>> 6)];
+            if ((word & (1L << bit)) == 0) {
+                bits[block + (bit >>> 6)] = word | (1L << bit);
+                changed = true;
+            }
+        }
+        if (changed) {
+            added++;
+        }
+    }
+
+    /**
+     * @return the index in the bit array of the first long of the block for a hash.
+     * */
+    private int block(long mixed) {
+        // the low 54 bits pick the bits within the block, so the block is picked by a second mix
+        return (int) Long.remainderUnsigned(mix(mixed ^ FNV_OFFSET), nOfBlocks) * BLOCK_LONGS;
+    }
+
+    /**
+     * 64 bit FNV-1a over the characters of the prefix, finished by {@link #mix(long)}.
+     * */
+    private static long next(long hash, char c) {
+        return (hash ^ c) * FNV_PRIME;
+    }
+
+    /**
+     * The murmur3 finalizer, so that every bit of the result depends on every character.
+     * */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
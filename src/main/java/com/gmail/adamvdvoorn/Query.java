@@ -0,0 +1,104 @@
+package com.gmail.adamvdvoorn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * com.gmail.adamvdvoorn.Query
+ * A parsed boolean search, see {@link TrieMap#searchQuery(String)}.
+ *
+ * Syntax:
+ *
+ *      cheese sharp        items matching both terms
+ *      apple | pear        items matching either term. binds tighter than the implicit AND
+ *      cheese -sliced      items matching cheese, but not sliced
+ *      -apple | pear       items matching neither apple nor pear
+ *
+ * Each term is broken into keywords the same way as names, and a term that breaks into several keywords only matches
+ * items that match all of them.
+ * */
+final class Query {
+    private final List<Group> required = new ArrayList<>();
+    private final List<Group> excluded = new ArrayList<>();
+
+    private Query() {
+    }
+
+    /**
+     * @param query the query to parse.
+     * @param toKeywords breaks a term into keywords.
+     * @return the parsed query. terms with no keywords are left out.
+     * */
+    static Query parse(String query, Function<String, List<String>> toKeywords) {
+        Query parsed = new Query();
+        Group group = null;
+        boolean or = false; // the next term is another alternative of the current group
+        int i = 0;
+        while (i < query.length()) {
+            char c = query.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+            if (c == '|') {
+                or = group != null;
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < query.length() && !Character.isWhitespace(query.charAt(i)) && query.charAt(i) != '|') {
+                i++;
+            }
+            boolean negated = c == '-';
+            List<String> keywords = toKeywords.apply(query.substring(negated ? start + 1 : start, i));
+            if (keywords.isEmpty()) {
+                continue;
+            }
+            if (!or) {
+                group = new Group();
+                (negated ? parsed.excluded : parsed.required).add(group);
+            }
+            group.alternatives.add(keywords);
+            or = false;
+        }
+        return parsed;
+    }
+
+    /**
+     * @return the groups an item must match, in the order they appear in the query.
+     * */
+    List<Group> getRequired() {
+        return Collections.unmodifiableList(required);
+    }
+
+    /**
+     * @return the groups an item must not match.
+     * */
+    List<Group> getExcluded() {
+        return Collections.unmodifiableList(excluded);
+    }
+
+    /**
+     * Terms joined by |, each a list of keywords.
+     * */
+    static final class Group {
+        private final List<List<String>> alternatives = new ArrayList<>();
+
+        List<List<String>> getAlternatives() {
+            return Collections.unmodifiableList(alternatives);
+        }
+
+        /**
+         * @return the # of search keyword positions the group takes up, that of its longest alternative.
+         * */
+        int width() {
+            int width = 0;
+            for (List<String> alternative : alternatives) {
+                width = Math.max(width, alternative.size());
+            }
+            return width;
+        }
+    }
+}
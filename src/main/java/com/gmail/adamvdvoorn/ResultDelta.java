@@ -0,0 +1,42 @@
+package com.gmail.adamvdvoorn;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>
+ * The items that entered and left the results of a standing query, see {@link TrieMap#subscribe(String, java.util.concurrent.Flow.Subscriber)}.
+ *
+ * A delta covers every change since the previous delta delivered to the same subscriber. An item that entered and
+ * then left the results in between is in neither list.
+ * </p>
+ * @param <T> the type of item stored in the trie.
+ * */
+public final class ResultDelta<T> {
+    private final List<T> added;
+    private final List<T> removed;
+
+    ResultDelta(List<T> added, List<T> removed) {
+        this.added = Collections.unmodifiableList(added);
+        this.removed = Collections.unmodifiableList(removed);
+    }
+
+    /**
+     * @return the items that entered the results, in the order they did. the first delta holds the query's results.
+     * */
+    public List<T> getAdded() {
+        return added;
+    }
+
+    /**
+     * @return the items that left the results, in the order they did.
+     * */
+    public List<T> getRemoved() {
+        return removed;
+    }
+
+    @Override
+    public String toString() {
+        return "ResultDelta{added=" + added + ", removed=" + removed + "}";
+    }
+}
@@ -0,0 +1,46 @@
+package com.gmail.adamvdvoorn;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>
+ * One page of the results of a search, see {@link TrieMap#searchPage(String, int, Cursor)}.
+ * </p>
+ * @param <T> the type of item stored in the trie.
+ * */
+public final class ResultPage<T> {
+    private final List<T> items;
+    private final Cursor next;
+
+    ResultPage(List<T> items, Cursor next) {
+        this.items = Collections.unmodifiableList(items);
+        this.next = next;
+    }
+
+    /**
+     * @return the items on this page, in order.
+     * */
+    public List<T> getItems() {
+        return items;
+    }
+
+    /**
+     * @return the cursor to pass for the next page, or null if this is the last page.
+     * */
+    public Cursor getNext() {
+        return next;
+    }
+
+    /**
+     * @return true if there are results after this page.
+     * */
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    @Override
+    public String toString() {
+        return "ResultPage{items=" + items + ", hasNext=" + hasNext() + "}";
+    }
+}
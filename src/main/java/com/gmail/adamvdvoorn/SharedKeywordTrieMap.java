@@ -0,0 +1,244 @@
+package com.gmail.adamvdvoorn;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * <p>
+ * A map that looks up keywords in a {@link KeywordDictionary} shared with other maps, rather than in a trie of
+ * its own. For many small maps with the same vocabulary, such as one map per store.
+ *
+ * Each map only holds a table from keyword ID to the items under that keyword, so its memory is proportional to the
+ * # of items it holds, and the keywords themselves are stored once, in the dictionary.
+ * A search keyword is resolved to the IDs of the keywords it is a prefix of once, in the dictionary, and each map
+ * then looks up those IDs in its table. When a prefix matches more keywords in the dictionary than the map holds,
+ * the map checks its own keywords against the prefix instead.
+ *
+ * Searching, sorting and ordering work exactly as in TrieMap. The features of a TrieMap that are built out of
+ * TrieNodes (the reverse index, infix search, transactions, snapshots, the prefix filter, the hot prefix cache and
+ * subscriptions) are not part of a SharedKeywordTrieMap. The dictionary is safe to share between threads, each map is
+ * used as a TrieMap is.
+ * </p>
+ * @param <T> the type of item to store in the trie.
+ * */
+public class SharedKeywordTrieMap<T> extends AbstractTrieMap<T> {
+    private final KeywordDictionary dictionary;
+    // keyword id -> item key -> association
+    private final Map<Integer, Map<Object, TrieNode.objectAssociation<T>>> postings = new HashMap<>();
+
+    /**
+     * Constructor with the default patterns, see {@link TrieMap#TrieMap()}.
+     * Results are not sorted.
+     * @param dictionary the dictionary shared with other maps.
+     * */
+    public SharedKeywordTrieMap(KeywordDictionary dictionary) {
+        this(dictionary, (a, b) -> 0);
+    }
+
+    /**
+     * Constructor that takes a comparator for sorting the results, see {@link TrieMap#TrieMap(Comparator)}.
+     * @param dictionary the dictionary shared with other maps.
+     * @param comparator the comparator to use for sorting the search results.
+     * */
+    public SharedKeywordTrieMap(KeywordDictionary dictionary, Comparator<SearchResult> comparator) {
+        super(comparator, DEFAULT_CONCAT, DEFAULT_DELIM, null);
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Constructor that also sets what items are hashed and compared by, see {@link TrieMap}.
+     * @param dictionary the dictionary shared with other maps.
+     * @param comparator the comparator to use for sorting the search results.
+     * @param toConcat strings that fulfill this pattern are removed, strings on either side are concatenated
+     * @param delim pattern used as the delimiter to separate keywords
+     * @param itemKey returns the key of an item. must return equal keys for the same item every time it is called.
+     */
+    public SharedKeywordTrieMap(KeywordDictionary dictionary, Comparator<SearchResult> comparator, Pattern toConcat,
+                                Pattern delim, Function<? super T, ?> itemKey) {
+        super(comparator, toConcat, delim, Objects.requireNonNull(itemKey));
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Puts an item into the map, under the keywords of its name, see {@link TrieMap#put(String, Object)}.
+     * Keywords the dictionary does not have yet are added to it.
+     * @param name the name of the item, which is broken into keywords.
+     * @param item the item to store.
+     * */
+    public void put(String name, T item) {
+        putKeywords(processName(name), item);
+    }
+
+    /**
+     * Puts an item under keywords that have already been processed from its name.
+     * */
+    void putKeywords(List<String> keywords, T item) {
+        List<TrieNode.objectAssociation<T>> associations = associate(item, keywords);
+        for (int i = 0; i < keywords.size(); i++) {
+            TrieNode.objectAssociation<T> association = associations.get(i);
+            postings.computeIfAbsent(dictionary.idOf(keywords.get(i)), (id) -> new HashMap<>(4))
+                    .put(association.key, association);
+        }
+    }
+
+    /**
+     * Removes an item from the map, see {@link TrieMap#remove(String, Object)}. The dictionary keeps its keywords.
+     * @param name the name the item was put under.
+     * @param item the item to remove.
+     * @throws NoAssociatedObjectsException if a keyword of the name has nothing stored under it.
+     * */
+    public void remove(String name, T item) throws NoAssociatedObjectsException {
+        List<String> keywords = processName(name);
+        Object key = keyOf(item);
+        for (int i = 0; i < keywords.size(); i++) {
+            String keyword = keywords.get(i);
+            if (keywords.indexOf(keyword) < i) {
+                continue; // removed with its first appearance
+            }
+            int id = dictionary.find(keyword);
+            Map<Object, TrieNode.objectAssociation<T>> associations = id == -1 ? null : postings.get(id);
+            if (associations == null) {
+                throw new NoAssociatedObjectsException();
+            }
+            associations.remove(key);
+            if (associations.isEmpty()) {
+                postings.remove(id);
+            }
+        }
+    }
+
+    /**
+     * returns all the items in this TrieMap.
+     * O(n) complexity, where n is the # of keyword associations.
+     * @return all of the items in this TrieMap
+     */
+    @Override
+    public Collection<T> items() {
+        return distinctItems(postings.values().stream().flatMap((associations) -> associations.values().stream()));
+    }
+
+    @Override
+    boolean isEmpty() {
+        return postings.isEmpty();
+    }
+
+    /**
+     * The dictionary is shared with other maps, and is not counted.
+     * @return the estimated # of bytes of this map's table from keyword ID to items, and of its associations.
+     */
+    @Override
+    public long estimateRetainedBytes() {
+        long bytes = TrieNode.hashMapBytes(postings.size());
+        for (Map.Entry<Integer, Map<Object, TrieNode.objectAssociation<T>>> entry : postings.entrySet()) {
+            if (entry.getKey() > Byte.MAX_VALUE) {
+                bytes += TrieNode.BOXED_BYTES;
+            }
+            bytes += TrieNode.hashMapBytes(entry.getValue().size(), 4);
+            for (TrieNode.objectAssociation<T> association : entry.getValue().values()) {
+                bytes += association.estimateBytes();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the keywords of this map, in alphabetical order, each with the # of items under it.
+     * */
+    @Override
+    public String toString() {
+        Map<String, Integer> counts = new TreeMap<>();
+        for (Map.Entry<Integer, Map<Object, TrieNode.objectAssociation<T>>> entry : postings.entrySet()) {
+            counts.put(dictionary.keyword(entry.getKey()), entry.getValue().size());
+        }
+        return counts.toString();
+    }
+
+    @Override
+    KeywordMatches<T> getKeywordMatches(String keyword) throws NoAssociatedObjectsException {
+        Matches matches = match(keyword);
+        if (matches.associations.isEmpty()) {
+            throw new NoAssociatedObjectsException();
+        }
+        return matches;
+    }
+
+    @Override
+    Map<String, KeywordMatches<T>> getKeywordMatches(List<String> sortedKeywords) {
+        Map<String, KeywordMatches<T>> matches = new HashMap<>();
+        for (String keyword : sortedKeywords) {
+            Matches keywordMatches = match(keyword);
+            if (!keywordMatches.associations.isEmpty()) {
+                matches.put(keyword, keywordMatches);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * @return the associations of every keyword in this map that starts with the search keyword.
+     * */
+    private Matches match(String keyword) {
+        Matches matches = new Matches(keyword.length());
+        int[] ids = dictionary.resolve(keyword);
+        if (ids.length <= postings.size()) {
+            for (int id : ids) {
+                matches.add(id, postings.get(id));
+            }
+        }
+        else {
+            // this map holds fewer keywords than the prefix matches in the dictionary
+            for (Map.Entry<Integer, Map<Object, TrieNode.objectAssociation<T>>> entry : postings.entrySet()) {
+                if (dictionary.keyword(entry.getKey()).startsWith(keyword)) {
+                    matches.add(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * The associations of the keywords a search keyword matched.
+     * */
+    private class Matches implements KeywordMatches<T> {
+        private final int searchLength; // the length of the search keyword
+        private final List<Integer> ids = new ArrayList<>(); // ids.get(i) is the keyword of associations.get(i)
+        private final List<Map<Object, TrieNode.objectAssociation<T>>> associations = new ArrayList<>();
+        private int size = 0;
+
+        Matches(int searchLength) {
+            this.searchLength = searchLength;
+        }
+
+        void add(int id, Map<Object, TrieNode.objectAssociation<T>> keywordAssociations) {
+            if (keywordAssociations != null) {
+                ids.add(id);
+                associations.add(keywordAssociations);
+                size += keywordAssociations.size();
+            }
+        }
+
+        @Override
+        public int getSubtreeSize() {
+            return size;
+        }
+
+        @Override
+        public Stream<TrieNode.objectAssociation<T>> streamAssociations(int splitThreshold) {
+            Stream<TrieNode.objectAssociation<T>> stream = associations.stream().flatMap((a) -> a.values().stream());
+            return size >= splitThreshold ? stream.parallel() : stream;
+        }
+
+        @Override
+        public void forEachAssociation(BiConsumer<CharSequence, TrieNode.objectAssociation<T>> action) {
+            for (int i = 0; i < ids.size(); i++) {
+                String rest = dictionary.keyword(ids.get(i)).substring(searchLength);
+                for (TrieNode.objectAssociation<T> association : associations.get(i).values()) {
+                    action.accept(rest, association);
+                }
+            }
+        }
+    }
+}
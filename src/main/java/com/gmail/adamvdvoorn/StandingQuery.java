@@ -0,0 +1,199 @@
+package com.gmail.adamvdvoorn;
+
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * com.gmail.adamvdvoorn.StandingQuery
+ * A subscription to the results of a query, see {@link TrieMap#subscribe(String, Flow.Subscriber, Executor)}.
+ *
+ * The map tells the query which items entered and left its results as it changes. Changes are collected until the
+ * subscriber has requested a delta, and then delivered together as one, on the executor. A subscriber that falls
+ * behind never holds up the map: its changes keep being merged into the next delta, which is at most as large as the
+ * # of distinct items that changed.
+ * */
+final class StandingQuery<T> implements Flow.Subscription {
+    private final List<String> keywords; // distinct
+    private final Flow.Subscriber<? super ResultDelta<T>> subscriber;
+    private final Executor executor;
+    private final Set<Object> members = new HashSet<>(); // keys of the items in the results, only used by the map
+    // item key -> the item's keywords that start with one of the query's keywords, only used by the map
+    private final Map<Object, Set<String>> matched = new HashMap<>();
+    private final Queue<StandingQuery<T>> cancelledQueries; // the map's, which unsubscribes the queries in it
+
+    /* guarded by this */
+    private Map<Object, T> added = new LinkedHashMap<>();
+    private Map<Object, T> removed = new LinkedHashMap<>();
+    private boolean delivered = false; // the first delta is delivered even if it is empty
+    private long demand = 0;
+
+    private final AtomicInteger pendingDrains = new AtomicInteger(); // > 0 while a drain is scheduled or running
+    private volatile boolean cancelled = false;
+
+    StandingQuery(List<String> keywords, Flow.Subscriber<? super ResultDelta<T>> subscriber, Executor executor,
+                  Queue<StandingQuery<T>> cancelledQueries) {
+        this.keywords = keywords;
+        this.subscriber = subscriber;
+        this.executor = executor;
+        this.cancelledQueries = cancelledQueries;
+    }
+
+    List<String> getKeywords() {
+        return keywords;
+    }
+
+    boolean isMember(Object key) {
+        return members.contains(key);
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Called by the map when an item is put under a keyword that starts with one of the query's keywords.
+     * */
+    void keywordAdded(Object key, String keyword) {
+        matched.computeIfAbsent(key, (k) -> new HashSet<>(4)).add(keyword);
+    }
+
+    /**
+     * Called by the map when an item is removed from a keyword that starts with one of the query's keywords.
+     * */
+    void keywordRemoved(Object key, String keyword) {
+        Set<String> itemKeywords = matched.get(key);
+        if (itemKeywords != null && itemKeywords.remove(keyword) && itemKeywords.isEmpty()) {
+            matched.remove(key);
+        }
+    }
+
+    /**
+     * O(n * m) complexity, where n is the # of the query's keywords and m the # of the item's keywords that start with
+     * one of them.
+     * @return whether every keyword of the query is the start of one of the item's keywords, i.e. whether the item is
+     * in the results.
+     * */
+    boolean matches(Object key) {
+        Set<String> itemKeywords = matched.get(key);
+        if (itemKeywords == null) {
+            return false;
+        }
+        for (String keyword : keywords) {
+            boolean found = false;
+            for (String itemKeyword : itemKeywords) {
+                if (itemKeyword.startsWith(keyword)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Called by the map when an item enters the results.
+     * */
+    void add(Object key, T item) {
+        if (!members.add(key)) {
+            return;
+        }
+        synchronized (this) {
+            // an item that left and came back is unchanged as far as the subscriber knows
+            if (removed.remove(key) == null) {
+                added.put(key, item);
+            }
+        }
+        drain();
+    }
+
+    /**
+     * Called by the map when an item leaves the results.
+     * */
+    void remove(Object key, T item) {
+        if (!members.remove(key)) {
+            return;
+        }
+        synchronized (this) {
+            if (added.remove(key) == null) {
+                removed.put(key, item);
+            }
+        }
+        drain();
+    }
+
+    @Override
+    public void request(long n) {
+        if (n <= 0) {
+            fail(new IllegalArgumentException("non-positive request: " + n));
+            return;
+        }
+        synchronized (this) {
+            demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+        }
+        drain();
+    }
+
+    @Override
+    public void cancel() {
+        if (!cancelled) {
+            cancelled = true;
+            // the map unsubscribes the query the next time it changes, on the thread that changes it
+            cancelledQueries.add(this);
+        }
+    }
+
+    /**
+     * Schedules delivery on the executor, unless a delivery is already scheduled or running,
+     * which then delivers whatever this call would have.
+     * */
+    private void drain() {
+        if (cancelled || pendingDrains.getAndIncrement() != 0) {
+            return;
+        }
+        try {
+            executor.execute(this::deliver);
+        }
+        catch (RejectedExecutionException e) {
+            fail(e);
+        }
+    }
+
+    private void deliver() {
+        int missed = 1;
+        do {
+            while (!cancelled) {
+                ResultDelta<T> delta;
+                synchronized (this) {
+                    if (demand == 0 || delivered && added.isEmpty() && removed.isEmpty()) {
+                        break;
+                    }
+                    delta = new ResultDelta<>(new ArrayList<>(added.values()), new ArrayList<>(removed.values()));
+                    added = new LinkedHashMap<>();
+                    removed = new LinkedHashMap<>();
+                    delivered = true;
+                    demand--;
+                }
+                try {
+                    subscriber.onNext(delta);
+                }
+                catch (Throwable t) {
+                    fail(t);
+                }
+            }
+            missed = pendingDrains.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void fail(Throwable t) {
+        if (!cancelled) {
+            cancel();
+            subscriber.onError(t);
+        }
+    }
+}
@@ -1,9 +1,21 @@
 package com.gmail.adamvdvoorn;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Function;
+import java.util.function.ToLongFunction;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * <p>
@@ -32,16 +44,32 @@ import java.util.stream.Collectors;
  * </p>
  * @param <T> the type of item to store in the trie.
  * */
-public class TrieMap<T> {
-    private Comparator<SearchResult> comparator; // comparator for sorting results
-    
-    /* regexes to aid in separating keywords from names  */
-    // strings that fulfil this pattern are removed, strings on either side are concatenated
-    private Pattern toConcat;
-    // pattern used as the delimiter to separate keywords
-    private Pattern delim;
-    
-    private final TrieNode<T> rootNode = new TrieNode<>(null, null);
+public class TrieMap<T> extends AbstractTrieMap<T> {
+    // the root of the trie, and how many transactions have been committed to it
+    private volatile Version<T> current = new Version<>(new TrieNode<>('\0', null), 0, null);
+    // once set, every change copies the nodes it touches rather than changing nodes that snapshots can see
+    private volatile boolean versioned = false;
+    private final ReentrantLock writerLock = new ReentrantLock(); // held by the open transaction
+
+    // item key -> the nodes holding the item's keywords, null unless enabled
+    private Map<Object, List<TrieNode<T>>> reverseIndex = null;
+    private static final int REVERSE_INDEX_LIST_BYTES = 24; // an ArrayList, not counting its array
+
+    // the suffixes of every keyword, null unless infix search is enabled
+    private TrieNode<T> suffixRoot = null;
+    private int minSuffixLength;
+
+    // the keyword prefixes in the trie, so searches for keywords that are not there end early. null unless enabled.
+    // once versioned, each version keeps the filter that was current when it was committed
+    private PrefixFilter prefixFilter = null;
+
+    // the matches of the most searched broad keywords, null unless enabled
+    private HotPrefixCache<T> hotPrefixes = null;
+
+    // the keywords of standing queries, each associated with its query, null until something subscribes
+    private TrieNode<StandingQuery<T>> subscriptionRoot = null;
+    // cancelled standing queries, unsubscribed by the next change
+    private final Queue<StandingQuery<T>> cancelledQueries = new ConcurrentLinkedQueue<>();
     
     /**
      * Default constructor.
@@ -50,9 +78,7 @@ public class TrieMap<T> {
      * Default delimiter = [^a-zA-Z0-9&]+
      * */
     public TrieMap() {
-        comparator = (a, b) -> 0;
-        toConcat = Pattern.compile("[',]");
-        delim = Pattern.compile("[^a-zA-Z0-9&]+");
+        this((a, b) -> 0);
     }
 
     /**
@@ -62,9 +88,7 @@ public class TrieMap<T> {
      * @param comparator the comparator to use for sorting the search results. 
      */
     public TrieMap(Comparator<SearchResult> comparator) {
-        this.comparator = comparator;
-        toConcat = Pattern.compile("[',]");
-        delim = Pattern.compile("[^a-zA-Z0-9&]+");
+        this(comparator, DEFAULT_CONCAT, DEFAULT_DELIM);
     }
 
     /**
@@ -74,9 +98,7 @@ public class TrieMap<T> {
      * @param delim pattern used as the delimiter to separate keywords
      */
     public TrieMap(String toConcat, String delim) {
-        comparator = (a, b) -> 0;
-        this.toConcat = Pattern.compile(toConcat);
-        this.delim = Pattern.compile(delim);
+        this((a, b) -> 0, Pattern.compile(toConcat), Pattern.compile(delim));
     }
 
     /**
@@ -87,55 +109,69 @@ public class TrieMap<T> {
      * @param delim pattern used as the delimiter to separate keywords
      */
     public TrieMap(Comparator<SearchResult> comparator, Pattern toConcat, Pattern delim) {
-        this.comparator = comparator;
-        this.toConcat = toConcat;
-        this.delim = delim;
-    }
-
-    /**
-     * Searches the trie for any items that match or partially match the given name.
-     * The given name is broken into keywords using the patterns defined at construction time.
-     * An item will be returned if all the search keywords at least partially match some or all of the stored keywords
-     * of an item.
-     * A keyword partially matching is where a substring (starting at index 0) of a given keyword matches a substring
-     * (starting at index 0) of a stored keyword.
-     * This means that if your search string equals the name you stored your item under, it is guaranteed to be in the
-     * returned list.
-     * However, if your search only partially matches the item you want, whether it will be in the list all depends on
-     * the patterns you defined at construction time.
-     *
-     * @param name the name of the item to search for.
-     * @return a list of all the items associated with the input name, ordered by the comparator in this trie object. 
-     * an empty search input returns an empty list.
-     * */
+        super(comparator, toConcat, delim, null);
+    }
+
+    /**
+     * Constructor that also sets what items are hashed and compared by, instead of their own equals and hashCode.
+     * Every search hashes every candidate item for every keyword, so items with an expensive hashCode should be given
+     * a cheap key, such as {@link #longKey(ToLongFunction)} or {@link #identityKey()}.
+     * Two items with equal keys are treated as the same item.
+     * @param comparator the comparator to use for sorting the search results.
+     * @param toConcat strings that fulfill this pattern are removed, strings on either side are concatenated
+     * @param delim pattern used as the delimiter to separate keywords
+     * @param itemKey returns the key of an item. must return equal keys for the same item every time it is called.
+     */
+    public TrieMap(Comparator<SearchResult> comparator, Pattern toConcat, Pattern delim, Function<? super T, ?> itemKey) {
+        super(comparator, toConcat, delim, Objects.requireNonNull(itemKey));
+    }
+
+    /**
+     * Constructor that copies the settings of another map, but none of its items.
+     * @param settings the map to copy the comparator, patterns, item key and parallel thresholds from.
+     */
+    TrieMap(AbstractTrieMap<T> settings) {
+        super(settings);
+    }
+
+    @Override
     public List<T> search(String name) {
-        List<String> keywords = processName(name);
-        if (keywords.isEmpty()) {
-        	return new ArrayList<>();
+        if (versioned) {
+            return new TrieMapSnapshot<>(this, current).search(name);
         }
-        try {
-            Map<T, SearchResult> resultsA = searchForKeyword(keywords,0);
-            for (int i = 1; i < keywords.size(); i++) {
-                Map<T, SearchResult> resultsB = searchForKeyword(keywords, i);
-                
-                resultsA = resultsA.entrySet().stream()
-                		// filter out any items that don't at least partially match both keywords
-                        .filter((entry) -> resultsB.containsKey(entry.getKey()))
-                        
-                        // combine each filtered result in A with the same result in B
-                        .map((entry) -> entry.getValue().combine(resultsB.get(entry.getKey())))
-                        .collect(Collectors.toMap(SearchResult::getItem, Function.identity()));
-            }
-            List<SearchResult> results = new ArrayList<>(resultsA.values());
-            results.sort(comparator.reversed());
-            return results.stream()
-                    .map((e) -> e.item)
-                    .collect(Collectors.toList());        
-        } 
-        // no matches found
-        catch (NoAssociatedObjectsException e) { 
-            return new ArrayList<>();
+        return super.search(name);
+    }
+
+    @Override
+    public ResultPage<T> searchPage(String query, int pageSize, Cursor after) {
+        if (versioned) {
+            return new TrieMapSnapshot<>(this, current).searchPage(query, pageSize, after);
+        }
+        return super.searchPage(query, pageSize, after);
+    }
+
+    @Override
+    public List<T> searchQuery(String query) {
+        if (versioned) {
+            return new TrieMapSnapshot<>(this, current).searchQuery(query);
+        }
+        return super.searchQuery(query);
+    }
+
+    @Override
+    public List<T> searchPhrase(String phrase) {
+        if (versioned) {
+            return new TrieMapSnapshot<>(this, current).searchPhrase(phrase);
+        }
+        return super.searchPhrase(phrase);
+    }
+
+    @Override
+    public Map<String, List<T>> searchAll(Collection<String> names) {
+        if (versioned) {
+            return new TrieMapSnapshot<>(this, current).searchAll(names);
         }
+        return super.searchAll(names);
     }
 
     /**
@@ -144,10 +180,42 @@ public class TrieMap<T> {
      * @param item the item that is associated with the given name.
      * */
     public void put(String name, T item) {
-        List<String> keywords = processName(name);
+        putKeywords(processName(name), item);
+    }
+
+    /**
+     * puts an item in the trie under a name that has already been broken into keywords by {@link #processName(String)}.
+     * */
+    void putKeywords(List<String> keywords, T item) {
+        if (versioned) {
+            try (Transaction transaction = begin()) {
+                transaction.putKeywords(keywords, item);
+                transaction.commit();
+            }
+            return;
+        }
+        List<TrieNode.objectAssociation<T>> associations = associate(item, keywords);
+        TrieNode<T> root = current.root;
         for (int i = 0; i < keywords.size(); i++) {
-            rootNode.pass(keywords.get(i), new TrieNode.objectAssociation<>(item, i, keywords.size()), 0);
+            TrieNode.objectAssociation<T> association = associations.get(i);
+            TrieNode<T> node = root.pass(keywords.get(i), association, 0);
+            if (reverseIndex != null) {
+                addToReverseIndex(association.key, node);
+            }
+            if (hotPrefixes != null) {
+                hotPrefixes.added(node, association);
+            }
+            if (suffixRoot != null) {
+                indexSuffixes(keywords.get(i), association);
+            }
+            if (prefixFilter != null) {
+                prefixFilter.addPrefixes(keywords.get(i));
+            }
         }
+        if (prefixFilter != null && prefixFilter.isOverfull()) {
+            prefixFilter = buildPrefixFilter(root, prefixFilter.getMaxPrefixLength());
+        }
+        notifySubscribers(keywords, item, true);
     }
 
     /**
@@ -157,9 +225,291 @@ public class TrieMap<T> {
      * @throws NoAssociatedObjectsException if an item under that name does not exist.
      * */
     public void remove(String name, T item) throws NoAssociatedObjectsException {
+        removeKeywords(processName(name), item);
+    }
+
+    /**
+     * removes an item from the trie under a name that has already been broken into keywords by
+     * {@link #processName(String)}.
+     * */
+    void removeKeywords(List<String> keywords, T item) throws NoAssociatedObjectsException {
+        if (versioned) {
+            try (Transaction transaction = begin()) {
+                transaction.removeKeywords(keywords, item);
+                transaction.commit();
+            }
+            return;
+        }
+        Object key = keyOf(item);
+        for (int i = 0; i < keywords.size(); i++) {
+            String keyword = keywords.get(i);
+            if (keywords.indexOf(keyword) < i) {
+                continue; // a repeated keyword shares the association of its first position
+            }
+            TrieNode<T> node = removeKeyword(key, keyword);
+            if (reverseIndex != null) {
+                removeFromReverseIndex(key, node);
+            }
+            if (hotPrefixes != null) {
+                hotPrefixes.removed(node, key);
+            }
+            if (suffixRoot != null) {
+                unindexSuffixes(keyword, key);
+            }
+        }
+        notifySubscribers(keywords, item, false);
+    }
+
+    /**
+     * removes an item from the trie, under every name it was put with.
+     * Requires the reverse index, see {@link #enableReverseIndex()}.
+     * O(n) complexity, where n is the # of keywords in the item's names.
+     * @param item the item to remove.
+     * @throws NoAssociatedObjectsException if the item is not in the trie.
+     * */
+    public void remove(T item) throws NoAssociatedObjectsException {
+        Object key = keyOf(item);
+        List<TrieNode<T>> nodes = getReverseIndex().remove(key);
+        if (nodes == null) {
+            throw new NoAssociatedObjectsException();
+        }
+        List<String> keywords = new ArrayList<>(nodes.size());
+        for (TrieNode<T> node : nodes) {
+            keywords.add(node.getKeyword());
+            if (suffixRoot != null) {
+                unindexSuffixes(node.getKeyword(), key);
+            }
+            node.removeAssociation(key);
+            prune(node);
+            if (hotPrefixes != null) {
+                hotPrefixes.removed(node, key);
+            }
+        }
+        notifySubscribers(keywords, item, false);
+    }
+
+    /**
+     * Replaces every name an item was put with by a new name.
+     * Only the keywords that differ between the old and new names are added to or removed from the trie,
+     * keywords in both only have their position in the name updated.
+     * Requires the reverse index, see {@link #enableReverseIndex()}.
+     * @param item the item to rename.
+     * @param newName the item's new name.
+     * @throws NoAssociatedObjectsException if the item is not in the trie.
+     * */
+    public void rename(T item, String newName) throws NoAssociatedObjectsException {
+        Object key = keyOf(item);
+        List<TrieNode<T>> oldNodes = getReverseIndex().get(key);
+        if (oldNodes == null) {
+            throw new NoAssociatedObjectsException();
+        }
+        Map<String, TrieNode<T>> oldKeywords = new HashMap<>();
+        for (TrieNode<T> node : oldNodes) {
+            oldKeywords.put(node.getKeyword(), node);
+        }
+        List<String> removedKeywords = new ArrayList<>(oldKeywords.keySet());
+
+        List<String> keywords = processName(newName);
+        List<TrieNode.objectAssociation<T>> associations = associate(item, keywords);
+        List<TrieNode<T>> newNodes = new ArrayList<>(keywords.size());
+        for (int i = 0; i < keywords.size(); i++) {
+            TrieNode.objectAssociation<T> association = associations.get(i);
+            TrieNode<T> node = oldKeywords.remove(keywords.get(i));
+            if (node != null) {
+                node.addAssociation(association); // replaces the old association
+            }
+            else {
+                node = current.root.pass(keywords.get(i), association, 0);
+                if (prefixFilter != null) {
+                    prefixFilter.addPrefixes(keywords.get(i));
+                }
+            }
+            if (hotPrefixes != null) {
+                hotPrefixes.added(node, association);
+            }
+            if (suffixRoot != null) {
+                indexSuffixes(keywords.get(i), association);
+            }
+            if (!newNodes.contains(node)) {
+                newNodes.add(node);
+            }
+        }
+        // only remove old keywords once the new ones are in, so branches the new keywords share are not pruned
+        for (TrieNode<T> node : oldKeywords.values()) {
+            if (!newNodes.contains(node)) {
+                if (suffixRoot != null) {
+                    unindexSuffixes(node.getKeyword(), key);
+                }
+                node.removeAssociation(key);
+                prune(node);
+                if (hotPrefixes != null) {
+                    hotPrefixes.removed(node, key);
+                }
+            }
+        }
+        if (newNodes.isEmpty()) {
+            reverseIndex.remove(key);
+        }
+        else {
+            reverseIndex.put(key, newNodes);
+        }
+        notifySubscribers(removedKeywords, item, false);
+        notifySubscribers(keywords, item, true);
+    }
+
+    /**
+     * Searches the trie for items with keywords that contain the search keywords anywhere, not just at the start.
+     * e.g. "berry" finds "blueberry pie". Requires infix search, see {@link #enableInfixSearch(int)}.
+     * An item is returned if every search keyword is the start of one of its keywords, or of a suffix of one of its
+     * keywords that is at least the minimum suffix length.
+     * Takes time proportional to the # of matches, the same as {@link #search(String)}.
+     * @param name the name of the item to search for.
+     * @return a list of all the items that match the input name, ordered by the comparator in this trie object.
+     * an empty search input returns an empty list.
+     * */
+    public List<T> searchInfix(String name) {
+        if (suffixRoot == null) {
+            throw new IllegalStateException("infix search is not enabled");
+        }
         List<String> keywords = processName(name);
-        for (String keyword : keywords) {
-            removeKeyword(item, keyword);
+        Map<Object, SearchResult> results = null;
+        for (int i = 0; i < keywords.size() && (results == null || !results.isEmpty()); i++) {
+            Stream<TrieNode.objectAssociation<T>> matches = Stream.empty();
+            boolean found = false;
+            for (TrieNode<T> root : Arrays.asList(current.root, suffixRoot)) {
+                try {
+                    matches = Stream.concat(matches, root.getNode(keywords.get(i), 0).streamAssociations(getParallelThreshold()));
+                    found = true;
+                }
+                catch (NoAssociatedObjectsException e) {
+                    // no keywords or suffixes start with the search keyword
+                }
+            }
+            if (!found) {
+                return new ArrayList<>();
+            }
+            Map<Object, SearchResult> keywordResults = toResults(matches, i, keywords.size());
+            results = results == null ? keywordResults : intersect(results, keywordResults);
+        }
+        return results == null ? new ArrayList<>() : sort(results);
+    }
+
+    /**
+     * Indexes every suffix of every keyword, so that {@link #searchInfix(String)} can find keywords by any part of them.
+     * A keyword of length n adds n - minSuffixLength suffixes to the index, so a higher minimum uses less memory, at the
+     * cost of not finding matches that only appear in the last few characters of a keyword.
+     * The index is built from the items already in the trie, and kept up to date from then on.
+     * See {@link #getInfixIndexSize()} for how large the index is.
+     * @param minSuffixLength the shortest suffix that is indexed.
+     * */
+    public void enableInfixSearch(int minSuffixLength) {
+        if (minSuffixLength < 1) {
+            throw new IllegalArgumentException("minSuffixLength must be positive: " + minSuffixLength);
+        }
+        checkUnversioned();
+        this.minSuffixLength = minSuffixLength;
+        suffixRoot = new TrieNode<>('\0', null);
+        Deque<TrieNode<T>> toVisit = new ArrayDeque<>();
+        toVisit.push(current.root);
+        while (!toVisit.isEmpty()) {
+            TrieNode<T> node = toVisit.pop();
+            if (!node.getAssociatedObjects().isEmpty()) {
+                String keyword = node.getKeyword();
+                for (TrieNode.objectAssociation<T> association : node.getAssociatedObjects()) {
+                    indexSuffixes(keyword, association);
+                }
+            }
+            for (TrieNode<T> child : node.getChildren()) {
+                toVisit.push(child);
+            }
+        }
+    }
+
+    /**
+     * @return the # of suffix associations in the infix index, or 0 if infix search is not enabled.
+     * Each one costs a HashMap entry and a small key object, on top of any nodes the suffix needed.
+     * */
+    public int getInfixIndexSize() {
+        return suffixRoot == null ? 0 : suffixRoot.getSubtreeSize();
+    }
+
+    /**
+     * Makes searches for keywords that are not in the trie return straight away, without descending the trie or
+     * collecting the matches of the search's other keywords. A Bloom filter of every keyword prefix up to
+     * maxPrefixLength characters is checked for every search keyword first, and a search with a keyword the filter has
+     * never seen returns no results. About 1% of such keywords are let through, and are found to be missing by
+     * descending the trie as usual.
+     * The filter takes about 10 bits per distinct prefix. It is built from the keywords already in the trie, added to
+     * by puts, and rebuilt once it holds twice as many prefixes as it was sized for. Removed keywords stay in the
+     * filter until it is rebuilt, which compaction also does, see {@link #compact()}.
+     * Longer prefixes reject more missing keywords, at the cost of memory and of hashing on every put.
+     * Works with transactions and snapshots, but must be enabled before the first of them: each committed version
+     * keeps the filter it was committed with, and a snapshot is checked against the filter of its own version.
+     * @param maxPrefixLength the longest prefix in the filter.
+     * */
+    public void enablePrefixFilter(int maxPrefixLength) {
+        if (maxPrefixLength < 1) {
+            throw new IllegalArgumentException("maxPrefixLength must be positive: " + maxPrefixLength);
+        }
+        checkUnversioned();
+        prefixFilter = buildPrefixFilter(current.root, maxPrefixLength);
+    }
+
+    /**
+     * @return the # of bytes used by the prefix filter, or 0 if it is not enabled.
+     * */
+    public long getPrefixFilterBytes() {
+        return prefixFilter == null ? 0 : prefixFilter.getBytes();
+    }
+
+    /**
+     * Speeds up searches for broad keywords that are searched often, such as single letters, by keeping their matches
+     * in flat lists. Each keyword that matches at least minSubtreeSize associations has its lookups counted, and once it
+     * has been searched often enough its matches are collected into a list, which later searches stream instead of
+     * walking the subtree. Puts, removes and renames keep the lists up to date in O(1) per list, and counts decay over
+     * time so that keywords that stop being searched are unpinned first when a hotter keyword needs the room.
+     * Keywords with smaller subtrees are always searched by walking the trie.
+     * Each pinned association costs about {@value HotPrefixCache#ASSOCIATION_BYTES} bytes, see
+     * {@link #getHotPrefixCacheBytes()}. Not supported together with transactions or snapshots.
+     * @param budgetBytes the most memory the pinned lists may use.
+     * @param minSubtreeSize the fewest associations a keyword must match to be pinned.
+     * */
+    public void enableHotPrefixCache(long budgetBytes, int minSubtreeSize) {
+        if (budgetBytes < 0 || minSubtreeSize < 1) {
+            throw new IllegalArgumentException("invalid hot prefix cache settings: " + budgetBytes + ", " + minSubtreeSize);
+        }
+        checkUnversioned();
+        hotPrefixes = new HotPrefixCache<>(budgetBytes, minSubtreeSize);
+    }
+
+    /**
+     * @return the estimated # of bytes used by the hot prefix cache's pinned lists, or 0 if it is not enabled.
+     * */
+    public long getHotPrefixCacheBytes() {
+        return hotPrefixes == null ? 0 : hotPrefixes.getUsedBytes();
+    }
+
+    /**
+     * Keeps track of the nodes holding each item's keywords, so that items can be removed or renamed without knowing
+     * the name they were put with. Costs one reference per keyword of each item.
+     * The index is built from the items already in the trie, and kept up to date from then on.
+     * */
+    public void enableReverseIndex() {
+        if (reverseIndex != null) {
+            return;
+        }
+        checkUnversioned();
+        reverseIndex = new HashMap<>();
+        Deque<TrieNode<T>> toVisit = new ArrayDeque<>();
+        toVisit.push(current.root);
+        while (!toVisit.isEmpty()) {
+            TrieNode<T> node = toVisit.pop();
+            for (TrieNode.objectAssociation<T> association : node.getAssociatedObjects()) {
+                addToReverseIndex(association.key, node);
+            }
+            for (TrieNode<T> child : node.getChildren()) {
+                toVisit.push(child);
+            }
         }
     }
 
@@ -169,15 +519,288 @@ public class TrieMap<T> {
      * @return all of the items in this TrieMap
      */
     public Collection<T> items() {
-        return rootNode.collect();
+        return distinctItems(current.root.streamAssociations(getParallelThreshold()));
+    }
+
+    @Override
+    boolean isEmpty() {
+        return current.root.getSubtreeSize() == 0;
+    }
+
+    /**
+     * Copies this TrieMap into a read-only map that is faster to search and safe to share between threads,
+     * see {@link ImmutableTrieMap}. Later changes to this map do not affect the copy.
+     * O(n) complexity, where n is the # of nodes and associations.
+     * @return the copy, with the same settings as this map.
+     */
+    public ImmutableTrieMap<T> toImmutable() {
+        return new ImmutableTrieMap<>(this, getRootNode());
+    }
+
+    /**
+     * Estimates the heap memory this map retains, for sizing the memory it needs: its nodes, their child and
+     * association maps, the associations between keywords and items, and the indexes that are enabled.
+     * The items and item keys, and the standing queries of subscriptions, are not counted.
+     * Sizes are estimated for a 64 bit JVM with compressed references. A versioned map counts its latest version,
+     * older versions that snapshots still refer to are not counted.
+     * O(n) complexity, where n is the # of nodes and associations.
+     * @return the estimated # of bytes.
+     */
+    public long estimateRetainedBytes() {
+        long bytes = TrieNode.estimateSubtreeBytes(getRootNode(), true);
+        if (suffixRoot != null) {
+            // the associations are shared with the trie, each suffix is stored under its own SuffixKey
+            bytes += TrieNode.estimateSubtreeBytes(suffixRoot, false)
+                    + (long) suffixRoot.getSubtreeSize() * SuffixKey.BYTES;
+        }
+        if (reverseIndex != null) {
+            bytes += TrieNode.hashMapBytes(reverseIndex.size());
+            for (List<TrieNode<T>> nodes : reverseIndex.values()) {
+                bytes += REVERSE_INDEX_LIST_BYTES + TrieNode.arrayBytes((long) Math.max(4, nodes.size()) * 4);
+            }
+        }
+        return bytes + getPrefixFilterBytes() + getHotPrefixCacheBytes();
+    }
+
+    /**
+     * Frees the memory that removals leave behind. A node's maps keep the capacity they grew to after entries are
+     * removed from them, so this rebuilds every map with more capacity than it needs, and releases empty maps,
+     * which are only allocated again when something is added to the node.
+     * Maps are also sized to fit when they are first compacted, so this frees memory in a trie that was only put into.
+     * O(n) complexity, where n is the # of nodes. See {@link #startCompaction()} to do this a part at a time.
+     * @return the estimated # of bytes freed.
+     */
+    public long compact() {
+        Compaction compaction = startCompaction();
+        compaction.step(Integer.MAX_VALUE);
+        return compaction.getBytesReclaimed();
+    }
+
+    /**
+     * Starts compacting the trie a part at a time, see {@link #compact()}.
+     * Puts and removes can be made between steps. Nodes added after the compaction started may not be compacted,
+     * and compacting nodes that have been removed since does nothing.
+     * Not supported once transactions or snapshots have been used, as every version shares the same nodes.
+     * @return the compaction, which compacts nothing until it is stepped.
+     */
+    public Compaction startCompaction() {
+        checkUnversioned();
+        return new Compaction();
+    }
+
+    /**
+     * Starts a transaction: a batch of puts and removes that searches do not see until it is committed, and then see
+     * all at once. See {@link Transaction}.
+     * Only one transaction is open at a time, this waits for any other transaction to be committed or rolled back.
+     * Once a transaction or snapshot has been made, every put and remove on this map is its own transaction.
+     * Not supported together with the reverse index, infix search or hot prefix cache.
+     * @return the transaction, which must be committed or rolled back by the thread that began it.
+     * @throws IllegalStateException if this thread already has an open transaction on this map,
+     * or the reverse index, infix search or hot prefix cache is enabled.
+     */
+    public Transaction begin() {
+        if (writerLock.isHeldByCurrentThread()) {
+            throw new IllegalStateException("this thread already has an open transaction");
+        }
+        writerLock.lock();
+        try {
+            return new Transaction(startVersioning());
+        }
+        catch (RuntimeException e) {
+            writerLock.unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Takes a snapshot of the latest committed version of this map. The snapshot does not change when transactions are
+     * committed to this map, and is searched without taking any locks. It costs nothing to take: versions share every
+     * node that a transaction did not change, and an old version is garbage collected once no snapshot refers to it.
+     * Once a transaction or snapshot has been made, every put and remove on this map is its own transaction, and
+     * every search on this map reads the latest version once, and searches it as a snapshot would.
+     * Not supported together with the reverse index, infix search or hot prefix cache.
+     * @return the snapshot.
+     * @throws IllegalStateException if the reverse index, infix search or hot prefix cache is enabled.
+     */
+    public TrieMapSnapshot<T> snapshot() {
+        return new TrieMapSnapshot<>(this, startVersioning());
+    }
+
+    /**
+     * Switches this map to copying the nodes it changes, if it has not been switched already.
+     * Switching holds the writer lock, so it cannot replace a version committed at the same time.
+     * @return the latest committed version.
+     * */
+    private Version<T> startVersioning() {
+        checkVersionable();
+        if (!versioned) {
+            writerLock.lock();
+            try {
+                if (!versioned) {
+                    // from now on the prefix filter is only replaced by commits, so each version keeps its own
+                    current = new Version<>(current.root, current.number, prefixFilter);
+                    versioned = true;
+                }
+            }
+            finally {
+                writerLock.unlock();
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Subscribes to the results of a search, delivering changes on the common ForkJoinPool.
+     * See {@link #subscribe(String, Flow.Subscriber, Executor)}.
+     * @param query the search, as given to {@link #search(String)}.
+     * @param subscriber receives the changes to the search's results.
+     * @throws IllegalArgumentException if the query has no keywords.
+     */
+    public void subscribe(String query, Flow.Subscriber<? super ResultDelta<T>> subscriber) {
+        subscribe(query, subscriber, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Subscribes to the results of a search. The subscriber first receives the search's current results as added
+     * items, and then the items that enter and leave the results as items are put, removed and renamed, rather than
+     * polling the search for them. An item is in the results while {@link #search(String)} would return it.
+     *
+     * Each delta holds every change since the previous one, and is delivered on the executor once the subscriber has
+     * requested it. Changes to the map are never held up by a slow subscriber, its changes are merged into its next
+     * delta instead. Changes made in a transaction are delivered once it is committed.
+     *
+     * A change finds the queries it may affect by walking each of its keywords through a trie of the subscribed
+     * keywords, so it costs O(n) in the # of characters in its keywords, however many queries are subscribed.
+     * Each query keeps the keywords of the items that start with one of its own keywords, so whether an item is in its
+     * results is decided from that item's keywords alone, without walking the matches of the query's keywords.
+     * Subscribing walks those matches once, and the query's memory is proportional to their #.
+     * A cancelled subscription is unsubscribed by the next change to the map.
+     * Subscribing is a change to the map, and must not be done concurrently with puts and removes.
+     * @param query the search, as given to {@link #search(String)}.
+     * @param subscriber receives the changes to the search's results.
+     * @param executor the executor deltas are delivered on.
+     * @throws IllegalArgumentException if the query has no keywords.
+     */
+    public void subscribe(String query, Flow.Subscriber<? super ResultDelta<T>> subscriber, Executor executor) {
+        List<String> keywords = processName(query).stream().distinct().collect(Collectors.toList());
+        if (keywords.isEmpty()) {
+            throw new IllegalArgumentException("the query has no keywords: " + query);
+        }
+        StandingQuery<T> standingQuery = new StandingQuery<>(keywords, subscriber, executor, cancelledQueries);
+        writerLock.lock(); // a transaction may be notifying subscribers
+        try {
+            if (subscriptionRoot == null) {
+                subscriptionRoot = new TrieNode<>('\0', null);
+            }
+            for (int i = 0; i < keywords.size(); i++) {
+                subscriptionRoot.pass(keywords.get(i),
+                        new TrieNode.objectAssociation<>(standingQuery, standingQuery, i, keywords.size()), 0);
+                String keyword = keywords.get(i);
+                try {
+                    getKeywordMatches(keyword).forEachAssociation(
+                            (rest, association) -> standingQuery.keywordAdded(association.key, keyword + rest));
+                }
+                catch (NoAssociatedObjectsException e) {
+                    // nothing starts with the keyword yet
+                }
+            }
+            // the results are queued before the subscriber can request them, so they make up the first delta
+            for (T item : search(query)) {
+                standingQuery.add(keyOf(item), item);
+            }
+            subscriber.onSubscribe(standingQuery);
+        }
+        finally {
+            writerLock.unlock();
+        }
+    }
+
+    /**
+     * Writes every node and item in this TrieMap to a file, so that it can be loaded with
+     * {@link #readSnapshot(Path, ItemCodec)} without putting every item again.
+     * @param path the file to write to. replaced if it already exists.
+     * @param codec converts the items to bytes.
+     * @throws IOException if the file cannot be written.
+     * */
+    public void writeSnapshot(Path path, ItemCodec<T> codec) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            TrieSnapshot.write(getRootNode(), codec, channel);
+        }
+    }
+
+    /**
+     * Writes every node and item in this TrieMap to a stream, see {@link #writeSnapshot(Path, ItemCodec)}.
+     * The stream is not closed.
+     * @param out the stream to write to.
+     * @param codec converts the items to bytes.
+     * @throws IOException if the stream cannot be written to.
+     * */
+    public void writeSnapshot(OutputStream out, ItemCodec<T> codec) throws IOException {
+        TrieSnapshot.write(getRootNode(), codec, Channels.newChannel(out));
+    }
+
+    /**
+     * Reads a TrieMap from a snapshot file. The map uses the default constructor's settings.
+     * @param path the file to read from.
+     * @param codec converts the bytes in the snapshot back to items.
+     * @return a TrieMap with the same contents as the one the snapshot was written from.
+     * @throws IOException if the file cannot be read, or is not a valid snapshot.
+     * */
+    public static <T> TrieMap<T> readSnapshot(Path path, ItemCodec<T> codec) throws IOException {
+        return readSnapshot(path, codec, new TrieMap<>());
+    }
+
+    /**
+     * Reads a snapshot file into an empty TrieMap, so the map can be constructed with its own settings.
+     * The map's patterns are not applied to the snapshot, so they should be the ones the snapshot was written with.
+     * @param path the file to read from.
+     * @param codec converts the bytes in the snapshot back to items.
+     * @param into the empty map to read into.
+     * @return the map that was read into.
+     * @throws IOException if the file cannot be read, or is not a valid snapshot.
+     * */
+    public static <T> TrieMap<T> readSnapshot(Path path, ItemCodec<T> codec, TrieMap<T> into) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return into.readSnapshot(channel, codec);
+        }
+    }
+
+    /**
+     * Reads a TrieMap from a stream, see {@link #readSnapshot(Path, ItemCodec)}.
+     * The stream is not closed.
+     * @param in the stream to read from.
+     * @param codec converts the bytes in the snapshot back to items.
+     * @return a TrieMap with the same contents as the one the snapshot was written from.
+     * @throws IOException if the stream cannot be read, or does not contain a valid snapshot.
+     * */
+    public static <T> TrieMap<T> readSnapshot(InputStream in, ItemCodec<T> codec) throws IOException {
+        return readSnapshot(in, codec, new TrieMap<>());
+    }
+
+    /**
+     * Reads a snapshot from a stream into an empty TrieMap, see {@link #readSnapshot(Path, ItemCodec, TrieMap)}.
+     * The stream is not closed.
+     * @param in the stream to read from.
+     * @param codec converts the bytes in the snapshot back to items.
+     * @param into the empty map to read into.
+     * @return the map that was read into.
+     * @throws IOException if the stream cannot be read, or does not contain a valid snapshot.
+     * */
+    public static <T> TrieMap<T> readSnapshot(InputStream in, ItemCodec<T> codec, TrieMap<T> into) throws IOException {
+        return into.readSnapshot(Channels.newChannel(in), codec);
     }
 
     @Override
     public String toString() {
+        return toString(current.root);
+    }
+
+    static String toString(TrieNode<?> root) {
         StringBuilder str = new StringBuilder("root{");
 
         // sort children for predictability
-        List<TrieNode<T>> children = new ArrayList<>(rootNode.getChildren());
+        List<TrieNode<?>> children = new ArrayList<>(root.getChildren());
         children.sort(Comparator.comparingInt(TrieNode::getChar));
 
         for (int i = 0; i < children.size(); i++) {
@@ -190,118 +813,565 @@ public class TrieMap<T> {
         return str.toString();
     }
 
-    private List<String> processName(String name) {
-        name = toConcat.matcher(name).replaceAll("");
-        List<String> keywords = new ArrayList<>();
-        Scanner in = new Scanner(name);
-        in.useDelimiter(delim);
-        while (in.hasNext()) {
-            keywords.add(in.next().toLowerCase());
+    /**
+     * @return the root of this map's trie, in the latest committed version.
+     * */
+    TrieNode<T> getRootNode() {
+        return current.root;
+    }
+
+    /**
+     * @return the # of transactions committed to this map.
+     * */
+    long getVersion() {
+        return current.number;
+    }
+
+    private TrieMap<T> readSnapshot(ReadableByteChannel channel, ItemCodec<T> codec) throws IOException {
+        checkUnversioned();
+        TrieNode<T> root = getRootNode();
+        if (!root.getChildren().isEmpty() || !root.getAssociatedObjects().isEmpty()) {
+            throw new IllegalArgumentException("can only read a snapshot into an empty TrieMap");
+        }
+        TrieSnapshot.read(this, root, codec, channel);
+        if (reverseIndex != null) {
+            reverseIndex = null;
+            enableReverseIndex();
+        }
+        if (suffixRoot != null) {
+            enableInfixSearch(minSuffixLength);
+        }
+        if (prefixFilter != null) {
+            prefixFilter = buildPrefixFilter(root, prefixFilter.getMaxPrefixLength());
+        }
+        return this;
+    }
+
+    @Override
+    boolean mightContain(String keyword) {
+        return prefixFilter == null || prefixFilter.mightContain(keyword);
+    }
+
+    @Override
+    KeywordMatches<T> getKeywordMatches(String keyword) throws NoAssociatedObjectsException {
+        TrieNode<T> node = getNode(current.root, prefixFilter, keyword);
+        return hotPrefixes == null ? node : hotPrefixes.lookup(node);
+    }
+
+    @Override
+    Map<String, KeywordMatches<T>> getKeywordMatches(List<String> sortedKeywords) {
+        return getNodes(current.root, prefixFilter, sortedKeywords,
+                hotPrefixes == null ? (node) -> node : hotPrefixes::lookup);
+    }
+
+    /**
+     * @param prefixFilter the prefix filter of the trie, or null.
+     * @return the node of a keyword.
+     * @throws NoAssociatedObjectsException if nothing is stored under the keyword.
+     * */
+    static <T> TrieNode<T> getNode(TrieNode<T> root, PrefixFilter prefixFilter, String keyword)
+            throws NoAssociatedObjectsException {
+        if (prefixFilter != null && !prefixFilter.mightContain(keyword)) {
+            throw new NoAssociatedObjectsException();
+        }
+        return root.getNode(keyword, 0);
+    }
+
+    /**
+     * Looks up many keywords in one walk of a trie.
+     * @param prefixFilter the prefix filter of the trie, or null.
+     * @param matchesOf where the matches of a keyword's node are stored.
+     * @return the matches of each keyword, see {@link #getKeywordMatches(List)}.
+     * */
+    static <T> Map<String, KeywordMatches<T>> getNodes(TrieNode<T> root, PrefixFilter prefixFilter,
+                                                       List<String> sortedKeywords,
+                                                       Function<TrieNode<T>, KeywordMatches<T>> matchesOf) {
+        Map<String, KeywordMatches<T>> matches = new HashMap<>();
+        // path.get(i) is the node for the first i characters of the previous keyword
+        List<TrieNode<T>> path = new ArrayList<>();
+        path.add(root);
+        String previous = "";
+        for (String keyword : sortedKeywords) {
+            if (prefixFilter != null && !prefixFilter.mightContain(keyword)) {
+                continue;
+            }
+            int shared = 0;
+            int maxShared = Math.min(Math.min(previous.length(), keyword.length()), path.size() - 1);
+            while (shared < maxShared && previous.charAt(shared) == keyword.charAt(shared)) {
+                shared++;
+            }
+            path.subList(shared + 1, path.size()).clear();
+
+            TrieNode<T> node = path.get(shared);
+            for (int i = shared; i < keyword.length() && node != null; i++) {
+                node = node.getChild(keyword.charAt(i));
+                if (node != null) {
+                    path.add(node);
+                }
+            }
+            if (node != null) {
+                matches.put(keyword, matchesOf.apply(node));
+            }
+            previous = keyword;
+        }
+        return matches;
+    }
+
+    /**
+     * @return whether an item is still in the trie under any keyword. Requires the reverse index.
+     * */
+    boolean hasKeywords(Object key) {
+        return getReverseIndex().containsKey(key);
+    }
+
+    /**
+     * @return the node of the keyword the association was removed from.
+     * */
+    private TrieNode<T> removeKeyword(Object associated, String keyword) throws NoAssociatedObjectsException {
+        TrieNode<T> node = current.root.getNode(keyword, 0);
+        node.removeAssociation(associated);
+        prune(node);
+        return node;
+    }
+
+    /**
+     * Adds the suffixes of a keyword to the infix index. The suffixes share the keyword's association.
+     * */
+    private void indexSuffixes(String keyword, TrieNode.objectAssociation<T> association) {
+        // an item can have several keywords with the same suffix, so suffixes are stored per keyword
+        SuffixKey suffixKey = new SuffixKey(association.key, keyword);
+        for (int start = 1; keyword.length() - start >= minSuffixLength; start++) {
+            suffixRoot.pass(keyword, suffixKey, association, start);
+        }
+    }
+
+    private void unindexSuffixes(String keyword, Object key) {
+        SuffixKey suffixKey = new SuffixKey(key, keyword);
+        for (int start = 1; keyword.length() - start >= minSuffixLength; start++) {
+            try {
+                TrieNode<T> node = suffixRoot.getNode(keyword.substring(start), 0);
+                node.removeAssociation(suffixKey);
+                prune(node);
+            }
+            catch (NoAssociatedObjectsException e) {
+                // already removed, the keyword appeared more than once in the name
+            }
+        }
+    }
+
+    /**
+     * Tells the standing queries that share a keyword prefix with the changed keywords whether the item entered or
+     * left their results.
+     * @param keywords the keywords of the name the item was put or removed with.
+     * @param added whether the item was put, or removed.
+     * */
+    private void notifySubscribers(List<String> keywords, T item, boolean added) {
+        if (subscriptionRoot == null) {
+            return;
+        }
+        StandingQuery<T> cancelled;
+        while ((cancelled = cancelledQueries.poll()) != null) {
+            unsubscribe(cancelled);
+        }
+
+        Object key = keyOf(item);
+        Set<StandingQuery<T>> affected = new HashSet<>();
+        for (String keyword : keywords) {
+            TrieNode<StandingQuery<T>> node = subscriptionRoot;
+            for (int i = 0; i < keyword.length() && node != null; i++) {
+                node = node.getChild(keyword.charAt(i));
+                if (node != null) {
+                    for (TrieNode.objectAssociation<StandingQuery<T>> association : node.getAssociatedObjects()) {
+                        if (added) {
+                            association.obj.keywordAdded(key, keyword);
+                        }
+                        else {
+                            association.obj.keywordRemoved(key, keyword);
+                        }
+                        affected.add(association.obj);
+                    }
+                }
+            }
+        }
+
+        for (StandingQuery<T> query : affected) {
+            if (query.isCancelled()) {
+                continue; // unsubscribed by the next change
+            }
+            // the item's keywords from its other names are kept by the query too
+            boolean matches = query.matches(key);
+            if (matches && !query.isMember(key)) {
+                query.add(key, item);
+            }
+            else if (!matches && query.isMember(key)) {
+                query.remove(key, item);
+            }
+        }
+    }
+
+    /**
+     * @return the # of keywords of the standing queries that are subscribed.
+     * */
+    int getSubscribedKeywords() {
+        return subscriptionRoot == null ? 0 : subscriptionRoot.getSubtreeSize();
+    }
+
+    private void unsubscribe(StandingQuery<T> query) {
+        for (String keyword : query.getKeywords()) {
+            try {
+                TrieNode<StandingQuery<T>> node = subscriptionRoot.getNode(keyword, 0);
+                node.removeAssociation(query);
+                prune(node);
+            }
+            catch (NoAssociatedObjectsException e) {
+                // already unsubscribed
+            }
+        }
+    }
+
+    /**
+     * @return a prefix filter sized for, and holding, the prefixes in a trie.
+     * The nodes up to maxPrefixLength deep are the distinct prefixes, so nothing deeper is visited.
+     * */
+    private static <T> PrefixFilter buildPrefixFilter(TrieNode<T> root, int maxPrefixLength) {
+        List<String> prefixes = new ArrayList<>();
+        Deque<TrieNode<T>> toVisit = new ArrayDeque<>(root.getChildren());
+        Deque<String> prefixOf = new ArrayDeque<>();
+        for (TrieNode<T> child : toVisit) {
+            prefixOf.add(String.valueOf(child.getChar()));
+        }
+        while (!toVisit.isEmpty()) {
+            TrieNode<T> node = toVisit.poll();
+            String prefix = prefixOf.poll();
+            prefixes.add(prefix);
+            if (prefix.length() < maxPrefixLength) {
+                for (TrieNode<T> child : node.getChildren()) {
+                    toVisit.add(child);
+                    prefixOf.add(prefix + child.getChar());
+                }
+            }
         }
-        in.close();
-        return keywords;
+        PrefixFilter filter = new PrefixFilter(maxPrefixLength, prefixes.size());
+        for (String prefix : prefixes) {
+            filter.addPrefix(prefix);
+        }
+        return filter;
     }
 
-    private Map<T, SearchResult> searchForKeyword(List<String> keywords, int keywordIndex) throws NoAssociatedObjectsException{
-        
-    	TrieNode<T> topNode = rootNode.getNode(keywords.get(keywordIndex), 0);
-        Set<TrieNode.objectAssociation<T>> associations = topNode.getChildAssociations(new HashSet<>());
-        return associations.stream()
-                .map((e) -> new SearchResult(e.obj, keywordIndex, e.keywordIndex, keywords.size(), e.nOfKeywords))
-                .collect(Collectors.toMap(SearchResult::getItem, Function.identity(), (existing, replacement) -> existing));
+    private void checkVersionable() {
+        if (reverseIndex != null || suffixRoot != null || hotPrefixes != null) {
+            throw new IllegalStateException("transactions and snapshots do not support the reverse index, infix search "
+                    + "or hot prefix cache");
+        }
     }
 
-    private void removeKeyword(T associated, String keyword) throws NoAssociatedObjectsException {
-        TrieNode<T> node = rootNode.getNode(keyword, 0);
+    private void checkUnversioned() {
+        if (versioned) {
+            throw new IllegalStateException("not supported once transactions or snapshots have been used");
+        }
+    }
 
+    /**
+     * Removes the unique branch that leads to a node, if the node no longer has any associations.
+     * */
+    private static <E> void prune(TrieNode<E> node) {
         // case where the keyword to remove is not a leaf node,
-        // or where the keyword to remove is a leaf node with multiple associations
-        if (!node.getChildren().isEmpty() || node.getAssociatedObjects().size() > 1) {
-            node.removeAssociation(associated);
+        // or where the keyword to remove is a leaf node with other associations
+        if (!node.getChildren().isEmpty() || !node.getAssociatedObjects().isEmpty()) {
             return;
         }
 
-        TrieNode<T> parent = node.getParent();
-        int i = keyword.length()-1;
-        while (parent.getChildren().size() == 1 && parent.getAssociatedObjects().size() == 0) {
+        TrieNode<E> parent = node.getParent();
+        // stop at the root, which has no parent
+        while (parent.getParent() != null && parent.getChildren().size() == 1 && parent.getAssociatedObjects().size() == 0) {
             node = parent;
             parent = node.getParent();
-            i--;
         }
-        parent.removeChild(keyword.charAt(i));
+        parent.removeChild(node.getChar());
+    }
+
+    private void addToReverseIndex(Object key, TrieNode<T> node) {
+        List<TrieNode<T>> nodes = reverseIndex.computeIfAbsent(key, (k) -> new ArrayList<>(4));
+        // the same keyword can appear more than once in a name
+        if (!nodes.contains(node)) {
+            nodes.add(node);
+        }
+    }
+
+    private void removeFromReverseIndex(Object key, TrieNode<T> node) {
+        List<TrieNode<T>> nodes = reverseIndex.get(key);
+        if (nodes != null && nodes.remove(node) && nodes.isEmpty()) {
+            reverseIndex.remove(key);
+        }
+    }
+
+    private Map<Object, List<TrieNode<T>>> getReverseIndex() {
+        if (reverseIndex == null) {
+            throw new IllegalStateException("the reverse index is not enabled");
+        }
+        return reverseIndex;
     }
     
     /**
-     * Represents an item that has been selected by a search.
-     * Contains the item, and search related data that can be used for ordering search results.
+     * A compaction of the trie that is done a part at a time, made by {@link #startCompaction()}.
+     * Nodes are compacted in depth-first order, so each step compacts whole subtrees where it can.
      */
-    public class SearchResult {
-        private final T item;
-        private final int nOfObjectKeywords;
-        private int nOfMatches = 0;
-        private boolean[] matchTable;
-        private float matchProportion = 0.0f;
-
-        SearchResult(T item, int searchIndex, int storedIndex, int nOfSearchKeywords, int nOfObjKeywords) {
-            this.item = item;
-            this.nOfObjectKeywords = nOfObjKeywords;
-            matchTable = new boolean[nOfSearchKeywords];
-            if (searchIndex == storedIndex) {
-                matchTable[searchIndex] = true;
-            }
-            newMatch();
-        }
-
-        SearchResult combine(SearchResult other) {
-            assert (item.equals(other.item)) : "cannot intersect with a result with different obj association";
-            newMatch();
-            for (int i = 0; i < matchTable.length; i++) {
-                if (other.matchAt(i)) {
-                    matchTable[i] = true;
-                }
+    public class Compaction {
+        private final Deque<TrieNode<T>> pending = new ArrayDeque<>();
+        private long bytesReclaimed = 0;
+        private boolean filterRebuilt = false;
+
+        private Compaction() {
+            pending.push(getRootNode());
+            if (suffixRoot != null) {
+                pending.push(suffixRoot);
             }
-            return this;
         }
 
         /**
-         * @param n
-         * @return true if the nth keyword in the search is also the nth keyword in this objects name
+         * Compacts the next nodes.
+         * @param maxNodes the most nodes to compact in this step.
+         * @return the estimated # of bytes freed by this step.
          */
-        public boolean matchAt(int n) {
-            return matchTable[n];
+        public long step(int maxNodes) {
+            if (maxNodes < 1) {
+                throw new IllegalArgumentException("maxNodes must be positive: " + maxNodes);
+            }
+            checkUnversioned();
+            long reclaimed = 0;
+            for (int i = 0; i < maxNodes && !pending.isEmpty(); i++) {
+                TrieNode<T> node = pending.pop();
+                reclaimed += node.compact();
+                for (TrieNode<T> child : node.getChildren()) {
+                    pending.push(child);
+                }
+            }
+            if (pending.isEmpty() && prefixFilter != null && !filterRebuilt) {
+                // drops the prefixes of removed keywords, which a Bloom filter cannot delete
+                long before = prefixFilter.getBytes();
+                prefixFilter = buildPrefixFilter(current.root, prefixFilter.getMaxPrefixLength());
+                reclaimed += before - prefixFilter.getBytes();
+                filterRebuilt = true;
+            }
+            bytesReclaimed += reclaimed;
+            return reclaimed;
         }
 
         /**
-         * @return the proportion of keyword matches in this result,
-         * ie (# matches / # keywords associated with objects)
+         * @return true once every node has been compacted.
          */
-        public float matchProportion() {
-            return matchProportion;
+        public boolean isDone() {
+            return pending.isEmpty();
         }
 
         /**
-         * @return the item in this search result 
+         * @return the estimated # of bytes freed by every step so far.
          */
-        public T getItem() {
-            return item;
+        public long getBytesReclaimed() {
+            return bytesReclaimed;
+        }
+    }
+
+    /**
+     * A batch of puts and removes, made by {@link #begin()}, that becomes visible to searches all at once on commit.
+     *
+     * The first change to a node copies it, and every node on the path from it to the root, so the committed version
+     * is never changed: the transaction works on its own root, sharing every node it has not changed.
+     * Commit publishes the new root with a single volatile write, so a search sees either all of a transaction's
+     * changes or none of them. Nothing is copied twice in one transaction, so a batch of changes under the same
+     * prefixes only copies those prefixes once.
+     * Closing a transaction that was not committed rolls it back.
+     */
+    public class Transaction implements AutoCloseable {
+        private final Version<T> base;
+        private TrieNode<T> root = null; // copied from the base on the first change
+        // the nodes this transaction copied or created, which it can change in place
+        private final Set<TrieNode<T>> copies = Collections.newSetFromMap(new IdentityHashMap<>());
+        // subscribers are told about the changes once they are committed
+        private final List<Runnable> notifications = new ArrayList<>();
+        private boolean open = true;
+
+        private Transaction(Version<T> base) {
+            this.base = base;
+        }
+
+        /**
+         * puts an item in the trie with the given name, see {@link TrieMap#put(String, Object)}.
+         * @param name the name of the object.
+         * @param item the item that is associated with the given name.
+         * */
+        public void put(String name, T item) {
+            putKeywords(processName(name), item);
+        }
+
+        void putKeywords(List<String> keywords, T item) {
+            checkOpen();
+            List<TrieNode.objectAssociation<T>> associations = associate(item, keywords);
+            for (int i = 0; i < keywords.size(); i++) {
+                copyPath(keywords.get(i)).addAssociation(associations.get(i));
+                if (prefixFilter != null) {
+                    // added before the commit, so the filter of the committed version can only have extra prefixes
+                    prefixFilter.addPrefixes(keywords.get(i));
+                }
+            }
+            if (subscriptionRoot != null) {
+                notifications.add(() -> notifySubscribers(keywords, item, true));
+            }
+        }
+
+        /**
+         * removes an item from the trie, see {@link TrieMap#remove(String, Object)}.
+         * @param name the name of the object.
+         * @param item the item that is associated with the given name.
+         * @throws NoAssociatedObjectsException if an item under that name does not exist.
+         * */
+        public void remove(String name, T item) throws NoAssociatedObjectsException {
+            removeKeywords(processName(name), item);
+        }
+
+        void removeKeywords(List<String> keywords, T item) throws NoAssociatedObjectsException {
+            checkOpen();
+            Object key = keyOf(item);
+            for (int i = 0; i < keywords.size(); i++) {
+                String keyword = keywords.get(i);
+                if (keywords.indexOf(keyword) < i) {
+                    continue; // a repeated keyword shares the association of its first position
+                }
+                // only copy the path if the keyword is there
+                (root == null ? base.root : root).getNode(keyword, 0);
+                TrieNode<T> node = copyPath(keyword);
+                node.removeAssociation(key);
+                prune(node);
+            }
+            if (subscriptionRoot != null) {
+                notifications.add(() -> notifySubscribers(keywords, item, false));
+            }
+        }
+
+        /**
+         * Makes the transaction's changes visible to searches, and ends the transaction.
+         * @return the version that was committed, i.e. the # of transactions committed to the map so far.
+         * */
+        public long commit() {
+            checkOpen();
+            try {
+                if (root != null) {
+                    // shared nodes must not keep the previous version reachable through their parent links
+                    for (TrieNode<T> node : copies) {
+                        node.adoptChildren();
+                    }
+                    if (prefixFilter != null && prefixFilter.isOverfull()) {
+                        // older versions keep the filter they were committed with
+                        prefixFilter = buildPrefixFilter(root, prefixFilter.getMaxPrefixLength());
+                    }
+                    current = new Version<>(root, base.number + 1, prefixFilter);
+                }
+                for (Runnable notification : notifications) {
+                    notification.run();
+                }
+                return current.number;
+            }
+            finally {
+                end();
+            }
+        }
+
+        /**
+         * Discards the transaction's changes, and ends the transaction.
+         * */
+        public void rollback() {
+            checkOpen();
+            end();
+        }
+
+        /**
+         * Rolls back the transaction if it has not been committed.
+         * */
+        @Override
+        public void close() {
+            if (open) {
+                rollback();
+            }
+        }
+
+        /**
+         * @return the node for the keyword in this transaction's trie, after copying every node on the way to it.
+         * */
+        private TrieNode<T> copyPath(String keyword) {
+            if (root == null) {
+                root = base.root.copy(null);
+                copies.add(root);
+            }
+            TrieNode<T> node = root;
+            for (int i = 0; i < keyword.length(); i++) {
+                TrieNode<T> child = node.getChild(keyword.charAt(i));
+                if (child == null) {
+                    child = node.addChild(keyword.charAt(i));
+                    copies.add(child);
+                }
+                else if (!copies.contains(child)) {
+                    child = child.copy(node);
+                    node.setChild(child);
+                    copies.add(child);
+                }
+                node = child;
+            }
+            return node;
+        }
+
+        private void checkOpen() {
+            if (!open) {
+                throw new IllegalStateException("the transaction has ended");
+            }
+        }
+
+        private void end() {
+            open = false;
+            root = null;
+            copies.clear();
+            notifications.clear();
+            writerLock.unlock();
+        }
+    }
+
+    /**
+     * What a suffix association is stored under: an item's key and the keyword the suffix came from.
+     */
+    private static final class SuffixKey {
+        static final int BYTES = 24; // with compressed references
+        private final Object key;
+        private final String keyword;
+
+        SuffixKey(Object key, String keyword) {
+            this.key = key;
+            this.keyword = keyword;
         }
 
         @Override
         public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            @SuppressWarnings("unchecked")
-            SearchResult that = (SearchResult) o;
-            return item.equals(that.item);
+            if (!(o instanceof SuffixKey)) return false;
+            SuffixKey that = (SuffixKey) o;
+            return key.equals(that.key) && keyword.equals(that.keyword);
         }
 
+        @Override
         public int hashCode() {
-            return item.hashCode();
+            return 31 * key.hashCode() + keyword.hashCode();
         }
+    }
+
+    /**
+     * A committed version of the trie, searched by {@link TrieMapSnapshot}.
+     */
+    static final class Version<T> {
+        final TrieNode<T> root;
+        final long number; // the # of transactions committed before this version
+        final PrefixFilter prefixFilter; // holds at least the prefixes of this version, null if not enabled
 
-        private void newMatch() {
-            nOfMatches++;
-            matchProportion = ((float)nOfMatches) / nOfObjectKeywords;
+        Version(TrieNode<T> root, long number, PrefixFilter prefixFilter) {
+            this.root = root;
+            this.number = number;
+            this.prefixFilter = prefixFilter;
         }
     }
 }
@@ -0,0 +1,98 @@
+package com.gmail.adamvdvoorn;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.BufferUnderflowException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * <p>
+ * Searches and changes a TrieMap served by a {@link TrieMapServer} in another process on the same machine.
+ *
+ * Connections are kept open and reused between calls. Safe to use from multiple threads, and concurrent searches
+ * from any number of clients are evaluated together by the server.
+ * </p>
+ * @param <T> the type of item stored in the map.
+ * */
+public final class TrieMapClient<T> {
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+
+    private final ItemCodec<T> codec;
+    private final URI base;
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(TIMEOUT)
+            .build();
+
+    /**
+     * @param port the port the server listens on, on the loopback interface.
+     * @param codec the codec the server was given.
+     * */
+    public TrieMapClient(int port, ItemCodec<T> codec) {
+        this.codec = codec;
+        this.base = URI.create("http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + port);
+    }
+
+    /**
+     * @see TrieMap#search(String)
+     * @throws IOException if the server cannot be reached, or fails to search.
+     * */
+    public List<T> search(String name) throws IOException {
+        HttpResponse<byte[]> response = post(TrieMapServer.SEARCH, name.getBytes(StandardCharsets.UTF_8));
+        check(response, 200);
+        try {
+            return TrieMapServer.decodeItems(response.body(), codec);
+        }
+        catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("server sent a malformed response to " + TrieMapServer.SEARCH, e);
+        }
+    }
+
+    /**
+     * @see TrieMap#put(String, Object)
+     * @throws IOException if the server cannot be reached, or fails to put the item.
+     * */
+    public void put(String name, T item) throws IOException {
+        check(post(TrieMapServer.PUT, TrieMapServer.encodeChange(name, item, codec)), 204);
+    }
+
+    /**
+     * @see TrieMap#remove(String, Object)
+     * @throws NoAssociatedObjectsException if an item under that name does not exist.
+     * @throws IOException if the server cannot be reached, or fails to remove the item.
+     * */
+    public void remove(String name, T item) throws IOException, NoAssociatedObjectsException {
+        HttpResponse<byte[]> response = post(TrieMapServer.REMOVE, TrieMapServer.encodeChange(name, item, codec));
+        if (response.statusCode() == 404) {
+            throw new NoAssociatedObjectsException();
+        }
+        check(response, 204);
+    }
+
+    private HttpResponse<byte[]> post(String path, byte[] body) throws IOException {
+        HttpRequest request = HttpRequest.newBuilder(base.resolve(path))
+                .timeout(TIMEOUT)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build();
+        try {
+            return client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the server");
+        }
+    }
+
+    private static void check(HttpResponse<byte[]> response, int expected) throws IOException {
+        if (response.statusCode() != expected) {
+            throw new IOException("server responded " + response.statusCode() + " to " + response.uri().getPath());
+        }
+    }
+}
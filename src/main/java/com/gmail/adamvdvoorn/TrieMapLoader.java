@@ -0,0 +1,323 @@
+package com.gmail.adamvdvoorn;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * <p>
+ * Loads a file with one item per line into a TrieMap, using every core rather than a single thread calling put.
+ *
+ * The file is split into chunks at line boundaries, and each chunk is memory mapped and parsed by a pool of threads:
+ * each line is made into an item, and the item's name is broken into keywords as put would. The parsed items are
+ * handed in batches through a bounded queue to the calling thread, which inserts them into the map, so the map is only
+ * ever changed by one thread, and parsing stops to wait whenever insertion falls behind.
+ * Items are inserted in no particular order, so a file that puts the same item more than once under the same
+ * keyword may keep either position.
+ * </p>
+ * @param <T> the type of item to load.
+ * */
+public final class TrieMapLoader<T> {
+    private static final int BATCH = 1024; // items per queue entry
+    private static final int QUEUE_BATCHES = 64;
+    private static final long WINDOW = 64L << 20; // the most of a chunk mapped at once
+    private static final long MIN_CHUNK = 1L << 20;
+    private static final long REPORT_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private final TrieMap<T> map;
+    private final Function<String, ? extends T> toItem;
+    private final Function<? super T, String> toName;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private Consumer<Progress> progressListener = null;
+
+    /**
+     * @param map the map to load into.
+     * @param toItem makes the item for a line, or returns null to skip the line. called from the parsing threads.
+     * @param toName the name to put an item under. called from the parsing threads.
+     * */
+    public TrieMapLoader(TrieMap<T> map, Function<String, ? extends T> toItem, Function<? super T, String> toName) {
+        this.map = map;
+        this.toItem = toItem;
+        this.toName = toName;
+    }
+
+    /**
+     * @param threads the # of threads that parse lines. by default, the # of processors.
+     * */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * @param progressListener called on the loading thread about once a second while a file loads, and once at the end.
+     * */
+    public void setProgressListener(Consumer<Progress> progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Loads every line of a UTF-8 file. Lines end with \n or \r\n, and the last line may have no ending.
+     * @param file the file to load.
+     * @return how much was loaded, and how fast.
+     * @throws IOException if the file cannot be read, or the loading thread is interrupted.
+     * */
+    public Progress load(Path file) throws IOException {
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            List<long[]> chunks = split(channel, size);
+            Progress progress = new Progress(size, start);
+            BlockingQueue<List<Parsed<T>>> queue = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+            ExecutorService parsers = Executors.newFixedThreadPool(threads, (r) -> {
+                Thread thread = new Thread(r, "trie-map-loader");
+                thread.setDaemon(true);
+                return thread;
+            });
+            List<Future<?>> parsed = new ArrayList<>();
+            try {
+                for (long[] chunk : chunks) {
+                    parsed.add(parsers.submit(() -> {
+                        parse(channel, chunk[0], chunk[1], queue, progress);
+                        return null;
+                    }));
+                }
+                insert(queue, parsed, progress);
+            }
+            finally {
+                parsers.shutdownNow();
+            }
+            progress.finish();
+            if (progressListener != null) {
+                progressListener.accept(progress);
+            }
+            return progress;
+        }
+    }
+
+    /**
+     * @return the [start, end) offsets of the chunks of the file, each ending just after a line break or at the end.
+     * */
+    private List<long[]> split(FileChannel channel, long size) throws IOException {
+        // a few chunks per thread, so that threads that finish early take on more
+        long chunkSize = Math.max(MIN_CHUNK, size / (threads * 4L) + 1);
+        List<long[]> chunks = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long start = 0;
+        while (start < size) {
+            long end = Math.min(size, start + chunkSize);
+            // move the end past the next line break
+            while (end < size) {
+                buffer.clear();
+                int read = channel.read(buffer, end);
+                int newline = -1;
+                for (int i = 0; i < read && newline == -1; i++) {
+                    if (buffer.get(i) == '\n') {
+                        newline = i;
+                    }
+                }
+                if (newline != -1) {
+                    end += newline + 1;
+                    break;
+                }
+                end += Math.max(read, 0);
+            }
+            chunks.add(new long[] {start, end});
+            start = end;
+        }
+        return chunks;
+    }
+
+    /**
+     * Parses the lines of a chunk, mapping it a window at a time, and queues the parsed items in batches.
+     * */
+    private void parse(FileChannel channel, long start, long end, BlockingQueue<List<Parsed<T>>> queue,
+                       Progress progress) throws IOException, InterruptedException {
+        List<Parsed<T>> batch = new ArrayList<>(BATCH);
+        byte[] line = new byte[256];
+        int lineLength = 0; // bytes of a line that continues into the next window
+        for (long position = start; position < end; position += WINDOW) {
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, end - position));
+            while (window.hasRemaining()) {
+                byte b = window.get();
+                if (b != '\n') {
+                    if (lineLength == line.length) {
+                        line = Arrays.copyOf(line, line.length * 2);
+                    }
+                    line[lineLength++] = b;
+                    continue;
+                }
+                parseLine(line, lineLength, batch);
+                lineLength = 0;
+                if (batch.size() == BATCH) {
+                    queue.put(batch);
+                    batch = new ArrayList<>(BATCH);
+                }
+            }
+            progress.bytesRead.addAndGet(Math.min(WINDOW, end - position));
+        }
+        if (lineLength > 0) {
+            parseLine(line, lineLength, batch);
+        }
+        if (!batch.isEmpty()) {
+            queue.put(batch);
+        }
+    }
+
+    private void parseLine(byte[] line, int length, List<Parsed<T>> batch) {
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        T item = toItem.apply(new String(line, 0, length, StandardCharsets.UTF_8));
+        if (item != null) {
+            batch.add(new Parsed<>(map.processName(toName.apply(item)), item));
+        }
+    }
+
+    /**
+     * Inserts the queued items until every chunk has been parsed.
+     * */
+    private void insert(BlockingQueue<List<Parsed<T>>> queue, List<Future<?>> parsed, Progress progress) throws IOException {
+        long lastReport = System.nanoTime();
+        int done = 0;
+        try {
+            while (true) {
+                List<Parsed<T>> batch = queue.poll(10, TimeUnit.MILLISECONDS);
+                if (batch == null) {
+                    // check the parsers only when the queue is empty, so a failure is found once its output is in
+                    for (; done < parsed.size() && parsed.get(done).isDone(); done++) {
+                        parsed.get(done).get();
+                    }
+                    if (done == parsed.size() && queue.isEmpty()) {
+                        return;
+                    }
+                    continue;
+                }
+                for (Parsed<T> entry : batch) {
+                    map.putKeywords(entry.keywords, entry.item);
+                }
+                progress.items.addAndGet(batch.size());
+                if (progressListener != null && System.nanoTime() - lastReport >= REPORT_INTERVAL) {
+                    lastReport = System.nanoTime();
+                    progressListener.accept(progress);
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while loading");
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * How much of a file has been loaded, and how fast.
+     * */
+    public static final class Progress {
+        private final long totalBytes;
+        private final long start;
+        private final AtomicLong bytesRead = new AtomicLong();
+        private final AtomicLong items = new AtomicLong(); // items put so far
+        private volatile long end = -1;
+
+        private Progress(long totalBytes, long start) {
+            this.totalBytes = totalBytes;
+            this.start = start;
+        }
+
+        /**
+         * @return the size of the file.
+         * */
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        /**
+         * @return the # of bytes parsed so far.
+         * */
+        public long getBytesRead() {
+            return bytesRead.get();
+        }
+
+        /**
+         * @return the # of items put so far.
+         * */
+        public long getItemsLoaded() {
+            return items.get();
+        }
+
+        /**
+         * @return the time since loading started, or that loading took once it has finished.
+         * */
+        public long getElapsedNanos() {
+            return (end == -1 ? System.nanoTime() : end) - start;
+        }
+
+        /**
+         * @return the average # of bytes parsed per second.
+         * */
+        public double getBytesPerSecond() {
+            return perSecond(getBytesRead());
+        }
+
+        /**
+         * @return the average # of items put per second.
+         * */
+        public double getItemsPerSecond() {
+            return perSecond(getItemsLoaded());
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d/%d bytes, %d items in %.1fs (%.1f MB/s, %.0f items/s)", getBytesRead(), totalBytes,
+                    getItemsLoaded(), getElapsedNanos() / 1e9, getBytesPerSecond() / (1 << 20), getItemsPerSecond());
+        }
+
+        private double perSecond(long count) {
+            return count / Math.max(getElapsedNanos() / 1e9, 1e-9);
+        }
+
+        private void finish() {
+            end = System.nanoTime();
+        }
+    }
+
+    /**
+     * An item, and the keywords of its name.
+     * */
+    private static final class Parsed<T> {
+        private final List<String> keywords;
+        private final T item;
+
+        Parsed(List<String> keywords, T item) {
+            this.keywords = keywords;
+            this.item = item;
+        }
+    }
+}
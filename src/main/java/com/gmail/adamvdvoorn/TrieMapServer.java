@@ -0,0 +1,336 @@
+package com.gmail.adamvdvoorn;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * <p>
+ * Serves a TrieMap over HTTP on the loopback interface, so that several processes on one machine can share a single
+ * copy of a map, through a {@link TrieMapClient}.
+ *
+ * Requests are POSTed to /search, /put and /remove:
+ *
+ *      /search         body: the UTF-8 name to search for
+ *                      200: varint # of items, then each item as a varint length and the bytes from the codec
+ *      /put, /remove   body: varint name length, UTF-8 name, varint item length, item bytes from the codec
+ *                      204 once the change is made, 404 if the item to remove is not under that name
+ *
+ * Requests are handled by a pool of threads, which hand them to a single evaluator thread and wait for the result.
+ * Requests that arrive while the evaluator is busy are evaluated together in one batch, in the order they arrived:
+ * each run of searches in the batch is evaluated at once with {@link TrieMap#searchAll(Collection)}, which looks up
+ * the keywords they share once, and each put and remove is applied between them. So a client always sees its own
+ * changes, and the map is only ever used by one thread.
+ *
+ * The map must not be changed other than through the server while it is being served.
+ * </p>
+ * @param <T> the type of item stored in the map.
+ * */
+public final class TrieMapServer<T> implements Closeable {
+    static final String SEARCH = "/search";
+    static final String PUT = "/put";
+    static final String REMOVE = "/remove";
+    private static final int MAX_BATCH = 1024;
+
+    private final TrieMap<T> map;
+    private final ItemCodec<T> codec;
+    private final HttpServer server;
+    private final ExecutorService handlers;
+    private final BlockingQueue<Request<T>> queue = new LinkedBlockingQueue<>();
+    private final Thread evaluator;
+    private volatile boolean closed = false;
+    private volatile long batches = 0; // only written by the evaluator thread
+
+    /**
+     * Serves a map on the given port of the loopback interface, with a handler thread per processor.
+     * @param map the map to serve.
+     * @param codec converts the items to and from the bytes sent to clients.
+     * @param port the port to listen on, or 0 for any free port, see {@link #getPort()}.
+     * @throws IOException if the server cannot listen on the port.
+     * */
+    public TrieMapServer(TrieMap<T> map, ItemCodec<T> codec, int port) throws IOException {
+        this(map, codec, new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param map the map to serve.
+     * @param codec converts the items to and from the bytes sent to clients.
+     * @param address the address to listen on.
+     * @param threads the # of threads that read requests and write responses, and so the # of requests in flight.
+     * @throws IOException if the server cannot listen on the address.
+     * */
+    public TrieMapServer(TrieMap<T> map, ItemCodec<T> codec, InetSocketAddress address, int threads) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        this.map = map;
+        this.codec = codec;
+        handlers = Executors.newFixedThreadPool(threads, (r) -> {
+            Thread thread = new Thread(r, "trie-map-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server = HttpServer.create(address, 0);
+        server.setExecutor(handlers);
+        server.createContext(SEARCH, (exchange) -> handle(exchange, SEARCH));
+        server.createContext(PUT, (exchange) -> handle(exchange, PUT));
+        server.createContext(REMOVE, (exchange) -> handle(exchange, REMOVE));
+        evaluator = new Thread(this::evaluateLoop, "trie-map-server-evaluator");
+        evaluator.setDaemon(true);
+        evaluator.start();
+        server.start();
+    }
+
+    /**
+     * @return the port the server is listening on.
+     * */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops accepting requests, waits up to a second for the requests in flight, then stops the threads.
+     * */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        server.stop(1);
+        queue.add(new Request<>(null, null, null)); // stops the evaluator once the requests before it are done
+        try {
+            evaluator.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while closing the server");
+        }
+        finally {
+            handlers.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the # of batches evaluated.
+     * */
+    long getBatches() {
+        return batches;
+    }
+
+    /**
+     * Encodes a put or remove request body.
+     * */
+    static <T> byte[] encodeChange(String name, T item, ItemCodec<T> codec) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] itemBytes = codec.encode(item);
+        ByteBuffer body = ByteBuffer.allocate(5 + nameBytes.length + 5 + itemBytes.length);
+        MutationLog.writeBytes(body, nameBytes);
+        MutationLog.writeBytes(body, itemBytes);
+        return Arrays.copyOf(body.array(), body.position());
+    }
+
+    static <T> byte[] encodeItems(List<T> items, ItemCodec<T> codec) {
+        List<byte[]> encoded = new ArrayList<>(items.size());
+        int length = 5;
+        for (T item : items) {
+            byte[] bytes = codec.encode(item);
+            encoded.add(bytes);
+            length += 5 + bytes.length;
+        }
+        ByteBuffer body = ByteBuffer.allocate(length);
+        MutationLog.writeVarint(body, items.size());
+        for (byte[] bytes : encoded) {
+            MutationLog.writeBytes(body, bytes);
+        }
+        return Arrays.copyOf(body.array(), body.position());
+    }
+
+    static <T> List<T> decodeItems(byte[] body, ItemCodec<T> codec) {
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        int size = MutationLog.readVarint(buffer);
+        if (size < 0 || size > buffer.remaining()) {
+            throw new IllegalArgumentException("# of items " + size + " is more than the " + buffer.remaining()
+                    + " bytes left");
+        }
+        List<T> items = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            items.add(codec.decode(MutationLog.readBytes(buffer)));
+        }
+        return items;
+    }
+
+    private void handle(HttpExchange exchange, String path) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            if (!path.equals(exchange.getRequestURI().getPath())) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            byte[] body = exchange.getRequestBody().readAllBytes();
+            Request<T> request;
+            try {
+                if (path.equals(SEARCH)) {
+                    request = new Request<>(path, new String(body, StandardCharsets.UTF_8), null);
+                }
+                else {
+                    ByteBuffer buffer = ByteBuffer.wrap(body);
+                    String name = new String(MutationLog.readBytes(buffer), StandardCharsets.UTF_8);
+                    request = new Request<>(path, name, codec.decode(MutationLog.readBytes(buffer)));
+                }
+            }
+            catch (BufferUnderflowException | IllegalArgumentException e) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            if (closed) {
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            queue.add(request);
+            List<T> results;
+            try {
+                results = request.done.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            catch (CancellationException e) {
+                // the server closed before the request was evaluated
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            catch (ExecutionException e) {
+                exchange.sendResponseHeaders(e.getCause() instanceof NoAssociatedObjectsException ? 404 : 500, -1);
+                return;
+            }
+            if (results == null) {
+                exchange.sendResponseHeaders(204, -1);
+                return;
+            }
+            byte[] response = encodeItems(results, codec);
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(response);
+            }
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    private void evaluateLoop() {
+        List<Request<T>> batch = new ArrayList<>();
+        List<Request<T>> searches = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                batches++;
+                for (Request<T> request : batch) {
+                    if (request.path == null) {
+                        search(searches);
+                        return;
+                    }
+                    if (request.path.equals(SEARCH)) {
+                        searches.add(request);
+                        continue;
+                    }
+                    // searches that arrived before the change see the map without it
+                    search(searches);
+                    change(request);
+                }
+                search(searches);
+                batch.clear();
+            }
+        }
+        catch (InterruptedException e) {
+            // only interrupted by close, once the server has stopped
+        }
+        finally {
+            Request<T> request;
+            while ((request = queue.poll()) != null) {
+                request.done.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Evaluates a run of searches at once, and completes them.
+     * */
+    private void search(List<Request<T>> searches) {
+        if (searches.isEmpty()) {
+            return;
+        }
+        try {
+            if (searches.size() == 1) {
+                searches.get(0).done.complete(map.search(searches.get(0).name));
+            }
+            else {
+                List<String> names = new ArrayList<>(searches.size());
+                for (Request<T> request : searches) {
+                    names.add(request.name);
+                }
+                Map<String, List<T>> results = map.searchAll(names);
+                for (Request<T> request : searches) {
+                    request.done.complete(results.get(request.name));
+                }
+            }
+        }
+        catch (RuntimeException e) {
+            for (Request<T> request : searches) {
+                request.done.completeExceptionally(e);
+            }
+        }
+        searches.clear();
+    }
+
+    private void change(Request<T> request) {
+        try {
+            if (request.path.equals(PUT)) {
+                map.put(request.name, request.item);
+            }
+            else {
+                map.remove(request.name, request.item);
+            }
+            request.done.complete(null);
+        }
+        catch (NoAssociatedObjectsException | RuntimeException e) {
+            request.done.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * A request waiting for the evaluator. A null path stops the evaluator.
+     * */
+    private static final class Request<T> {
+        private final String path;
+        private final String name;
+        private final T item;
+        // the search's results, or null once a change has been made
+        private final CompletableFuture<List<T>> done = new CompletableFuture<>();
+
+        Request(String path, String name, T item) {
+            this.path = path;
+            this.name = name;
+            this.item = item;
+        }
+    }
+}
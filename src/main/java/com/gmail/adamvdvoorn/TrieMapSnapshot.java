@@ -0,0 +1,88 @@
+package com.gmail.adamvdvoorn;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * A fixed version of a TrieMap, made by {@link TrieMap#snapshot()}.
+ *
+ * A snapshot is a view of one committed version of the map: it holds the version's root, and shares every node with
+ * the map it was taken from. It is not affected by transactions committed to that map afterwards. Searching a
+ * snapshot takes no locks, and gives the same results every time. It has no methods that change the map.
+ * </p>
+ * @param <T> the type of item stored in the trie.
+ * */
+public final class TrieMapSnapshot<T> extends AbstractTrieMap<T> {
+    private final TrieMap.Version<T> version;
+
+    /**
+     * @param source the map the settings are copied from.
+     * @param version the version of the map to search.
+     * */
+    TrieMapSnapshot(TrieMap<T> source, TrieMap.Version<T> version) {
+        super(source);
+        this.version = version;
+    }
+
+    /**
+     * @return the # of transactions that had been committed to the map when this snapshot was taken.
+     * Snapshots with the same version have the same contents.
+     * */
+    public long getVersion() {
+        return version.number;
+    }
+
+    /**
+     * returns all the items in this snapshot.
+     * O(n) complexity, where n is the # of items.
+     * @return all of the items in this snapshot
+     */
+    @Override
+    public Collection<T> items() {
+        return distinctItems(version.root.streamAssociations(getParallelThreshold()));
+    }
+
+    @Override
+    boolean isEmpty() {
+        return version.root.getSubtreeSize() == 0;
+    }
+
+    /**
+     * Copies this snapshot into a read-only map that is faster to search, see {@link TrieMap#toImmutable()}.
+     * @return the copy, with the same settings as this snapshot.
+     */
+    public ImmutableTrieMap<T> toImmutable() {
+        return new ImmutableTrieMap<>(this, version.root);
+    }
+
+    /**
+     * The nodes are shared with the map this was taken from, and with the other snapshots of the same version.
+     * @return the estimated # of bytes of the version's nodes, see {@link TrieMap#estimateRetainedBytes()}.
+     */
+    @Override
+    public long estimateRetainedBytes() {
+        return TrieNode.estimateSubtreeBytes(version.root, true);
+    }
+
+    @Override
+    public String toString() {
+        return TrieMap.toString(version.root);
+    }
+
+    @Override
+    boolean mightContain(String keyword) {
+        return version.prefixFilter == null || version.prefixFilter.mightContain(keyword);
+    }
+
+    @Override
+    KeywordMatches<T> getKeywordMatches(String keyword) throws NoAssociatedObjectsException {
+        return TrieMap.getNode(version.root, version.prefixFilter, keyword);
+    }
+
+    @Override
+    Map<String, KeywordMatches<T>> getKeywordMatches(List<String> sortedKeywords) {
+        return TrieMap.getNodes(version.root, version.prefixFilter, sortedKeywords, (node) -> node);
+    }
+}
@@ -1,19 +1,38 @@
 package com.gmail.adamvdvoorn;
 
 import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * com.gmail.adamvdvoorn.TrieNode
  * Recursive data structure that stores stops in a format that allows easy searching of them.
  * */
 
-class TrieNode<T>{
-    private Map<Character, TrieNode<T>> childCharacters = new HashMap<>();
-    private final Character character;
-    private Map<T, objectAssociation<T>> associatedObjects = new HashMap<>();
+class TrieNode<T> implements KeywordMatches<T> {
+    /* estimated sizes of a HashMap, with compressed references */
+    private static final int HASH_MAP_BYTES = 48;
+    private static final int TABLE_HEADER_BYTES = 16;
+    private static final int REFERENCE_BYTES = 4;
+    static final int ENTRY_BYTES = 32; // a HashMap.Node
+    /* estimated sizes of the other objects in a trie, with compressed references */
+    static final int NODE_BYTES = 32;
+    static final int ASSOCIATION_BYTES = 32;
+    static final int BOXED_BYTES = 16; // a Character or Integer outside the range that is cached
+    static final int ARRAY_HEADER_BYTES = 16;
+
+    // both maps are allocated by the first put, and released by compact() once they are empty
+    private Map<Character, TrieNode<T>> childCharacters = null;
+    private final char character; // '\0' for a root
+    private Map<Object, objectAssociation<T>> associatedObjects = null; // keyed by item key
     private TrieNode<T> parent;
+    private int subtreeSize = 0; // # of associations held by this node and all of its descendants
+    // log2 of each map's table capacity, which a HashMap never shrinks, 0 if the map is not allocated
+    private byte childCapacity = 0;
+    private byte associationCapacity = 0;
 
-    TrieNode(Character character, TrieNode<T> parent) {
+    TrieNode(char character, TrieNode<T> parent) {
         this.character = character;
         this.parent = parent;
     }
@@ -25,46 +44,239 @@ class TrieNode<T>{
      * @throws NoAssociatedObjectsException if no sequence of nodes that match the input string can be found.
      * */
     TrieNode<T> getNode(String searchString, int index) throws NoAssociatedObjectsException {
-        Character workingChar = searchString.charAt(index);
-        if (childCharacters.containsKey(workingChar)) {
+        TrieNode<T> child = getChild(searchString.charAt(index));
+        if (child != null) {
             if (index == searchString.length()-1) {
-                return childCharacters.get(workingChar);
+                return child;
             }
-            return childCharacters.get(workingChar).getNode(searchString, index+1);
+            return child.getNode(searchString, index+1);
         }
         else throw new NoAssociatedObjectsException();
     }
 
-    void addAssociation(objectAssociation<T> association) {
-        associatedObjects.put(association.obj, association);
+    /**
+     * @return true if the association is new, false if it replaced an association with the same item key.
+     * */
+    boolean addAssociation(objectAssociation<T> association) {
+        return addAssociation(association.key, association);
+    }
+
+    /**
+     * @param mapKey what the association is stored under in this node, instead of its item key.
+     * @return true if the association is new, false if it replaced an association with the same map key.
+     * */
+    boolean addAssociation(Object mapKey, objectAssociation<T> association) {
+        if (associatedObjects == null) {
+            associatedObjects = new HashMap<>();
+        }
+        if (associatedObjects.put(mapKey, association) == null) {
+            associationCapacity = grown(associationCapacity, associatedObjects.size());
+            for (TrieNode<T> node = this; node != null; node = node.parent) {
+                node.subtreeSize++;
+            }
+            return true;
+        }
+        return false;
+    }
+    void removeAssociation(Object key) {
+        if (associatedObjects != null && associatedObjects.remove(key) != null) {
+            for (TrieNode<T> node = this; node != null; node = node.parent) {
+                node.subtreeSize--;
+            }
+        }
+    }
+
+    TrieNode<T> getChild(char c) {
+        return childCharacters == null ? null : childCharacters.get(c);
+    }
+
+    /**
+     * @return a new child node for the character, replacing any existing child for it.
+     * */
+    TrieNode<T> addChild(char c) {
+        TrieNode<T> child = new TrieNode<>(c, this);
+        setChild(child);
+        return child;
+    }
+
+    /**
+     * Adds a child node, replacing any existing child for the same character.
+     * */
+    void setChild(TrieNode<T> child) {
+        if (childCharacters == null) {
+            childCharacters = new HashMap<>();
+        }
+        if (childCharacters.put(child.character, child) == null) {
+            childCapacity = grown(childCapacity, childCharacters.size());
+        }
+    }
+
+    /**
+     * Points the parent links of this node's children back at this node, after it was copied.
+     * */
+    void adoptChildren() {
+        for (TrieNode<T> child : getChildren()) {
+            child.parent = this;
+        }
+    }
+
+    /**
+     * @param parent the parent of the copy.
+     * @return a copy of this node with its own child and association maps, sharing the same children and associations.
+     * The children's parent links still point at this node, see {@link #adoptChildren()}.
+     * */
+    TrieNode<T> copy(TrieNode<T> parent) {
+        TrieNode<T> copy = new TrieNode<>(character, parent);
+        if (childCharacters != null && !childCharacters.isEmpty()) {
+            copy.childCapacity = fittedCapacity(childCharacters.size());
+            copy.childCharacters = rebuild(childCharacters, copy.childCapacity);
+        }
+        if (associatedObjects != null && !associatedObjects.isEmpty()) {
+            copy.associationCapacity = fittedCapacity(associatedObjects.size());
+            copy.associatedObjects = rebuild(associatedObjects, copy.associationCapacity);
+        }
+        copy.subtreeSize = subtreeSize;
+        return copy;
+    }
+
+    /**
+     * Rebuilds this node's maps if they have much more capacity than they need, and releases them if they are empty.
+     * @return the estimated # of bytes freed.
+     * */
+    long compact() {
+        long reclaimed = 0;
+        if (childCharacters != null) {
+            int size = childCharacters.size();
+            byte fitted = size == 0 ? 0 : fittedCapacity(size);
+            if (fitted < childCapacity) {
+                reclaimed += mapBytes(childCapacity) - mapBytes(fitted);
+                childCharacters = size == 0 ? null : rebuild(childCharacters, fitted);
+                childCapacity = fitted;
+            }
+        }
+        if (associatedObjects != null) {
+            int size = associatedObjects.size();
+            byte fitted = size == 0 ? 0 : fittedCapacity(size);
+            if (fitted < associationCapacity) {
+                reclaimed += mapBytes(associationCapacity) - mapBytes(fitted);
+                associatedObjects = size == 0 ? null : rebuild(associatedObjects, fitted);
+                associationCapacity = fitted;
+            }
+        }
+        return reclaimed;
+    }
+
+    /**
+     * @param countAssociations false if the associations are also held, and counted, elsewhere.
+     * @return the estimated # of bytes retained by this node: the node, its maps and their entries, and its
+     * associations, but not its children or the items themselves.
+     * */
+    long estimateBytes(boolean countAssociations) {
+        long bytes = NODE_BYTES;
+        if (childCharacters != null) {
+            bytes += mapBytes(childCapacity) + (long) childCharacters.size() * ENTRY_BYTES;
+            for (Character c : childCharacters.keySet()) {
+                if (c > Byte.MAX_VALUE) {
+                    bytes += BOXED_BYTES;
+                }
+            }
+        }
+        if (associatedObjects != null) {
+            bytes += mapBytes(associationCapacity) + (long) associatedObjects.size() * ENTRY_BYTES;
+            if (countAssociations) {
+                for (objectAssociation<T> association : associatedObjects.values()) {
+                    bytes += association.estimateBytes();
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the estimated # of bytes retained by a node and all of its descendants, see {@link #estimateBytes(boolean)}.
+     * */
+    static <E> long estimateSubtreeBytes(TrieNode<E> root, boolean countAssociations) {
+        long bytes = 0;
+        Deque<TrieNode<E>> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            TrieNode<E> node = pending.pop();
+            bytes += node.estimateBytes(countAssociations);
+            for (TrieNode<E> child : node.getChildren()) {
+                pending.push(child);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the estimated # of bytes of a HashMap that grew to the given size from its default capacity,
+     * including its entries, but not its keys and values.
+     * */
+    static long hashMapBytes(int size) {
+        return hashMapBytes(size, 16);
     }
-    void removeAssociation(T obj) {
-        associatedObjects.remove(obj);
+
+    /**
+     * @param initialCapacity the capacity the HashMap was constructed with, a power of two.
+     * @return the estimated # of bytes of a HashMap that grew to the given size, including its entries, but not its
+     * keys and values.
+     * */
+    static long hashMapBytes(int size, int initialCapacity) {
+        byte initial = (byte) Integer.numberOfTrailingZeros(initialCapacity);
+        return mapBytes((byte) Math.max(initial, fittedCapacity(size))) + (long) size * ENTRY_BYTES;
     }
 
-    TrieNode<T> getChild(Character c) {
-        return childCharacters.get(c);
+    /**
+     * @return the # of bytes of an array, with the given # of bytes of elements.
+     * */
+    static long arrayBytes(long elementBytes) {
+        return (ARRAY_HEADER_BYTES + elementBytes + 7) & ~7L;
     }
 
     Collection<TrieNode<T>> getChildren() {
-        return Collections.unmodifiableCollection(childCharacters.values());
+        return childCharacters == null ? Collections.emptyList() : Collections.unmodifiableCollection(childCharacters.values());
+    }
+
+    /**
+     * @param splitThreshold subtrees with fewer associations than this are collected by a single thread.
+     * @return every association held by this node and its descendants.
+     * The stream is parallel if this subtree is at least as large as the split threshold.
+     * */
+    @Override
+    public Stream<objectAssociation<T>> streamAssociations(int splitThreshold) {
+        return StreamSupport.stream(new TrieNodeSpliterator<>(this, splitThreshold), subtreeSize >= splitThreshold);
+    }
+
+    @Override
+    public void forEachAssociation(BiConsumer<CharSequence, objectAssociation<T>> action) {
+        forEachAssociation(new StringBuilder(), action);
     }
 
     /**
-     * Recursive function
+     * @param rest the characters from the node the walk started at to this node.
      * */
-    Set<objectAssociation<T>> getChildAssociations(Set<objectAssociation<T>> childAssociations) {
-        if (!associatedObjects.isEmpty()) {
-            childAssociations.addAll(associatedObjects.values());
+    private void forEachAssociation(StringBuilder rest, BiConsumer<CharSequence, objectAssociation<T>> action) {
+        for (objectAssociation<T> association : getAssociatedObjects()) {
+            action.accept(rest, association);
         }
-        for (TrieNode<T> child : childCharacters.values()) {
-            child.getChildAssociations(childAssociations);
+        for (TrieNode<T> child : getChildren()) {
+            rest.append(child.character);
+            child.forEachAssociation(rest, action);
+            rest.setLength(rest.length() - 1);
         }
-        return childAssociations;
+    }
+
+    /**
+     * @return the # of associations held by this node and all of its descendants.
+     * */
+    @Override
+    public int getSubtreeSize() {
+        return subtreeSize;
     }
 
     Collection<objectAssociation<T>> getAssociatedObjects() {
-        return Collections.unmodifiableCollection(associatedObjects.values());
+        return associatedObjects == null ? Collections.emptyList() : Collections.unmodifiableCollection(associatedObjects.values());
     }
 
     /** Recursive function used to insert a new name into the trie.
@@ -73,56 +285,59 @@ class TrieNode<T>{
      * > a child node is identified that's character is the same as the first character in the input string.
      * > if this node cannot be found, a new child node is created and given the first character of the input string.
      * > the fist character is omitted from the input string and passed to the child node, where the process starts again.
+     * @return the node the association was added to.
+     * */
+    TrieNode<T> pass(String word, objectAssociation<T> associated, int index) {
+        return pass(word, associated.key, associated, index);
+    }
+
+    /**
+     * @param mapKey what the association is stored under in the final node, see {@link #addAssociation(Object, objectAssociation)}.
+     * @return the node the association was added to.
      * */
-    void pass(String word, objectAssociation<T> associated, int index) {
-        Character nextChar = word.charAt(index);
-        TrieNode<T> nextNode;
+    TrieNode<T> pass(String word, Object mapKey, objectAssociation<T> associated, int index) {
+        char nextChar = word.charAt(index);
+        TrieNode<T> nextNode = getChild(nextChar);
 
         // if the next character is not a child of this node
-        if (!childCharacters.containsKey(nextChar)) {
-            nextNode = new TrieNode<>(nextChar, this);
-            childCharacters.put(nextChar, nextNode);
-        }
-        else {
-            nextNode = childCharacters.get(nextChar);
+        if (nextNode == null) {
+            nextNode = addChild(nextChar);
         }
         assert nextNode != null;
         // if the next character is the final character
         if (index == word.length()-1) {
-            nextNode.addAssociation(associated);
-        }
-        else {
-            nextNode.pass(word, associated, index+1);
+            nextNode.addAssociation(mapKey, associated);
+            return nextNode;
         }
-    }
-
-    Collection<T> collect() {
-    	Collection<T> collection = new HashSet<>();
-        for (TrieNode.objectAssociation<T> objectAssociation : associatedObjects.values()) {
-            collection.add(objectAssociation.obj);
-        }
-        for (TrieNode<T> child : childCharacters.values()) {
-            collection.addAll(child.collect());
-        }
-        return collection;
+        return nextNode.pass(word, mapKey, associated, index+1);
     }
 
     TrieNode<T> getUniqueBranch(String keyword, int index, TrieNode<T> branchBase) throws NoAssociatedObjectsException {
-        Character workingChar = keyword.charAt(index);
-        if (childCharacters.containsKey(workingChar)) {
+        TrieNode<T> child = getChild(keyword.charAt(index));
+        if (child != null) {
             if (index == keyword.length()-1) {
                 return branchBase;
             }
-            TrieNode<T> child = childCharacters.get(workingChar);
             return child.getUniqueBranch(keyword, index+1, branchBase);
         }
         else throw new NoAssociatedObjectsException();
     }
 
+    /**
+     * @return the keyword this node is the end of, built by walking up to the root.
+     */
+    String getKeyword() {
+        StringBuilder keyword = new StringBuilder();
+        for (TrieNode<T> node = this; node.parent != null; node = node.parent) {
+            keyword.append(node.character);
+        }
+        return keyword.reverse().toString();
+    }
+
     TrieNode<T> getParent() {
         return parent;
     }
-    Character getChar() {
+    char getChar() {
         return character;
     }
     /**
@@ -130,17 +345,18 @@ class TrieNode<T>{
      */
     public String toString() {
         String result;
-        if (childCharacters.isEmpty()) {
-            result = character.toString();
-        } else if (childCharacters.size() == 1) {
-            TrieNode<T> onlyChild = childCharacters.values().iterator().next();
-            result = character.toString() + onlyChild.toString();
+        Collection<TrieNode<T>> childNodes = getChildren();
+        if (childNodes.isEmpty()) {
+            result = String.valueOf(character);
+        } else if (childNodes.size() == 1) {
+            TrieNode<T> onlyChild = childNodes.iterator().next();
+            result = character + onlyChild.toString();
         } else {
             StringBuilder str = new StringBuilder();
             str.append(character);
             str.append("{");
             // sort children
-            List<TrieNode<T>> children = new ArrayList<>(childCharacters.values());
+            List<TrieNode<T>> children = new ArrayList<>(childNodes);
             children.sort(Comparator.comparingInt(TrieNode::getChar));
             for (int i = 0; i < children.size(); i++) {
                 str.append(children.get(i).toString());
@@ -156,18 +372,92 @@ class TrieNode<T>{
     }
 
     public void removeChild(char c) {
-        childCharacters.remove(c);
+        if (childCharacters != null) {
+            childCharacters.remove(c);
+        }
+    }
+
+    /**
+     * @return the capacity a HashMap has after a new entry takes it to the given size, see {@link HashMap#put}.
+     * */
+    private static byte grown(byte capacity, int size) {
+        if (capacity == 0) {
+            return 4; // a HashMap's first table has 16 entries
+        }
+        return size > threshold(capacity) ? (byte) (capacity + 1) : capacity;
+    }
+
+    /**
+     * @return the least capacity that holds the given # of entries without growing.
+     * */
+    private static byte fittedCapacity(int size) {
+        byte capacity = 1;
+        while (size > threshold(capacity)) {
+            capacity++;
+        }
+        return capacity;
+    }
+
+    private static int threshold(byte capacity) {
+        return (int) ((1 << capacity) * 0.75f);
+    }
+
+    private static long mapBytes(byte capacity) {
+        return capacity == 0 ? 0 : HASH_MAP_BYTES + TABLE_HEADER_BYTES + ((long) REFERENCE_BYTES << capacity);
+    }
+
+    private static <K, V> Map<K, V> rebuild(Map<K, V> map, byte capacity) {
+        // put one at a time, putAll would size the table by its own rule
+        Map<K, V> rebuilt = new HashMap<>(1 << capacity);
+        for (Map.Entry<K, V> entry : map.entrySet()) {
+            rebuilt.put(entry.getKey(), entry.getValue());
+        }
+        return rebuilt;
     }
 
     static class objectAssociation<T> {
         T obj;
-        int keywordIndex;
+        Object key; // what the item is hashed and compared by, see TrieMap's itemKey
+        int keywordIndex; // the first position of the keyword in the name
         int nOfKeywords;
+        int[] laterIndexes = null; // the later positions of a keyword that appears more than once in the name
         objectAssociation(T obj, int keywordIndex, int nOfKeywords) {
+            this(obj, obj, keywordIndex, nOfKeywords);
+        }
+        objectAssociation(T obj, Object key, int keywordIndex, int nOfKeywords) {
             this.obj = obj;
+            this.key = key;
             this.keywordIndex = keywordIndex;
             this.nOfKeywords = nOfKeywords;
         }
+
+        /**
+         * @return the estimated # of bytes of this association, not counting the item or its key.
+         * */
+        long estimateBytes() {
+            return ASSOCIATION_BYTES + (laterIndexes == null ? 0 : arrayBytes((long) laterIndexes.length * Integer.BYTES));
+        }
+
+        /**
+         * Records another position of the keyword in the name, after every position recorded so far.
+         * */
+        void addKeywordIndex(int index) {
+            laterIndexes = laterIndexes == null ? new int[] {index} : Arrays.copyOf(laterIndexes, laterIndexes.length + 1);
+            laterIndexes[laterIndexes.length - 1] = index;
+        }
+
+        /**
+         * @return every position of the keyword in the name, in order.
+         * */
+        int[] keywordIndexes() {
+            if (laterIndexes == null) {
+                return new int[] {keywordIndex};
+            }
+            int[] indexes = new int[laterIndexes.length + 1];
+            indexes[0] = keywordIndex;
+            System.arraycopy(laterIndexes, 0, indexes, 1, laterIndexes.length);
+            return indexes;
+        }
     }
 }
 
@@ -0,0 +1,98 @@
+package com.gmail.adamvdvoorn;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * com.gmail.adamvdvoorn.TrieNodeSpliterator
+ * Walks every object association in the subtree of a node without recursion.
+ * Splitting hands whole child branches to the new spliterator, so a large subtree can be shared out between the
+ * threads of a ForkJoinPool. Subtrees with fewer associations than the split threshold are never split.
+ * */
+class TrieNodeSpliterator<T> implements Spliterator<TrieNode.objectAssociation<T>> {
+    private final Deque<TrieNode<T>> pending = new ArrayDeque<>(); // branches that have not been visited yet
+    private Iterator<TrieNode.objectAssociation<T>> current = Collections.emptyIterator();
+    private final int splitThreshold;
+    private long estimate;
+
+    TrieNodeSpliterator(TrieNode<T> node, int splitThreshold) {
+        this(splitThreshold);
+        pending.push(node);
+        estimate = node.getSubtreeSize();
+    }
+
+    private TrieNodeSpliterator(int splitThreshold) {
+        this.splitThreshold = splitThreshold;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super TrieNode.objectAssociation<T>> action) {
+        while (!current.hasNext()) {
+            if (pending.isEmpty()) {
+                return false;
+            }
+            visitNext();
+        }
+        action.accept(current.next());
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super TrieNode.objectAssociation<T>> action) {
+        current.forEachRemaining(action);
+        while (!pending.isEmpty()) {
+            TrieNode<T> node = pending.pop();
+            node.getAssociatedObjects().forEach(action);
+            for (TrieNode<T> child : node.getChildren()) {
+                pending.push(child);
+            }
+        }
+        current = Collections.emptyIterator();
+    }
+
+    /**
+     * Gives away half of the unvisited branches.
+     * A single unvisited branch is opened up until it has at least two children to share out.
+     * */
+    @Override
+    public Spliterator<TrieNode.objectAssociation<T>> trySplit() {
+        if (estimate < splitThreshold) {
+            return null;
+        }
+        while (pending.size() == 1 && !current.hasNext()) {
+            visitNext();
+        }
+        // if this spliterator still has associations of its own to give, it can give away every pending branch
+        int toGive = current.hasNext() ? (pending.size() + 1) / 2 : pending.size() / 2;
+        if (toGive == 0) {
+            return null;
+        }
+        TrieNodeSpliterator<T> split = new TrieNodeSpliterator<>(splitThreshold);
+        for (int i = 0; i < toGive; i++) {
+            // take from the bottom of the stack, the branches furthest from being visited
+            TrieNode<T> node = pending.pollLast();
+            split.pending.push(node);
+            split.estimate += node.getSubtreeSize();
+        }
+        estimate = Math.max(0, estimate - split.estimate);
+        return split;
+    }
+
+    @Override
+    public long estimateSize() {
+        return estimate;
+    }
+
+    @Override
+    public int characteristics() {
+        return NONNULL;
+    }
+
+    private void visitNext() {
+        TrieNode<T> node = pending.pop();
+        for (TrieNode<T> child : node.getChildren()) {
+            pending.push(child);
+        }
+        current = node.getAssociatedObjects().iterator();
+    }
+}
@@ -0,0 +1,319 @@
+package com.gmail.adamvdvoorn;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+import java.util.zip.CRC32C;
+
+/**
+ * com.gmail.adamvdvoorn.TrieSnapshot
+ * Writes the nodes of a trie to a channel, and reads them back, without tokenizing any names.
+ *
+ * Layout, version 2:
+ *
+ *      magic           int, "TRIE"
+ *      version         byte
+ *      root node
+ *      checksum        int, CRC32C of every byte before it
+ *
+ * where a node is, in pre-order:
+ *
+ *      character       varint (0 for the root)
+ *      # associations  varint
+ *      associations    item index varint, keyword index varint, # of keywords varint
+ *                      (shifted left by one, the low bit set if the keyword appears more than once in the name,
+ *                      in which case it is followed by the # of later positions varint, and each position varint)
+ *      # children      varint
+ *      children        nodes, sorted by character
+ *
+ * Items are numbered in the order they are first referenced. The first reference to an item is followed by the item
+ * itself: a varint length and the bytes from the item codec.
+ *
+ * The checksum is only checked once everything before it has been read, so every count, index and length is checked
+ * as it is read, and a corrupt snapshot fails with an IOException rather than running out of bounds or memory first.
+ * */
+final class TrieSnapshot {
+    static final int MAGIC = 0x54524945;
+    static final byte VERSION = 2;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private TrieSnapshot() {
+    }
+
+    static <T> void write(TrieNode<T> root, ItemCodec<T> codec, WritableByteChannel channel) throws IOException {
+        Output out = new Output(channel);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        writeNode(root, codec, new HashMap<>(), out);
+        out.finish();
+    }
+
+    /**
+     * Reads a snapshot into an empty trie.
+     * @param map the map the nodes are being read for, used to key the items.
+     * */
+    static <T> void read(TrieMap<T> map, TrieNode<T> root, ItemCodec<T> codec, ReadableByteChannel channel) throws IOException {
+        Input in = new Input(channel);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a TrieMap snapshot");
+        }
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported snapshot version: " + version);
+        }
+        if (in.readVarint() != 0) {
+            throw new IOException("snapshot is corrupt: root node has a character");
+        }
+        readNodeContents(map, root, codec, new ArrayList<>(), new ArrayList<>(), in);
+        in.verifyChecksum();
+    }
+
+    private static <T> void writeNode(TrieNode<T> node, ItemCodec<T> codec, Map<Object, Integer> itemIndexes, Output out)
+            throws IOException {
+        out.writeVarint(node.getChar());
+        Collection<TrieNode.objectAssociation<T>> associations = node.getAssociatedObjects();
+        out.writeVarint(associations.size());
+        for (TrieNode.objectAssociation<T> association : associations) {
+            Integer itemIndex = itemIndexes.get(association.key);
+            if (itemIndex == null) {
+                out.writeVarint(itemIndexes.size());
+                itemIndexes.put(association.key, itemIndexes.size());
+                byte[] item = codec.encode(association.obj);
+                out.writeVarint(item.length);
+                out.writeBytes(item);
+            }
+            else {
+                out.writeVarint(itemIndex);
+            }
+            out.writeVarint(association.keywordIndex);
+            if (association.laterIndexes == null) {
+                out.writeVarint(association.nOfKeywords << 1);
+            }
+            else {
+                out.writeVarint(association.nOfKeywords << 1 | 1);
+                out.writeVarint(association.laterIndexes.length);
+                for (int index : association.laterIndexes) {
+                    out.writeVarint(index);
+                }
+            }
+        }
+
+        List<TrieNode<T>> children = new ArrayList<>(node.getChildren());
+        children.sort(Comparator.comparingInt(TrieNode::getChar));
+        out.writeVarint(children.size());
+        for (TrieNode<T> child : children) {
+            writeNode(child, codec, itemIndexes, out);
+        }
+    }
+
+    private static <T> void readNodeContents(TrieMap<T> map, TrieNode<T> node, ItemCodec<T> codec, List<T> items,
+                                             List<Object> keys, Input in) throws IOException {
+        int nOfAssociations = readCount(in, "associations");
+        for (int i = 0; i < nOfAssociations; i++) {
+            int itemIndex = in.readVarint();
+            if (itemIndex == items.size()) {
+                T item = decode(codec, in.readBytes(readCount(in, "item bytes")));
+                items.add(item);
+                keys.add(map.keyOf(item));
+            }
+            else if (itemIndex < 0 || itemIndex > items.size()) {
+                throw new IOException("snapshot is corrupt: item " + itemIndex + " referenced before it is defined");
+            }
+            int keywordIndex = in.readVarint();
+            int nOfKeywords = in.readVarint();
+            boolean repeated = (nOfKeywords & 1) != 0;
+            nOfKeywords >>>= 1;
+            if (keywordIndex < 0 || keywordIndex >= nOfKeywords) {
+                throw new IOException("snapshot is corrupt: keyword " + keywordIndex + " of " + nOfKeywords);
+            }
+            TrieNode.objectAssociation<T> association =
+                    new TrieNode.objectAssociation<>(items.get(itemIndex), keys.get(itemIndex), keywordIndex, nOfKeywords);
+            if (repeated) {
+                int nOfLaterIndexes = readCount(in, "later positions");
+                if (nOfLaterIndexes >= nOfKeywords) {
+                    throw new IOException("snapshot is corrupt: keyword repeated " + nOfLaterIndexes + " times");
+                }
+                for (int j = 0; j < nOfLaterIndexes; j++) {
+                    int laterIndex = in.readVarint();
+                    if (laterIndex <= keywordIndex || laterIndex >= nOfKeywords) {
+                        throw new IOException("snapshot is corrupt: keyword " + laterIndex + " of " + nOfKeywords);
+                    }
+                    association.addKeywordIndex(laterIndex);
+                }
+            }
+            node.addAssociation(association);
+        }
+        int nOfChildren = readCount(in, "children");
+        for (int i = 0; i < nOfChildren; i++) {
+            int c = in.readVarint();
+            if (c < 0 || c > Character.MAX_VALUE) {
+                throw new IOException("snapshot is corrupt: invalid character " + c);
+            }
+            readNodeContents(map, node.addChild((char) c), codec, items, keys, in);
+        }
+    }
+
+    private static int readCount(Input in, String of) throws IOException {
+        int count = in.readVarint();
+        if (count < 0) {
+            throw new IOException("snapshot is corrupt: negative # of " + of);
+        }
+        return count;
+    }
+
+    private static <T> T decode(ItemCodec<T> codec, byte[] bytes) throws IOException {
+        try {
+            return codec.decode(bytes);
+        }
+        catch (RuntimeException e) {
+            throw new IOException("snapshot is corrupt: an item could not be decoded", e);
+        }
+    }
+
+    private static final class Output {
+        private final WritableByteChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final CRC32C checksum = new CRC32C();
+
+        Output(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        void writeByte(byte b) throws IOException {
+            ensureSpace(1);
+            buffer.put(b);
+        }
+
+        void writeInt(int i) throws IOException {
+            ensureSpace(4);
+            buffer.putInt(i);
+        }
+
+        void writeVarint(int i) throws IOException {
+            ensureSpace(5);
+            MutationLog.writeVarint(buffer, i);
+        }
+
+        void writeBytes(byte[] bytes) throws IOException {
+            int written = 0;
+            while (written < bytes.length) {
+                ensureSpace(1);
+                int n = Math.min(buffer.remaining(), bytes.length - written);
+                buffer.put(bytes, written, n);
+                written += n;
+            }
+        }
+
+        /**
+         * Writes everything that is buffered, followed by the checksum.
+         * */
+        void finish() throws IOException {
+            flush();
+            buffer.putInt((int) checksum.getValue());
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        private void ensureSpace(int n) throws IOException {
+            if (buffer.remaining() < n) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            checksum.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    private static final class Input {
+        private final ReadableByteChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final CRC32C checksum = new CRC32C();
+        private int checksummedTo = 0; // position in the buffer up to which bytes have been added to the checksum
+
+        Input(ReadableByteChannel channel) {
+            this.channel = channel;
+            buffer.flip();
+        }
+
+        byte readByte() throws IOException {
+            ensureAvailable(1);
+            return buffer.get();
+        }
+
+        int readInt() throws IOException {
+            ensureAvailable(4);
+            return buffer.getInt();
+        }
+
+        int readVarint() throws IOException {
+            // every varint is followed by at least the 4 byte checksum, so 5 bytes are there unless it is truncated
+            ensureAvailable(5);
+            try {
+                return MutationLog.readVarint(buffer);
+            }
+            catch (IllegalArgumentException e) {
+                throw new IOException("snapshot is corrupt: varint is too long");
+            }
+        }
+
+        byte[] readBytes(int length) throws IOException {
+            // grown as the bytes arrive, so a corrupt length ends at the end of the snapshot rather than allocating it
+            byte[] bytes = new byte[Math.min(length, BUFFER_SIZE)];
+            int read = 0;
+            while (read < length) {
+                ensureAvailable(1);
+                if (read == bytes.length) {
+                    bytes = Arrays.copyOf(bytes, (int) Math.min(length, bytes.length * 2L));
+                }
+                int n = Math.min(buffer.remaining(), bytes.length - read);
+                buffer.get(bytes, read, n);
+                read += n;
+            }
+            return bytes;
+        }
+
+        /**
+         * Reads the checksum at the end of the snapshot, and checks it against the bytes read before it.
+         * */
+        void verifyChecksum() throws IOException {
+            updateChecksum();
+            int expected = (int) checksum.getValue();
+            if (readInt() != expected) {
+                throw new IOException("snapshot is corrupt: checksum does not match");
+            }
+        }
+
+        private void ensureAvailable(int n) throws IOException {
+            if (buffer.remaining() >= n) {
+                return;
+            }
+            updateChecksum();
+            buffer.compact();
+            while (buffer.position() < n) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("snapshot is truncated");
+                }
+            }
+            buffer.flip();
+            checksummedTo = 0;
+        }
+
+        private void updateChecksum() {
+            ByteBuffer consumed = buffer.duplicate();
+            consumed.limit(buffer.position()).position(checksummedTo);
+            checksum.update(consumed);
+            checksummedTo = buffer.position();
+        }
+    }
+}
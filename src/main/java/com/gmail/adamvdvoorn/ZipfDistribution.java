@@ -0,0 +1,31 @@
+package com.gmail.adamvdvoorn;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Picks ranks from 0 to n - 1, where rank k is picked in proportion to 1 / (k + 1)^exponent, so a few ranks make up
+ * most of the picks and the rest form a long tail, as with the words people search for.
+ * */
+final class ZipfDistribution {
+    private final double[] cumulative; // rank -> the sum of the weights up to and including it
+
+    ZipfDistribution(int n, double exponent) {
+        if (n < 1) {
+            throw new IllegalArgumentException("n must be positive: " + n);
+        }
+        cumulative = new double[n];
+        double total = 0;
+        for (int k = 0; k < n; k++) {
+            total += 1 / Math.pow(k + 1, exponent);
+            cumulative[k] = total;
+        }
+    }
+
+    int sample(Random random) {
+        double target = random.nextDouble() * cumulative[cumulative.length - 1];
+        int i = Arrays.binarySearch(cumulative, target);
+        // not found returns -(insertion point) - 1, the first rank whose sum is above the target
+        return Math.min(i < 0 ? -i - 1 : i, cumulative.length - 1);
+    }
+}
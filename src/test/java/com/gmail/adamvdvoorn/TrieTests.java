@@ -1,10 +1,25 @@
 package com.gmail.adamvdvoorn;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.CsvSource;
 import org.junit.jupiter.params.provider.ValueSource;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -861,7 +876,1517 @@ public class TrieTests {
         t.put("Fix & Fogg's \"everything\" butter", "<Fix & Fogg's>");
         assertEquals(expectedNumResults, t.search(searchStr).size());
     }
-}
 
+    @Test
+    public void parallel_1_search() {
+        TrieMap<String> serial = new TrieMap<String>(fullComparator);
+        TrieMap<String> parallel = new TrieMap<String>(fullComparator);
+        parallel.setParallelThreshold(1);
+        for (String str : trieInput) {
+            serial.put(str, "<" + str + ">");
+            parallel.put(str, "<" + str + ">");
+        }
+        for (String search : new String[] {"c", "che", "a", "chicken whole", "s", "x"}) {
+            assertEquals(serial.search(search), parallel.search(search));
+        }
+        assertEquals(serial.items(), parallel.items());
+    }
+
+    @Test
+    public void parallel_2_spliterator_covers_subtree() {
+        TrieNode<Integer> root = new TrieNode<>('\0', null);
+        for (int i = 0; i < 2000; i++) {
+            String word = Integer.toString(i, 36);
+            root.pass(word, new TrieNode.objectAssociation<>(i, 0, 1), 0);
+        }
+        assertEquals(2000, root.getSubtreeSize());
+
+        // split as far as possible, then check every association is visited exactly once
+        List<Spliterator<TrieNode.objectAssociation<Integer>>> parts = new ArrayList<>();
+        Deque<Spliterator<TrieNode.objectAssociation<Integer>>> toSplit = new ArrayDeque<>();
+        toSplit.push(new TrieNodeSpliterator<>(root, 1));
+        while (!toSplit.isEmpty()) {
+            Spliterator<TrieNode.objectAssociation<Integer>> s = toSplit.pop();
+            Spliterator<TrieNode.objectAssociation<Integer>> split = s.trySplit();
+            if (split == null) {
+                parts.add(s);
+            } else {
+                toSplit.push(s);
+                toSplit.push(split);
+            }
+        }
+        assertTrue(parts.size() > 1);
+        List<Integer> visited = new ArrayList<>();
+        for (Spliterator<TrieNode.objectAssociation<Integer>> part : parts) {
+            part.forEachRemaining((e) -> visited.add(e.obj));
+        }
+        assertEquals(2000, visited.size());
+        assertEquals(2000, new HashSet<>(visited).size());
+
+        // small subtrees are not split
+        assertNull(new TrieNodeSpliterator<>(root, 2001).trySplit());
+    }
+
+    @Test
+    public void parallel_3_multi_keyword_search() {
+        TrieMap<String> serial = new TrieMap<String>(fullComparator);
+        TrieMap<String> parallel = new TrieMap<String>(fullComparator);
+        parallel.setParallelQueryThreshold(2, 1);
+        for (String str : trieInput) {
+            serial.put(str, "<" + str + ">");
+            parallel.put(str, "<" + str + ">");
+        }
+        for (String search : new String[] {"cheese sl", "chicken whole", "sliced edam cheese", "c b", "apple x", "a"}) {
+            assertEquals(serial.search(search), parallel.search(search));
+        }
+
+        List<String> expected = new ArrayList<>();
+        expected.add("<chicken liver free range>");
+        assertEquals(expected, parallel.search("c l f r"));
+    }
+
+    @Test
+    public void parallel_4_match_proportion_counts_every_keyword() {
+        Map<String, Float> proportions = new HashMap<>();
+        Comparator<TrieMap<String>.SearchResult> byProportion = (a, b) -> {
+            proportions.put(a.getItem(), a.matchProportion());
+            proportions.put(b.getItem(), b.matchProportion());
+            return Float.compare(a.matchProportion(), b.matchProportion());
+        };
+        TrieMap<String> serial = new TrieMap<>(byProportion);
+        TrieMap<String> parallel = new TrieMap<>(byProportion);
+        parallel.setParallelQueryThreshold(2, 1);
+        for (String str : new String[] {"aa bb cc", "aa bb zz", "aa bb yy", "aa bb cc dd"}) {
+            serial.put(str, str);
+            parallel.put(str, str);
+        }
+        List<String> expected = Arrays.asList("aa bb cc", "aa bb cc dd");
+        for (TrieMap<String> t : Arrays.asList(serial, parallel)) {
+            proportions.clear();
+            assertEquals(expected, t.search("aa bb cc"));
+            assertEquals(1.0f, proportions.get("aa bb cc"));
+            assertEquals(0.75f, proportions.get("aa bb cc dd"));
+        }
+    }
+
+    @Test
+    public void itemKey_1_identity() {
+        TrieMap<String> t = new TrieMap<>(fullComparator, Pattern.compile("[',]"), Pattern.compile("[^a-zA-Z0-9&]+"),
+                TrieMap.identityKey());
+        String a = new String("<apple>");
+        String b = new String("<apple>");
+        t.put("apple", a);
+        t.put("apple pie", b);
+        assertEquals(2, t.search("apple").size());
+        assertEquals(2, t.items().size());
+
+        try {
+            t.remove("apple", a);
+        } catch (NoAssociatedObjectsException e) {
+            fail();
+        }
+        List<String> actual = t.search("apple");
+        assertEquals(1, actual.size());
+        assertSame(b, actual.get(0));
+    }
+
+    @Test
+    public void itemKey_2_long() {
+        TrieMap<String> t = new TrieMap<>(fullComparator, Pattern.compile("[',]"), Pattern.compile("[^a-zA-Z0-9&]+"),
+                TrieMap.longKey((str) -> Arrays.asList(trieInput).indexOf(str.substring(1, str.length() - 1))));
+        for (String str : trieInput) {
+            t.put(str, "<" + str + ">");
+        }
+        assertEquals(trieInput.length, new HashSet<>(t.items()).size());
+
+        List<String> expected = new ArrayList<>();
+        expected.add("<edam cheese>");
+        expected.add("<sliced edam cheese>");
+        assertEquals(expected, t.search("edam"));
+
+        // same key, so treated as the same item
+        t.put("edam", "<edam cheese>");
+        assertEquals(expected, t.search("edam"));
+    }
+
+    @Test
+    public void reverseIndex_1_remove_item() throws NoAssociatedObjectsException {
+        TrieMap<String> expected = new TrieMap<>();
+        TrieMap<String> t = new TrieMap<>();
+        t.enableReverseIndex();
+        for (String str : trieInput) {
+            expected.put(str, "<" + str + ">");
+            t.put(str, "<" + str + ">");
+        }
+        for (String str : new String[] {"colby aged", "10kg rice bag", "knife sharpener", "sharp cheddar cheese"}) {
+            expected.remove(str, "<" + str + ">");
+            t.remove("<" + str + ">");
+        }
+        assertEquals(expected.toString(), t.toString());
+        assertEquals(expected.items(), t.items());
+        assertThrows(NoAssociatedObjectsException.class, () -> t.remove("<colby aged>"));
+    }
+
+    @Test
+    public void reverseIndex_2_rename() throws NoAssociatedObjectsException {
+        TrieMap<String> t = new TrieMap<>(fullComparator);
+        for (String str : trieInput) {
+            t.put(str, "<" + str + ">");
+        }
+        // enabled after the items are put
+        t.enableReverseIndex();
+        t.rename("<colby aged>", "aged colby cheese");
+        t.rename("<knife sharpener>", "knife block");
+
+        List<String> expected = new ArrayList<>();
+        expected.add("<colby aged>");
+        assertEquals(expected, t.search("aged colby"));
+        assertTrue(t.search("cheese").contains("<colby aged>"));
+        assertFalse(t.search("sharp").contains("<knife sharpener>"));
 
+        expected.clear();
+        expected.add("<knife sharpener>");
+        assertEquals(expected, t.search("knife bl"));
 
+        t.remove("<colby aged>");
+        t.remove("<knife sharpener>");
+        assertEquals("root{" +
+                "&," +
+                "10kg," +
+                "apple," +
+                "b{a{g,sic},one,reast}," +
+                "c{h{e{ddar,ese},icken},ow,rumble}," +
+                "duck," +
+                "edam," +
+                "fr{ee,ozen}," +
+                "in," +
+                "jimmys," +
+                "liver," +
+                "orange," +
+                "p{ear,ie,remuim}," +
+                "r{ange,ice}," +
+                "s{harp,liced,uper}," +
+                "thigh," +
+                "wh{eel,ole}}", t.toString());
+    }
+
+    @Test
+    public void reverseIndex_3_not_enabled() {
+        TrieMap<String> t = new TrieMap<>();
+        t.put("apple", "<apple>");
+        assertThrows(IllegalStateException.class, () -> t.remove("<apple>"));
+    }
+
+    @Test
+    public void arena_1_same_as_nodes() throws NoAssociatedObjectsException {
+        TrieMap<String> nodes = new TrieMap<String>(fullComparator);
+        ArenaTrieMap<String> arena = new ArenaTrieMap<String>(fullComparator);
+        for (String[] input : new String[][] {trieInput, trieInput2}) {
+            for (String str : input) {
+                nodes.put(str, "<" + str + ">");
+                arena.put(str, "<" + str + ">");
+            }
+        }
+        assertEquals(nodes.toString(), arena.toString());
+        assertEquals(nodes.items(), arena.items());
+        for (String search : new String[] {"c", "che", "a", "chicken whole", "cheese sl", "shar", "x", "fix & foggs butter"}) {
+            assertEquals(nodes.search(search), arena.search(search));
+        }
+
+        for (String str : new String[] {"colby aged", "10kg rice bag", "knife sharpener", "sharp cheddar cheese"}) {
+            nodes.remove(str, "<" + str + ">");
+            arena.remove(str, "<" + str + ">");
+        }
+        assertEquals(nodes.toString(), arena.toString());
+        assertEquals(nodes.items(), arena.items());
+        assertEquals(nodes.search("c"), arena.search("c"));
+        assertThrows(NoAssociatedObjectsException.class, () -> arena.remove("colby", "<colby aged>"));
+    }
+
+    @Test
+    public void arena_2_reuses_slots() throws NoAssociatedObjectsException {
+        ArenaTrieMap<String> t = new ArenaTrieMap<>();
+        t.setParallelThreshold(1);
+        for (String str : trieInput) {
+            t.put(str, "<" + str + ">");
+        }
+        int used = t.getNodeSlotsUsed();
+        for (int i = 0; i < 100; i++) {
+            t.remove("knife sharpener", "<knife sharpener>");
+            t.put("knife sharpener", "<knife sharpener>");
+        }
+        assertEquals(used, t.getNodeSlotsUsed());
+
+        List<String> expected = new ArrayList<>();
+        expected.add("<knife sharpener>");
+        assertEquals(expected, t.search("kni"));
+        assertEquals(trieInput.length, t.items().size());
+    }
+
+    @Test
+    public void arena_3_grows() {
+        ArenaTrieMap<Integer> t = new ArenaTrieMap<>();
+        t.setParallelThreshold(64);
+        for (int i = 0; i < 20000; i++) {
+            t.put(Integer.toString(i * 7919, 36), i);
+        }
+        assertEquals(20000, t.items().size());
+        for (int i = 0; i < 20000; i += 997) {
+            assertTrue(t.search(Integer.toString(i * 7919, 36)).contains(i));
+        }
+    }
+
+    @Test
+    public void arena_4_compacts() throws NoAssociatedObjectsException {
+        ArenaTrieMap<Integer> t = new ArenaTrieMap<>();
+        TrieMap<Integer> nodes = new TrieMap<>();
+        for (int i = 0; i < 20000; i++) {
+            t.put(Integer.toString(i * 7919, 36) + " x", i);
+            nodes.put(Integer.toString(i * 7919, 36) + " x", i);
+        }
+        for (int i = 0; i < 20000; i++) {
+            if (i % 100 != 0) {
+                t.remove(Integer.toString(i * 7919, 36) + " x", i);
+                nodes.remove(Integer.toString(i * 7919, 36) + " x", i);
+            }
+        }
+        long bytes = t.estimateRetainedBytes();
+        long freed = t.compact();
+        assertTrue(freed > bytes / 2);
+        assertEquals(bytes - freed, t.estimateRetainedBytes());
+        assertEquals(new HashSet<>(nodes.items()), new HashSet<>(t.items()));
+        for (String query : new String[] {"x", "1", "a x", "z"}) {
+            assertEquals(new HashSet<>(nodes.search(query)), new HashSet<>(t.search(query)));
+        }
+        // the compacted arrays grow again
+        for (int i = 0; i < 20000; i += 100) {
+            t.remove(Integer.toString(i * 7919, 36) + " x", i);
+            t.put("item " + i, i);
+        }
+        assertEquals(200, t.search("item").size());
+        assertTrue(t.search("x").isEmpty());
+    }
+
+    @Test
+    public void arena_5_repeated_keywords() throws NoAssociatedObjectsException {
+        ArenaTrieMap<String> t = new ArenaTrieMap<>();
+        t.put("new york new jersey", "route");
+        t.put("new jersey", "state");
+        Set<String> expected = new HashSet<>();
+        expected.add("route");
+        expected.add("state");
+        // "new" is at positions 0 and 2 of the route
+        assertEquals(expected, new HashSet<>(t.searchPhrase("new jersey")));
+        assertEquals(Collections.singletonList("route"), t.searchPhrase("york new"));
+        t.compact();
+        assertEquals(Collections.singletonList("route"), t.searchPhrase("york new"));
+
+        t.remove("new york new jersey", "route");
+        assertEquals(Collections.singletonList("state"), t.searchPhrase("new jersey"));
+        assertTrue(t.searchPhrase("york new").isEmpty());
+    }
+
+    @Test
+    public void snapshot_1_round_trip(@TempDir Path dir) throws IOException {
+        TrieMap<String> t = new TrieMap<String>(fullComparator);
+        for (String[] input : new String[][] {trieInput, trieInput2}) {
+            for (String str : input) {
+                t.put(str, "<" + str + ">");
+            }
+        }
+        Path file = dir.resolve("trie.snapshot");
+        t.writeSnapshot(file, ItemCodec.strings());
+        TrieMap<String> read = TrieMap.readSnapshot(file, ItemCodec.strings(), new TrieMap<String>(fullComparator));
+
+        assertEquals(t.toString(), read.toString());
+        assertEquals(t.items(), read.items());
+        for (String search : new String[] {"c", "chicken whole", "cheese sl", "fix & foggs butter", "x"}) {
+            assertEquals(t.search(search), read.search(search));
+        }
+    }
+
+    @Test
+    public void snapshot_2_stream_and_corruption() throws IOException {
+        TrieMap<String> t = new TrieMap<>();
+        for (String str : trieInput) {
+            t.put(str, "<" + str + ">");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        t.writeSnapshot(out, ItemCodec.strings());
+        byte[] bytes = out.toByteArray();
+
+        TrieMap<String> read = TrieMap.readSnapshot(new ByteArrayInputStream(bytes), ItemCodec.strings());
+        assertEquals(t.toString(), read.toString());
+
+        byte[] corrupt = bytes.clone();
+        corrupt[bytes.length / 2] ^= 1;
+        assertThrows(IOException.class, () -> TrieMap.readSnapshot(new ByteArrayInputStream(corrupt), ItemCodec.strings()));
+
+        byte[] truncated = Arrays.copyOf(bytes, bytes.length - 10);
+        assertThrows(IOException.class, () -> TrieMap.readSnapshot(new ByteArrayInputStream(truncated), ItemCodec.strings()));
+
+        // corrupt counts, indexes and lengths are rejected as they are read, before the checksum
+        for (int i = 0; i < bytes.length; i++) {
+            for (byte b : new byte[] {(byte) 0xFF, (byte) 0x80, 0x7F}) {
+                byte[] changed = bytes.clone();
+                changed[i] = b;
+                if (!Arrays.equals(changed, bytes)) {
+                    assertThrows(IOException.class,
+                            () -> TrieMap.readSnapshot(new ByteArrayInputStream(changed), ItemCodec.strings()));
+                }
+            }
+        }
+
+        assertThrows(IllegalArgumentException.class,
+                () -> TrieMap.readSnapshot(new ByteArrayInputStream(bytes), ItemCodec.strings(), read));
+    }
+
+    @Test
+    public void durable_1_recovers_from_log(@TempDir Path dir) throws IOException, NoAssociatedObjectsException {
+        DurableTrieMap<String> t = DurableTrieMap.open(dir, ItemCodec.strings());
+        for (String str : trieInput) {
+            t.put(str, "<" + str + ">");
+        }
+        t.remove("colby aged", "<colby aged>");
+        List<String> expected = t.search("c");
+        t.close();
+
+        DurableTrieMap<String> reopened = DurableTrieMap.open(dir, ItemCodec.strings());
+        assertEquals(new HashSet<>(expected), new HashSet<>(reopened.search("c")));
+        assertEquals(trieInput.length - 1, reopened.items().size());
+        reopened.close();
+    }
+
+    @Test
+    public void durable_2_checkpoints(@TempDir Path dir) throws IOException, NoAssociatedObjectsException {
+        DurableTrieMap<String> t = DurableTrieMap.open(dir, ItemCodec.strings(), () -> new TrieMap<>(fullComparator),
+                DurableTrieMap.SyncPolicy.ALWAYS, 1 << 20);
+        for (int i = 0; i < trieInput.length / 2; i++) {
+            t.put(trieInput[i], "<" + trieInput[i] + ">");
+        }
+        t.checkpoint();
+        for (int i = trieInput.length / 2; i < trieInput.length; i++) {
+            t.put(trieInput[i], "<" + trieInput[i] + ">");
+        }
+        t.remove("knife sharpener", "<knife sharpener>");
+        List<String> expected = t.search("c");
+        t.close();
+
+        // a record cut short by a crash is ignored
+        try (Stream<Path> files = Files.list(dir)) {
+            Path lastLog = files.filter((f) -> f.getFileName().toString().startsWith("log-")).max(Comparator.naturalOrder()).get();
+            Files.write(lastLog, new byte[] {0, 0, 0, 40, 1, 2, 3}, StandardOpenOption.APPEND);
+        }
+
+        DurableTrieMap<String> reopened = DurableTrieMap.open(dir, ItemCodec.strings(), () -> new TrieMap<>(fullComparator),
+                DurableTrieMap.SyncPolicy.ALWAYS, 1 << 20);
+        assertEquals(expected, reopened.search("c"));
+        assertEquals(trieInput.length - 1, reopened.items().size());
+        reopened.close();
+    }
+
+    @Test
+    public void durable_3_background_checkpoint(@TempDir Path dir) throws IOException, InterruptedException {
+        DurableTrieMap<Integer> t = DurableTrieMap.open(dir, new ItemCodec<Integer>() {
+            @Override
+            public byte[] encode(Integer item) {
+                return ByteBuffer.allocate(4).putInt(item).array();
+            }
+
+            @Override
+            public Integer decode(byte[] bytes) {
+                return ByteBuffer.wrap(bytes).getInt();
+            }
+        }, TrieMap::new, DurableTrieMap.SyncPolicy.NEVER, 256);
+        for (int i = 0; i < 500; i++) {
+            t.put(Integer.toString(i, 36), i);
+        }
+        t.close();
+        try (Stream<Path> files = Files.list(dir)) {
+            assertTrue(files.anyMatch((f) -> f.getFileName().toString().startsWith("checkpoint-")));
+        }
+        DurableTrieMap<Integer> reopened = DurableTrieMap.open(dir, new ItemCodec<Integer>() {
+            @Override
+            public byte[] encode(Integer item) {
+                return ByteBuffer.allocate(4).putInt(item).array();
+            }
+
+            @Override
+            public Integer decode(byte[] bytes) {
+                return ByteBuffer.wrap(bytes).getInt();
+            }
+        });
+        assertEquals(500, reopened.items().size());
+        reopened.close();
+    }
+
+    @Test
+    public void searchAll_1() {
+        List<String> searches = Arrays.asList("c", "che", "chee", "cheese", "cheese sl", "chicken whole", "a", "apple x",
+                "shar", "sharp", "s", "", "x", "che");
+        TrieMap<String> t = new TrieMap<String>(fullComparator);
+        ArenaTrieMap<String> arena = new ArenaTrieMap<String>(fullComparator);
+        for (String str : trieInput) {
+            t.put(str, "<" + str + ">");
+            arena.put(str, "<" + str + ">");
+        }
+        Map<String, List<String>> actual = t.searchAll(searches);
+        Map<String, List<String>> arenaActual = arena.searchAll(searches);
+        assertEquals(new HashSet<>(searches), actual.keySet());
+        for (String search : searches) {
+            assertEquals(t.search(search), actual.get(search));
+            assertEquals(t.search(search), arenaActual.get(search));
+        }
+    }
+
+    @Test
+    public void searchAll_2_nested_prefixes() {
+        // each nested keyword is picked out of the walk of the shortest one, in every layout
+        List<String> searches = Arrays.asList("s", "sl", "slic", "sliced", "sliced edam cheese", "s e c", "c ch che",
+                "cheese sl", "ch chi chick", "sh sha shar sharp", "slicedx", "sharp cheddar cheese");
+        TrieMap<String> t = new TrieMap<String>(fullComparator);
+        TrieMap<String> cached = new TrieMap<String>(fullComparator);
+        cached.enableHotPrefixCache(1 << 20, 1);
+        ArenaTrieMap<String> arena = new ArenaTrieMap<String>(fullComparator);
+        SharedKeywordTrieMap<String> shared = new SharedKeywordTrieMap<>(new KeywordDictionary(), fullComparator);
+        for (String str : trieInput) {
+            t.put(str, "<" + str + ">");
+            cached.put(str, "<" + str + ">");
+            arena.put(str, "<" + str + ">");
+            shared.put(str, "<" + str + ">");
+        }
+        for (int i = 0; i < 10; i++) {
+            cached.search("s"); // pins s
+        }
+        List<Map<String, List<String>>> actual = Arrays.asList(t.searchAll(searches), cached.searchAll(searches),
+                arena.searchAll(searches), shared.searchAll(searches), t.toImmutable().searchAll(searches));
+        for (String search : searches) {
+            for (Map<String, List<String>> results : actual) {
+                assertEquals(t.search(search), results.get(search), search);
+            }
+        }
+
+        Map<String, Float> proportions = new ConcurrentHashMap<>();
+        // the searches are sorted on separate threads, and the search for "a" matches fewer keywords
+        TrieMap<String> ranked = new TrieMap<>((a, b) -> {
+            proportions.merge(a.getItem(), a.matchProportion(), Math::max);
+            proportions.merge(b.getItem(), b.matchProportion(), Math::max);
+            return Float.compare(a.matchProportion(), b.matchProportion());
+        });
+        for (String str : new String[] {"aa bb cc", "aa bb zz", "aa bb yy", "aa bb cc dd"}) {
+            ranked.put(str, str);
+        }
+        assertEquals(Arrays.asList("aa bb cc", "aa bb cc dd"), ranked.searchAll(List.of("aa bb cc", "a")).get("aa bb cc"));
+        assertEquals(1.0f, proportions.get("aa bb cc"));
+        assertEquals(0.75f, proportions.get("aa bb cc dd"));
+    }
+
+    @Test
+    public void infix_1_search() throws NoAssociatedObjectsException {
+        TrieMap<String> t = new TrieMap<>(fullComparator);
+        for (String str : trieInput) {
+            t.put(str, "<" + str + ">");
+        }
+        t.enableInfixSearch(3);
+        assertTrue(t.getInfixIndexSize() > 0);
+
+        List<String> expected = new ArrayList<>();
+        expected.add("<sharp cheddar cheese>");
+        assertEquals(expected, t.searchInfix("heddar"));
+        assertEquals(expected, t.searchInfix("dar heese sharp"));
+        // the search finds whole keywords and prefixes too
+        assertEquals(t.search("sharp"), t.searchInfix("sharp"));
+        expected.clear();
+        expected.add("<knife sharpener>");
+        assertEquals(expected, t.searchInfix("arp ene"));
+        // "er" is only at the end of "sharpener", in a suffix shorter than the minimum
+        assertEquals(new ArrayList<>(), t.searchInfix("arp er"));
+        assertEquals(new ArrayList<>(), t.searchInfix("xyz"));
+
+        t.remove("sharp cheddar cheese", "<sharp cheddar cheese>");
+        assertEquals(new ArrayList<>(), t.searchInfix("heddar"));
+        assertThrows(IllegalStateException.class, () -> new TrieMap<String>().searchInfix("a"));
+    }
+
+    @Test
+    public void infix_2_index_is_pruned() throws NoAssociatedObjectsException {
+        TrieMap<String> t = new TrieMap<>();
+        t.enableReverseIndex();
+        t.enableInfixSearch(2);
+        t.put("blueberry raspberry", "jam");
+        List<String> expected = new ArrayList<>();
+        expected.add("jam");
+        assertEquals(expected, t.searchInfix("berry"));
+
+        t.rename("jam", "blueberry");
+        assertEquals(expected, t.searchInfix("berry"));
+        assertEquals(new ArrayList<>(), t.searchInfix("spb"));
+        assertEquals("blueberry".length() - 2, t.getInfixIndexSize());
+
+        t.remove("jam");
+        assertEquals(0, t.getInfixIndexSize());
+        assertEquals(new ArrayList<>(), t.searchInfix("berry"));
+    }
+
+    @Test
+    public void immutable_1_same_results() throws NoAssociatedObjectsException {
+        TrieMap<String> t = new TrieMap<>(fullComparator);
+        for (String str : trieInput) {
+            t.put(str, "<" + str + ">");
+        }
+        ImmutableTrieMap<String> frozen = t.toImmutable();
+        assertEquals(t.toString(), frozen.toString());
+        assertEquals(new HashSet<>(t.items()), new HashSet<>(frozen.items()));
+        for (String query : new String[] {"s", "ch", "cheese", "sharp cheddar", "aged colby", "10kg", "xyz", ""}) {
+            assertEquals(t.search(query), frozen.search(query));
+        }
+        assertEquals(t.searchAll(Arrays.asList("s", "ch")), frozen.searchAll(Arrays.asList("s", "ch")));
+
+        // later changes are not copied
+        t.remove("sharp cheddar cheese", "<sharp cheddar cheese>");
+        List<String> expected = new ArrayList<>();
+        expected.add("<sharp cheddar cheese>");
+        assertEquals(expected, frozen.search("cheddar"));
+        // only how searches are run can be changed
+        assertThrows(IllegalStateException.class, () -> frozen.setKeyEncoding(KeyEncoding.LOWER_CASE));
+        frozen.setParallelThreshold(1);
+        assertEquals(expected, frozen.search("cheddar"));
+    }
+
+    @Test
+    public void immutable_2_wide_nodes() {
+        // more children than a linear scan is used for, searched in parallel
+        String labels = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
+        TrieMap<Integer> t = new TrieMap<>();
+        t.setParallelThreshold(16);
+        for (int i = 0; i < 2000; i++) {
+            t.put("k" + labels.charAt(i % labels.length()) + i, i);
+        }
+        ImmutableTrieMap<Integer> frozen = t.toImmutable();
+        for (int i = 0; i < labels.length(); i += 5) {
+            String query = "k" + labels.charAt(i);
+            assertFalse(frozen.search(query).isEmpty());
+            assertEquals(new HashSet<>(t.search(query)), new HashSet<>(frozen.search(query)));
+        }
+        assertEquals(2000, frozen.items().size());
+    }
+
+    @Test
+    public void transaction_1_commit_and_rollback() throws NoAssociatedObjectsException {
+        TrieMap<String> t = new TrieMap<>(fullComparator);
+        for (String str : trieInput) {
+            t.put(str, "<" + str + ">");
+        }
+        String before = t.toString();
+        TrieMapSnapshot<String> snapshot = t.snapshot();
+        assertEquals(0, snapshot.getVersion());
+
+        TrieMap<String>.Transaction transaction = t.begin();
+        transaction.remove("sharp cheddar cheese", "<sharp cheddar cheese>");
+        transaction.put("smoked cheddar", "<smoked cheddar>");
+        // not visible until committed
+        List<String> expected = new ArrayList<>();
+        expected.add("<sharp cheddar cheese>");
+        assertEquals(expected, t.search("cheddar"));
+        assertEquals(1, transaction.commit());
+        expected.clear();
+        expected.add("<smoked cheddar>");
+        assertEquals(expected, t.search("cheddar"));
+
+        // the snapshot still sees the version it was taken of
+        expected.clear();
+        expected.add("<sharp cheddar cheese>");
+        assertEquals(expected, snapshot.search("cheddar"));
+        assertEquals(before, snapshot.toString());
+        assertEquals(snapshot.toString(), snapshot.toImmutable().toString());
+
+        try (TrieMap<String>.Transaction rolledBack = t.begin()) {
+            rolledBack.put("cheddar crackers", "<cheddar crackers>");
+        }
+        expected.clear();
+        expected.add("<smoked cheddar>");
+        assertEquals(expected, t.search("cheddar"));
+        assertEquals(1, t.snapshot().getVersion());
+
+        // every change is its own transaction from now on
+        t.remove("smoked cheddar", "<smoked cheddar>");
+        assertEquals(2, t.snapshot().getVersion());
+        assertEquals(new ArrayList<>(), t.search("cheddar"));
+        assertThrows(IllegalStateException.class, t::enableReverseIndex);
+    }
+
+    @Test
+    public void transaction_2_readers_see_whole_batches() throws Exception {
+        TrieMap<Integer> t = new TrieMap<>();
+        int batch = 200;
+        for (int i = 0; i < batch; i++) {
+            t.put("item " + i, i);
+        }
+        AtomicBoolean done = new AtomicBoolean(false);
+        Thread writer = new Thread(() -> {
+            // swap the catalog between items 0..batch and batch..2*batch
+            for (int round = 0; round < 50; round++) {
+                int from = round % 2 == 0 ? 0 : batch;
+                int to = batch - from;
+                try (TrieMap<Integer>.Transaction transaction = t.begin()) {
+                    for (int i = 0; i < batch; i++) {
+                        transaction.remove("item " + (from + i), from + i);
+                        transaction.put("item " + (to + i), to + i);
+                    }
+                    transaction.commit();
+                }
+                catch (NoAssociatedObjectsException e) {
+                    throw new AssertionError(e);
+                }
+            }
+            done.set(true);
+        });
+        writer.start();
+        while (!done.get()) {
+            List<Integer> items = t.search("item");
+            assertEquals(batch, items.size());
+            int first = items.stream().mapToInt(Integer::intValue).min().getAsInt();
+            assertTrue(first == 0 || first == batch);
+            assertTrue(items.stream().allMatch((i) -> i / batch == first / batch));
+        }
+        writer.join();
+        assertEquals(50, t.snapshot().getVersion());
+    }
+
+    @Test
+    public void compact_1_after_removals() throws NoAssociatedObjectsException {
+        TrieMap<Integer> t = new TrieMap<>();
+        for (int i = 0; i < 1000; i++) {
+            t.put("item " + i, i);
+        }
+        assertTrue(t.compact() > 0);
+        // already compact
+        assertEquals(0, t.compact());
+
+        for (int i = 10; i < 1000; i++) {
+            t.remove("item " + i, i);
+        }
+        String before = t.toString();
+        List<Integer> expected = t.search("item");
+        TrieMap<Integer>.Compaction compaction = t.startCompaction();
+        long reclaimed = 0;
+        while (!compaction.isDone()) {
+            reclaimed += compaction.step(2);
+        }
+        // "item" was associated with 1000 items
+        assertTrue(reclaimed > 1000 * 4);
+        assertEquals(reclaimed, compaction.getBytesReclaimed());
+        assertEquals(before, t.toString());
+        assertEquals(expected, t.search("item"));
+
+        // the trie keeps working after its maps were rebuilt or released
+        t.put("item 2000", 2000);
+        t.remove("item 3", 3);
+        assertEquals(10, t.search("item").size());
+        t.snapshot();
+        assertThrows(IllegalStateException.class, t::compact);
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = ';', value = {
+            "cheese -sliced; cheese wheel,edam cheese,sharp cheddar cheese",
+            "apple | pear; apple crumble,apple,apple & pear pie",
+            "apple|pear -crumble; apple,apple & pear pie",
+            "chicken -free | frozen breast; chicken breast",
+            "sliced cheese -edam | super-cow; sliced cheese basic,orange cheese sliced",
+            "-apple | pear; ''",
+            "apple -apple; ''",
+            "nothing | apple pie; apple & pear pie"
+    })
+    public void query_1_boolean(String query, String names) {
+        TrieMap<String> t = new TrieMap<>(fullComparator);
+        for (String str : trieInput) {
+            t.put(str, "<" + str + ">");
+        }
+        Set<String> expected = new HashSet<>();
+        for (String name : names.isEmpty() ? new String[0] : names.split(",")) {
+            expected.add("<" + name + ">");
+        }
+        assertEquals(expected, new HashSet<>(t.searchQuery(query)));
+    }
+
+    @Test
+    public void query_2_ranked_like_search() {
+        TrieMap<String> t = new TrieMap<>(fullComparator);
+        ArenaTrieMap<String> arena = new ArenaTrieMap<>(fullComparator);
+        for (String str : trieInput) {
+            t.put(str, "<" + str + ">");
+            arena.put(str, "<" + str + ">");
+        }
+        for (String query : new String[] {"cheese", "s", "sliced cheese", "c s", "chicken breast"}) {
+            assertEquals(t.search(query), t.searchQuery(query));
+            assertEquals(t.search(query), arena.searchQuery(query));
+        }
+        // the first term takes up position 0 whichever alternative matched
+        List<String> results = t.searchQuery("edam | sliced cheese");
+        assertEquals("<edam cheese>", results.get(0));
+        assertEquals(5, results.size());
+    }
+
+    @Test
+    public void query_3_ranks_three_terms() {
+        Map<String, Float> proportions = new HashMap<>();
+        TrieMap<String> t = new TrieMap<>((a, b) -> {
+            proportions.put(a.getItem(), a.matchProportion());
+            proportions.put(b.getItem(), b.matchProportion());
+            int order = Float.compare(a.matchProportion(), b.matchProportion());
+            return order != 0 ? order : b.getItem().compareTo(a.getItem());
+        });
+        for (String str : new String[] {"aa bb cc", "aa bb zz", "aa bb yy", "aa bb cc dd", "aa bb zz yy xx"}) {
+            t.put(str, str);
+        }
+        assertEquals(Arrays.asList("aa bb cc", "aa bb cc dd"), t.searchQuery("aa bb cc"));
+        assertEquals(1.0f, proportions.get("aa bb cc"));
+        assertEquals(0.75f, proportions.get("aa bb cc dd"));
+
+        proportions.clear();
+        assertEquals(Arrays.asList("aa bb cc", "aa bb zz", "aa bb cc dd", "aa bb zz yy xx"),
+                t.searchQuery("aa bb cc | zz"));
+        assertEquals(1.0f, proportions.get("aa bb zz"));
+        assertEquals(0.6f, proportions.get("aa bb zz yy xx"));
+
+        // an alternative of two keywords counts as two matches
+        proportions.clear();
+        assertEquals(Arrays.asList("aa bb cc", "aa bb zz yy xx", "aa bb cc dd"), t.searchQuery("aa bb cc | zz-xx"));
+        assertEquals(0.8f, proportions.get("aa bb zz yy xx"));
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = ';', value = {
+            "edam cheese; edam cheese,sliced edam cheese",
+            "cheese edam; ''",
+            "sliced ch; sliced cheese basic",
+            "ch; cheese wheel,edam cheese,sliced edam cheese,sharp cheddar cheese,sliced cheese basic,sliced super cow cheese,orange cheese sliced,chicken breast,chicken liver free range,chicken thigh bone in,whole chicken frozen",
+            "sharp cheddar cheese; sharp cheddar cheese",
+            "cheddar sharp; ''",
+            "chicken b; chicken breast"
+    })
+    public void phrase_1_order(String phrase, String names) {
+        TrieMap<String> t = new TrieMap<>(fullComparator);
+        for (String str : trieInput) {
+            t.put(str, "<" + str.replaceAll("[^a-zA-Z0-9& ]", "") + ">");
+        }
+        Set<String> expected = new HashSet<>();
+        for (String name : names.isEmpty() ? new String[0] : names.split(",")) {
+            expected.add("<" + name + ">");
+        }
+        assertEquals(expected, new HashSet<>(t.searchPhrase(phrase)));
+    }
+
+    @Test
+    public void phrase_2_repeated_keywords() throws IOException, NoAssociatedObjectsException {
+        TrieMap<String> t = new TrieMap<>();
+        t.put("new york new jersey", "route");
+        t.put("new jersey", "state");
+        Set<String> expected = new HashSet<>();
+        expected.add("route");
+        expected.add("state");
+        // "new" is at positions 0 and 2 of the route
+        assertEquals(expected, new HashSet<>(t.searchPhrase("new jersey")));
+        assertEquals(Collections.singletonList("route"), t.searchPhrase("york new"));
+        assertEquals(Collections.singletonList("route"), t.searchPhrase("new york"));
+
+        // the positions survive a snapshot
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        t.writeSnapshot(out, ItemCodec.strings());
+        TrieMap<String> loaded = TrieMap.readSnapshot(new ByteArrayInputStream(out.toByteArray()), ItemCodec.strings());
+        assertEquals(expected, new HashSet<>(loaded.searchPhrase("new jersey")));
+        assertEquals(Collections.singletonList("route"), loaded.searchPhrase("york new"));
+
+        // removed once, under every position
+        t.remove("new york new jersey", "route");
+        assertEquals(Collections.singletonList("state"), t.search("jersey"));
+        assertEquals(Collections.singletonList("state"), t.search("new"));
+        assertTrue(t.search("york").isEmpty());
+        t.snapshot();
+        t.put("new york new jersey", "route");
+        t.remove("new york new jersey", "route");
+        assertEquals(Collections.singletonList("state"), t.search("jersey"));
+    }
+
+    @Test
+    public void subscribe_1_deltas() throws NoAssociatedObjectsException {
+        TrieMap<String> t = new TrieMap<>();
+        t.put("edam cheese", "edam");
+        List<ResultDelta<String>> deltas = new ArrayList<>();
+        Flow.Subscriber<ResultDelta<String>> subscriber = new Flow.Subscriber<ResultDelta<String>>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(ResultDelta<String> delta) {
+                deltas.add(delta);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                fail(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        };
+        t.subscribe("che", subscriber, Runnable::run);
+        assertEquals(Collections.singletonList("edam"), deltas.get(0).getAdded());
+
+        t.put("cheddar", "cheddar");
+        t.put("brie", "brie"); // does not match
+        t.put("cheddar cheese", "cheddar"); // already in the results
+        t.remove("cheddar", "cheddar"); // still matched by its other name
+        assertEquals(2, deltas.size());
+        assertEquals(Collections.singletonList("cheddar"), deltas.get(1).getAdded());
+
+        t.remove("edam cheese", "edam");
+        assertEquals(Collections.singletonList("edam"), deltas.get(2).getRemoved());
+
+        // a transaction's changes are delivered once it is committed
+        try (TrieMap<String>.Transaction transaction = t.begin()) {
+            transaction.put("cheshire", "cheshire");
+            assertEquals(3, deltas.size());
+            transaction.commit();
+        }
+        assertEquals(Collections.singletonList("cheshire"), deltas.get(3).getAdded());
+    }
+
+    @Test
+    public void subscribe_2_backpressure() throws NoAssociatedObjectsException {
+        TrieMap<String> t = new TrieMap<>();
+        List<ResultDelta<String>> deltas = new ArrayList<>();
+        Flow.Subscription[] subscription = new Flow.Subscription[1];
+        t.subscribe("sharp cheese", new Flow.Subscriber<ResultDelta<String>>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                subscription[0] = s;
+                s.request(1);
+            }
+
+            @Override
+            public void onNext(ResultDelta<String> delta) {
+                deltas.add(delta);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                fail(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        }, Runnable::run);
+        // nothing matches, but the first delta is still delivered
+        assertEquals(1, deltas.size());
+        assertTrue(deltas.get(0).getAdded().isEmpty());
+
+        // changes wait for the subscriber to ask for them, and are merged
+        t.put("sharp cheddar cheese", "cheddar");
+        t.put("sharp edam cheese", "edam");
+        t.put("sharp stilton cheese", "stilton");
+        t.remove("sharp edam cheese", "edam");
+        t.put("cheese knife", "knife"); // only matches one keyword
+        assertEquals(1, deltas.size());
+        subscription[0].request(1);
+        assertEquals(2, deltas.size());
+        assertEquals(Arrays.asList("cheddar", "stilton"), deltas.get(1).getAdded());
+        assertTrue(deltas.get(1).getRemoved().isEmpty());
+
+        // a cancelled subscription receives nothing more, and is unsubscribed by the next change, even one it is not
+        // affected by
+        assertEquals(2, t.getSubscribedKeywords());
+        subscription[0].cancel();
+        subscription[0].request(1);
+        t.put("brie", "brie");
+        assertEquals(0, t.getSubscribedKeywords());
+        t.put("sharp brie cheese", "brie");
+        assertEquals(2, deltas.size());
+    }
+
+    @Test
+    public void hotprefix_1_pinned_results_stay_current() throws NoAssociatedObjectsException {
+        TrieMap<String> cached = new TrieMap<>();
+        TrieMap<String> plain = new TrieMap<>();
+        cached.enableReverseIndex();
+        plain.enableReverseIndex();
+        cached.enableHotPrefixCache(1 << 20, 10);
+        for (int i = 0; i < 200; i++) {
+            String name = (i % 2 == 0 ? "cheese " : "chutney ") + i + (i % 3 == 0 ? " sharp" : "");
+            cached.put(name, "item" + i);
+            plain.put(name, "item" + i);
+        }
+        for (int i = 0; i < 20; i++) {
+            assertEquals(new HashSet<>(plain.search("c")), new HashSet<>(cached.search("c")));
+        }
+        long pinnedBytes = cached.getHotPrefixCacheBytes();
+        assertTrue(pinnedBytes > 0);
+        // narrow keywords are never pinned
+        for (int i = 0; i < 20; i++) {
+            cached.search("199");
+        }
+        assertEquals(pinnedBytes, cached.getHotPrefixCacheBytes());
+
+        // changes below a pinned node update it
+        for (TrieMap<String> t : Arrays.asList(cached, plain)) {
+            t.put("cheddar", "cheddar");
+            t.remove("cheese 0 sharp", "item0");
+            t.remove("item1");
+            t.rename("item2", "brie 2");
+            t.rename("item4", "cheddar 4");
+        }
+        for (String query : Arrays.asList("c", "ch", "c sh", "b")) {
+            assertEquals(new HashSet<>(plain.search(query)), new HashSet<>(cached.search(query)), query);
+        }
+        assertThrows(IllegalStateException.class, cached::snapshot);
+    }
+
+    @Test
+    public void hotprefix_2_budget() {
+        TrieMap<String> t = new TrieMap<>();
+        for (int i = 0; i < 100; i++) {
+            t.put("apple " + i, "a" + i);
+            t.put("banana " + i, "b" + i);
+        }
+        // room for one of the two letters
+        long budget = 150 * HotPrefixCache.ASSOCIATION_BYTES;
+        t.enableHotPrefixCache(budget, 50);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(100, t.search("a").size());
+        }
+        long apple = t.getHotPrefixCacheBytes();
+        assertTrue(apple > 0);
+        // the hotter letter takes the room
+        for (int i = 0; i < 20; i++) {
+            assertEquals(100, t.search("b").size());
+        }
+        assertTrue(t.getHotPrefixCacheBytes() <= budget);
+        assertEquals(apple, t.getHotPrefixCacheBytes());
+        assertEquals(100, t.search("a").size());
+    }
+
+    @Test
+    public void bounded_1_evicts_least_recently_used() throws NoAssociatedObjectsException {
+        TrieMap<String> map = new TrieMap<>();
+        BoundedTrieMap<String> t = new BoundedTrieMap<>(map, 3, Long.MAX_VALUE, null);
+        t.put("alpha one", "a");
+        t.put("bravo two", "b");
+        t.put("charlie three", "c");
+        assertEquals(Collections.singletonList("a"), t.search("alpha")); // a is used, so b is now the eldest
+        t.put("delta four", "d");
+        assertEquals(3, t.size());
+        assertTrue(t.search("bravo").isEmpty());
+        // the evicted item's nodes are pruned
+        assertThrows(NoAssociatedObjectsException.class, () -> map.getKeywordMatches("b"));
+        assertEquals(Collections.singletonList("a"), t.search("a"));
+
+        long bytes = 3 * BoundedTrieMap.ITEM_BYTES + 6 * BoundedTrieMap.KEYWORD_BYTES;
+        assertEquals(bytes, t.getRetainedBytes());
+        t.put("echo", "a"); // a second name for a
+        assertEquals(bytes + BoundedTrieMap.KEYWORD_BYTES, t.getRetainedBytes());
+        t.remove("alpha one", "a");
+        assertEquals(bytes - BoundedTrieMap.KEYWORD_BYTES, t.getRetainedBytes());
+        t.remove("a");
+        t.remove("charlie three", "c");
+        t.remove("d");
+        assertEquals(0, t.size());
+        assertEquals(0, t.getRetainedBytes());
+        assertTrue(map.items().isEmpty());
+        t.close();
+        assertThrows(IllegalStateException.class, () -> t.put("foxtrot", "f"));
+    }
+
+    @Test
+    public void bounded_2_byte_budget_and_expiry() throws InterruptedException {
+        long itemBytes = BoundedTrieMap.ITEM_BYTES + 2 * BoundedTrieMap.KEYWORD_BYTES;
+        BoundedTrieMap<String> t = new BoundedTrieMap<>(new TrieMap<>(), 100, 5 * itemBytes, null);
+        for (int i = 0; i < 10; i++) {
+            t.put("item " + i, "i" + i);
+        }
+        assertEquals(5, t.size());
+        assertEquals(5 * itemBytes, t.getRetainedBytes());
+        assertEquals(new HashSet<>(Arrays.asList("i5", "i6", "i7", "i8", "i9")), new HashSet<>(t.search("item")));
+
+        BoundedTrieMap<String> expiring = new BoundedTrieMap<>(new TrieMap<>(), 100, Long.MAX_VALUE, Duration.ofMillis(20));
+        expiring.put("soon gone", "x");
+        Thread.sleep(50);
+        expiring.sweep();
+        assertEquals(0, expiring.size());
+        assertEquals(0, expiring.getRetainedBytes());
+        expiring.close();
+    }
+
+    @Test
+    public void shared_1_same_as_nodes() throws NoAssociatedObjectsException {
+        KeywordDictionary dictionary = new KeywordDictionary();
+        TrieMap<String> nodes = new TrieMap<>(fullComparator);
+        SharedKeywordTrieMap<String> shared = new SharedKeywordTrieMap<>(dictionary, fullComparator);
+        SharedKeywordTrieMap<String> other = new SharedKeywordTrieMap<>(dictionary, fullComparator);
+        for (String str : trieInput) {
+            nodes.put(str, "<" + str + ">");
+            shared.put(str, "<" + str + ">");
+        }
+        for (String str : trieInput2) {
+            other.put(str, "<" + str + ">");
+        }
+        assertEquals(new HashSet<>(nodes.items()), new HashSet<>(shared.items()));
+        for (String search : new String[] {"c", "che", "a", "chicken whole", "cheese sl", "shar", "x", "fix & foggs butter"}) {
+            assertEquals(nodes.search(search), shared.search(search), search);
+        }
+
+        for (String str : new String[] {"colby aged", "knife sharpener", "sharp cheddar cheese"}) {
+            nodes.remove(str, "<" + str + ">");
+            shared.remove(str, "<" + str + ">");
+        }
+        assertEquals(nodes.search("c"), shared.search("c"));
+        assertEquals(nodes.searchQuery("c -ch"), shared.searchQuery("c -ch"));
+        assertThrows(NoAssociatedObjectsException.class, () -> shared.remove("colby", "<colby aged>"));
+        int words = dictionary.size();
+        new SharedKeywordTrieMap<String>(dictionary).put(trieInput[0], "again");
+        assertEquals(words, dictionary.size());
+
+        // a repeated keyword keeps both of its positions, and is removed once
+        shared.put("new york new jersey", "route");
+        assertEquals(Collections.singletonList("route"), shared.searchPhrase("york new"));
+        shared.remove("new york new jersey", "route");
+        assertTrue(shared.search("york").isEmpty());
+    }
+
+    @Test
+    public void filter_1_no_false_negatives() throws NoAssociatedObjectsException {
+        TrieMap<String> filtered = new TrieMap<>();
+        TrieMap<String> plain = new TrieMap<>();
+        for (String str : trieInput) {
+            filtered.put(str, str);
+            plain.put(str, str);
+        }
+        filtered.enablePrefixFilter(4);
+        long bytes = filtered.getPrefixFilterBytes();
+        assertTrue(bytes > 0);
+        // grows past its capacity, and is rebuilt larger
+        for (int i = 0; i < 5000; i++) {
+            String name = Integer.toString(i * 7919, 36) + " x" + i;
+            filtered.put(name, name);
+            plain.put(name, name);
+        }
+        assertTrue(filtered.getPrefixFilterBytes() > bytes);
+        for (String search : new String[] {"c", "che", "cheese sl", "zzzz", "x12", "qqq cheese", "1a", "x4999", "x5000"}) {
+            assertEquals(plain.search(search), filtered.search(search), search);
+            assertEquals(plain.searchQuery(search), filtered.searchQuery(search), search);
+        }
+        for (int i = 0; i < 5000; i += 7) {
+            assertFalse(filtered.search(Integer.toString(i * 7919, 36)).isEmpty());
+        }
+
+        for (String str : trieInput) {
+            filtered.remove(str, str);
+        }
+        filtered.compact();
+        assertTrue(filtered.search("cheese").isEmpty());
+        filtered.put("cheese", "cheese");
+        assertEquals(Collections.singletonList("cheese"), filtered.search("chee"));
+
+        // each version keeps the filter it was committed with, which is rebuilt as transactions outgrow it
+        TrieMapSnapshot<String> snapshot = filtered.snapshot();
+        bytes = filtered.getPrefixFilterBytes();
+        try (TrieMap<String>.Transaction transaction = filtered.begin()) {
+            transaction.put("zyzzyva", "zyzzyva");
+            assertTrue(filtered.search("zyz").isEmpty());
+            transaction.commit();
+        }
+        assertEquals(Collections.singletonList("zyzzyva"), filtered.search("zyz"));
+        int before = snapshot.items().size();
+        for (int i = 0; i < 20000; i++) {
+            filtered.put(Integer.toString(46656 + i * 37, 36), "v" + i);
+        }
+        assertTrue(filtered.getPrefixFilterBytes() > bytes);
+        assertTrue(filtered.search(Integer.toString(46656 + 19999 * 37, 36)).contains("v19999"));
+        assertTrue(snapshot.search("zyz").isEmpty());
+        assertEquals(before, snapshot.items().size());
+        assertEquals(Collections.singletonList("cheese"), snapshot.search("chee"));
+    }
+
+    @Test
+    public void encoding_1_folded_utf8() {
+        TrieMap<String> t = new TrieMap<>("[',]", "[^\\p{L}\\p{N}&]+");
+        t.setKeyEncoding(KeyEncoding.FOLDED_UTF8);
+        t.put("Caf\u00e9 Cr\u00e8me", "cafe");
+        t.put("\u0130stanbul", "istanbul");
+        t.put("Stra\u00dfe", "street");
+        t.put("\u6771\u4eac \u30bf\u30ef\u30fc", "tokyo");
+        t.put("plain ASCII", "ascii");
+        List<String> cafe = Collections.singletonList("cafe");
+        for (String search : new String[] {"cafe", "CAF\u00c9", "\uff23\uff41\uff46\uff45", "creme", "caf cr\u00e8"}) {
+            assertEquals(cafe, t.search(search), search);
+        }
+        for (String search : new String[] {"istanbul", "ISTANBUL", "\u0131stanbul", "\u0130st"}) {
+            assertEquals(Collections.singletonList("istanbul"), t.search(search), search);
+        }
+        assertEquals(Collections.singletonList("street"), t.search("strasse"));
+        assertEquals(Collections.singletonList("tokyo"), t.search("\u6771"));
+        assertEquals(Collections.singletonList("tokyo"), t.search("\u30bf\u30ef"));
+        assertEquals(Collections.singletonList("ascii"), t.search("Ascii"));
+        // one byte per node
+        assertTrue(t.toString().chars().allMatch((c) -> c < 0x100));
+        assertThrows(IllegalStateException.class, () -> t.setKeyEncoding(KeyEncoding.LOWER_CASE));
+
+        // every layout can tell when it is empty again
+        ArenaTrieMap<String> arena = new ArenaTrieMap<>();
+        SharedKeywordTrieMap<String> shared = new SharedKeywordTrieMap<>(new KeywordDictionary());
+        arena.put("plain ASCII", "ascii");
+        shared.put("plain ASCII", "ascii");
+        assertThrows(IllegalStateException.class, () -> arena.setKeyEncoding(KeyEncoding.FOLDED_UTF8));
+        assertThrows(IllegalStateException.class, () -> shared.setKeyEncoding(KeyEncoding.FOLDED_UTF8));
+        assertDoesNotThrow(() -> arena.remove("plain ASCII", "ascii"));
+        assertDoesNotThrow(() -> shared.remove("plain ASCII", "ascii"));
+        arena.setKeyEncoding(KeyEncoding.FOLDED_UTF8);
+        shared.setKeyEncoding(KeyEncoding.FOLDED_UTF8);
+    }
+
+    @Test
+    public void encoding_2_locale_independent() {
+        Locale locale = Locale.getDefault();
+        try {
+            Locale.setDefault(new Locale("tr"));
+            TrieMap<String> t = new TrieMap<>();
+            t.put("TITLE", "title");
+            assertEquals(Collections.singletonList("title"), t.search("title"));
+        }
+        finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    @Test
+    public void loader_1_same_as_puts(@TempDir Path dir) throws IOException {
+        // large enough to be split into several chunks
+        StringBuilder file = new StringBuilder();
+        TrieMap<String> expected = new TrieMap<>();
+        Random random = new Random(46);
+        for (int i = 0; i < 100_000; i++) {
+            String line = "item" + i + " " + trieInput[random.nextInt(trieInput.length)];
+            file.append(line).append(i % 3 == 0 ? "\r\n" : "\n");
+            expected.put(line, line);
+        }
+        file.append("# skipped\n\nlast \u00e9dam");
+        expected.put("last \u00e9dam", "last \u00e9dam");
+        Path path = dir.resolve("items.txt");
+        Files.write(path, file.toString().getBytes(StandardCharsets.UTF_8));
+
+        TrieMap<String> t = new TrieMap<>();
+        TrieMapLoader<String> loader = new TrieMapLoader<>(t,
+                (line) -> line.isEmpty() || line.startsWith("#") ? null : line, (item) -> item);
+        loader.setThreads(3);
+        List<TrieMapLoader.Progress> reports = new ArrayList<>();
+        loader.setProgressListener(reports::add);
+        TrieMapLoader.Progress progress = loader.load(path);
+
+        assertEquals(100_001, progress.getItemsLoaded());
+        assertEquals(Files.size(path), progress.getBytesRead());
+        assertEquals(progress.getTotalBytes(), progress.getBytesRead());
+        assertSame(progress, reports.get(reports.size() - 1));
+        assertEquals(expected.items().size(), t.items().size());
+        for (String search : new String[] {"item12", "c", "colby item9", "\u00e9", "last"}) {
+            assertEquals(new HashSet<>(expected.search(search)), new HashSet<>(t.search(search)), search);
+        }
+    }
+
+    @Test
+    public void loader_2_errors(@TempDir Path dir) throws IOException {
+        Path path = dir.resolve("items.txt");
+        Files.write(path, "a\nb\nfail\nc".getBytes(StandardCharsets.UTF_8));
+        TrieMap<String> t = new TrieMap<>();
+        TrieMapLoader<String> loader = new TrieMapLoader<>(t, (line) -> {
+            if (line.equals("fail")) {
+                throw new IllegalArgumentException(line);
+            }
+            return line;
+        }, (item) -> item);
+        assertThrows(IllegalArgumentException.class, () -> loader.load(path));
+        assertThrows(IOException.class, () -> loader.load(dir.resolve("missing.txt")));
+        assertThrows(IllegalArgumentException.class, () -> loader.setThreads(0));
+    }
+
+    @Test
+    public void loadtest_1_histogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 1_000_000; value++) {
+            histogram.record(value * 1000);
+        }
+        assertEquals(1_000_000, histogram.getCount());
+        for (double percentile : new double[] {50, 99, 99.9, 100}) {
+            double expected = percentile * 10_000 * 1000;
+            assertEquals(expected, histogram.getValueAtPercentile(percentile), expected / 100, "p" + percentile);
+        }
+        assertEquals(1000, histogram.getMin());
+        assertEquals(1_000_000_000L, histogram.getMax());
+        assertEquals(500_000_500.0, histogram.getMean(), 1);
+
+        LatencyHistogram other = new LatencyHistogram();
+        other.record(Long.MAX_VALUE);
+        other.record(-5);
+        histogram.add(other);
+        assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100));
+        assertEquals(0, histogram.getValueAtPercentile(0));
+    }
+
+    @Test
+    public void loadtest_2_runs(@TempDir Path dir) throws IOException {
+        Path corpus = dir.resolve("corpus.txt");
+        Files.write(corpus, Arrays.asList(trieInput));
+        LoadTest test = new LoadTest();
+        test.setCorpus(corpus);
+        test.setReaders(2);
+        test.setWriters(1);
+        test.setDuration(Duration.ofMillis(50), Duration.ofMillis(200));
+        test.setQueryMix(0.3, 0.2);
+        LoadReport report = test.run();
+
+        assertEquals(trieInput.length, report.getItems());
+        assertTrue(report.getSnapshotLoadNanos() > 0);
+        assertTrue(report.getSearchLatencies().getCount() > 0);
+        assertTrue(report.getWriteLatencies().getCount() > 0);
+        assertTrue(report.getSearchesPerSecond() > 0);
+        assertTrue(report.getSearchLatencies().getValueAtPercentile(50)
+                <= report.getSearchLatencies().getValueAtPercentile(99.9));
+        assertTrue(report.toString().contains("p999"));
+        assertTrue(report.toString().contains("coordinated omission"));
+        assertThrows(IllegalArgumentException.class, () -> test.setQueryMix(0.6, 0.6));
+
+        // paced searches are measured from when they were due
+        test.setWriters(0);
+        test.setSearchRate(200);
+        LoadReport paced = test.run();
+        assertEquals(200, paced.getSearchRate());
+        assertTrue(paced.getSearchLatencies().getCount() > 0);
+        assertTrue(paced.getSearchesPerSecond() > 0);
+        assertFalse(paced.toString().contains("coordinated omission"));
+        assertTrue(paced.toString().contains("paced at 200 searches/s"));
+        assertThrows(IllegalArgumentException.class, () -> test.setSearchRate(-1));
+    }
+
+    /**
+     * Bytes per item of each layout for standard corpora, with some headroom.
+     * A change that makes these fail needs a reason, and new limits.
+     * */
+    @Test
+    public void memory_1_bytes_per_item() throws NoAssociatedObjectsException {
+        List<String> skewed = LoadTest.generateNames(20_000, 1.0, new Random(48));
+        List<String> flat = LoadTest.generateNames(20_000, 0.5, new Random(48));
+        // corpus, TrieMap, compacted, with reverse index, ArenaTrieMap, ImmutableTrieMap, SharedKeywordTrieMap
+        Object[][] limits = {
+                {skewed, 470, 410, 510, 130, 210, 290},
+                {flat, 480, 425, 525, 130, 220, 295},
+        };
+        for (Object[] corpusLimits : limits) {
+            @SuppressWarnings("unchecked")
+            List<String> names = (List<String>) corpusLimits[0];
+            TrieMap<Integer> t = new TrieMap<>();
+            ArenaTrieMap<Integer> arena = new ArenaTrieMap<>();
+            SharedKeywordTrieMap<Integer> shared = new SharedKeywordTrieMap<>(new KeywordDictionary());
+            for (int i = 0; i < names.size(); i++) {
+                t.put(names.get(i), i);
+                arena.put(names.get(i), i);
+                shared.put(names.get(i), i);
+            }
+            long[] bytes = new long[6];
+            bytes[0] = t.estimateRetainedBytes();
+            bytes[4] = t.toImmutable().estimateRetainedBytes();
+            t.compact();
+            bytes[1] = t.estimateRetainedBytes();
+            t.enableReverseIndex();
+            bytes[2] = t.estimateRetainedBytes();
+            bytes[3] = arena.estimateRetainedBytes();
+            bytes[5] = shared.estimateRetainedBytes();
+            for (int i = 0; i < bytes.length; i++) {
+                long perItem = bytes[i] / names.size();
+                assertTrue(perItem <= (int) corpusLimits[i + 1], "layout " + i + ": " + perItem + " bytes per item");
+            }
+        }
+    }
+
+    @Test
+    public void memory_2_estimate_follows_changes() throws NoAssociatedObjectsException {
+        TrieMap<String> t = new TrieMap<>();
+        long empty = t.estimateRetainedBytes();
+        long previous = empty;
+        for (String str : trieInput) {
+            t.put(str, str);
+            long bytes = t.estimateRetainedBytes();
+            assertTrue(bytes > previous, str);
+            previous = bytes;
+        }
+        for (String str : trieInput) {
+            t.remove(str, str);
+        }
+        t.compact();
+        assertEquals(empty, t.estimateRetainedBytes());
+
+        TrieMap<String> infix = new TrieMap<>();
+        for (String str : trieInput) {
+            infix.put(str, str);
+        }
+        long withoutIndexes = infix.estimateRetainedBytes();
+        infix.enableInfixSearch(3);
+        infix.enablePrefixFilter(4);
+        assertTrue(infix.estimateRetainedBytes() > withoutIndexes + infix.getPrefixFilterBytes());
+    }
+
+    @Test
+    public void server_1_loopback() throws IOException, NoAssociatedObjectsException, InterruptedException {
+        TrieMap<String> t = new TrieMap<>();
+        try (TrieMapServer<String> server = new TrieMapServer<>(t, ItemCodec.strings(), 0)) {
+            TrieMapClient<String> client = new TrieMapClient<>(server.getPort(), ItemCodec.strings());
+            TrieMap<String> expected = new TrieMap<>();
+            for (String str : trieInput) {
+                client.put(str, "<" + str + "\u00e9>");
+                expected.put(str, "<" + str + "\u00e9>");
+            }
+            assertEquals(expected.search("ch"), client.search("ch"));
+            assertEquals(Collections.emptyList(), client.search("nothing"));
+            client.remove("colby aged", "<colby aged\u00e9>");
+            expected.remove("colby aged", "<colby aged\u00e9>");
+            assertThrows(NoAssociatedObjectsException.class, () -> client.remove("colby aged", "<colby aged\u00e9>"));
+
+            // concurrent searches are evaluated in batches, with the same results
+            String[] searches = {"c", "ch", "colby", "s", "ag", "nothing", "cheddar sharp"};
+            List<Thread> threads = new ArrayList<>();
+            AtomicBoolean failed = new AtomicBoolean(false);
+            for (int i = 0; i < 8; i++) {
+                threads.add(new Thread(() -> {
+                    try {
+                        for (int j = 0; j < 25; j++) {
+                            for (String search : searches) {
+                                if (!new HashSet<>(expected.search(search)).equals(new HashSet<>(client.search(search)))) {
+                                    failed.set(true);
+                                }
+                            }
+                        }
+                    }
+                    catch (IOException e) {
+                        failed.set(true);
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertFalse(failed.get());
+            assertTrue(server.getBatches() <= 8 * 25 * searches.length + trieInput.length + 6);
+        }
+    }
+
+    @Test
+    public void server_2_rejects_bad_lengths() {
+        ByteBuffer buffer = ByteBuffer.allocate(32);
+        MutationLog.writeBytes(buffer, "abc".getBytes(StandardCharsets.UTF_8));
+        MutationLog.writeVarint(buffer, 300);
+        buffer.flip();
+        assertEquals("abc", new String(MutationLog.readBytes(buffer), StandardCharsets.UTF_8));
+        assertEquals(300, MutationLog.readVarint(buffer));
+
+        // a length past the end, a negative length and a varint that does not end are rejected before allocating
+        byte[][] corrupt = {
+                {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07, 1, 2},
+                {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F, 1, 2},
+                {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01},
+        };
+        for (byte[] bytes : corrupt) {
+            assertThrows(IllegalArgumentException.class, () -> MutationLog.readBytes(ByteBuffer.wrap(bytes)));
+        }
+    }
+
+    @Test
+    public void page_1_pages_match_search() {
+        TrieMap<String> t = new TrieMap<>(fullComparator);
+        for (String str : trieInput) {
+            t.put(str, str);
+        }
+        for (String query : new String[] {"c", "ch", "s", "colby aged", "nothing"}) {
+            List<String> expected = t.search(query);
+            List<String> paged = new ArrayList<>();
+            Cursor cursor = null;
+            do {
+                ResultPage<String> page = t.searchPage(query, 3, cursor);
+                assertTrue(page.getItems().size() <= 3);
+                assertTrue(page.hasNext() ? page.getItems().size() == 3 : page.getItems().size() <= 3);
+                paged.addAll(page.getItems());
+                cursor = page.getNext();
+            } while (cursor != null);
+            assertEquals(expected.size(), paged.size(), query);
+            assertEquals(new HashSet<>(expected), new HashSet<>(paged), query);
+            if (!expected.isEmpty()) {
+                assertEquals(expected.get(0), paged.get(0), query);
+            }
+        }
+        ResultPage<String> first = t.searchPage("c", 2, null);
+        assertThrows(IllegalArgumentException.class, () -> t.searchPage("ch", 2, first.getNext()));
+        assertThrows(IllegalArgumentException.class, () -> t.searchPage("c", 0, null));
+    }
+
+    @Test
+    public void page_2_stable_under_puts() throws NoAssociatedObjectsException {
+        TrieMap<String> t = new TrieMap<>();
+        for (String str : trieInput) {
+            t.put(str, str);
+        }
+        t.snapshot(); // versioned, as with concurrent puts
+        List<String> before = t.search("c");
+        ResultPage<String> page = t.searchPage("c", 4, null);
+        Set<String> seen = new HashSet<>(page.getItems());
+        List<String> added = new ArrayList<>();
+        while (page.hasNext()) {
+            // puts and removes between pages do not skip or repeat the items that were there all along
+            String item = "cheese " + added.size();
+            t.put(item, item);
+            added.add(item);
+            page = t.searchPage("c", 4, page.getNext());
+            for (String str : page.getItems()) {
+                assertTrue(seen.add(str), str);
+            }
+        }
+        for (String str : before) {
+            assertTrue(seen.contains(str), str);
+        }
+    }
+
+    @Test
+    public void page_3_colliding_keys() {
+        // "Aa" and "BB" have the same hash code, and a List key is not Comparable
+        TrieMap<String> t = new TrieMap<String>((a, b) -> 0, Pattern.compile("[',]"), Pattern.compile("[^a-zA-Z0-9&]+"),
+                Collections::singletonList);
+        for (String str : new String[] {"Aa", "BB", "AaAa", "BBBB", "AaBB", "BBAa", "C"}) {
+            t.put("x " + str, str);
+        }
+        Set<String> seen = new HashSet<>();
+        Cursor cursor = null;
+        do {
+            ResultPage<String> page = t.searchPage("x", 1, cursor);
+            for (String str : page.getItems()) {
+                assertTrue(seen.add(str), str);
+            }
+            cursor = page.getNext();
+        } while (cursor != null);
+        assertEquals(new HashSet<>(t.search("x")), seen);
+
+        // an immutable copy pages the same way, with nothing shared but the cursor
+        ImmutableTrieMap<String> frozen = t.toImmutable();
+        seen.clear();
+        do {
+            ResultPage<String> page = frozen.searchPage("x", 2, cursor);
+            for (String str : page.getItems()) {
+                assertTrue(seen.add(str), str);
+            }
+            cursor = page.getNext();
+        } while (cursor != null);
+        assertEquals(new HashSet<>(t.search("x")), seen);
+    }
+}